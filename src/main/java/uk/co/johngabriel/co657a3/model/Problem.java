@@ -1,5 +1,7 @@
 package uk.co.johngabriel.co657a3.model;
 
+import java.util.Objects;
+
 import uk.co.johngabriel.co657a3.model.json.Device;
 import uk.co.johngabriel.co657a3.model.json.Site;
 import uk.co.johngabriel.co657a3.model.json.Zone;
@@ -42,4 +44,32 @@ public class Problem {
 	public Device getDevice() { return device; }
 	public String getMessage() { return message; }
 	public byte getType() { return type; }
+	
+	/**
+	 * @return The id of whatever the problem's with; zones go by their site's id too.
+	 */
+	private String getSubjectId() {
+		switch (type) {
+		case TYPE_SITE: return site.getId();
+		case TYPE_ZONE: return zone.getSite().getId() + "/" + zone.getId();
+		default: return device.getId();
+		}
+	}
+	
+	/**
+	 * Problems are the same if they say the same thing about the same thing, even if they were found on different
+	 * passes, about different objects for it.
+	 */
+	@Override
+	public boolean equals(Object other) {
+		if (this == other) return true;
+		if (!(other instanceof Problem)) return false;
+		Problem problem = (Problem) other;
+		return type == problem.type && message.equals(problem.message) && getSubjectId().equals(problem.getSubjectId());
+	}
+	
+	@Override
+	public int hashCode() {
+		return Objects.hash(type, getSubjectId(), message);
+	}
 }
@@ -0,0 +1,133 @@
+package uk.co.johngabriel.co657a3.model;
+
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import uk.co.johngabriel.co657a3.model.json.Device;
+import uk.co.johngabriel.co657a3.model.json.Site;
+import uk.co.johngabriel.co657a3.model.json.Zone;
+
+/**
+ * Everything one update cycle produced: the sites, zones and devices, the problems found with them,
+ * and which devices we were expecting. Its collections never change once it's made, and it's swapped in
+ * all at once, so a request that holds on to one always sees the same set of things, however many more
+ * cycles finish while it's being served.
+ *
+ * The updater carries its sites, zones and devices over from one cycle to the next and brings them up to date
+ * in place, so what it publishes is made with copyOf(): copies of them as they were at the end of the cycle,
+ * which nothing touches again. Their readings aren't copied, only frozen; see ReadingSeries.freeze().
+ * @author John Gabriel
+ */
+public class Snapshot {
+	public static final Snapshot EMPTY = new Snapshot(0, new HashMap<>(), new HashMap<>(), new HashMap<>(),
+			new HashSet<>(), new ArrayList<>(), null);
+
+	private final long version;
+	private final Map<String, Device> devices;
+	private final Map<String, Zone> zones;
+	private final Map<String, Site> sites;
+	private final Set<String> expectedDevices;
+	private final List<Problem> problems;
+	private final LocalDateTime time;
+
+	// Made once here, rather than copied out of the maps on every request
+	private final List<Device> deviceList;
+	private final List<Zone> zoneList;
+	private final List<Site> siteList;
+
+	/**
+	 * The collections given are taken as they are, so nothing else should touch them afterwards.
+	 */
+	public Snapshot(long version, Map<String, Device> devices, Map<String, Zone> zones, Map<String, Site> sites,
+			Set<String> expectedDevices, List<Problem> problems, LocalDateTime time) {
+		this.version = version;
+		this.devices = Collections.unmodifiableMap(devices);
+		this.zones = Collections.unmodifiableMap(zones);
+		this.sites = Collections.unmodifiableMap(sites);
+		this.expectedDevices = Collections.unmodifiableSet(expectedDevices);
+		this.problems = Collections.unmodifiableList(problems);
+		this.time = time;
+		deviceList = Collections.unmodifiableList(new ArrayList<>(devices.values()));
+		zoneList = Collections.unmodifiableList(new ArrayList<>(zones.values()));
+		siteList = Collections.unmodifiableList(new ArrayList<>(sites.values()));
+	}
+
+	/**
+	 * @return A snapshot of copies of the given sites, zones and devices, and of the problems found with them,
+	 * linked to each other just as the originals are. Everything the originals link to has to be among them,
+	 * and nothing can be changing them while they're copied.
+	 */
+	public static Snapshot copyOf(long version, Map<String, Device> devices, Map<String, Zone> zones,
+			Map<String, Site> sites, Set<String> expectedDevices, List<Problem> problems, LocalDateTime time) {
+		IdentityHashMap<Site, Site> siteCopies = new IdentityHashMap<>();
+		IdentityHashMap<Zone, Zone> zoneCopies = new IdentityHashMap<>();
+		IdentityHashMap<Device, Device> deviceCopies = new IdentityHashMap<>();
+		for (Site site: sites.values()) {
+			Site siteCopy = new Site(site);
+			siteCopies.put(site, siteCopy);
+			for (Zone zone: site.getZones()) {
+				Zone zoneCopy = new Zone(zone);
+				zoneCopy.setSite(siteCopy);
+				siteCopy.addZone(zone.getId(), zoneCopy);
+				zoneCopies.put(zone, zoneCopy);
+			}
+		}
+		for (Device device: devices.values())
+			deviceCopies.put(device, new Device(device, siteCopies.get(device.getSite()), zoneCopies.get(device.getZone())));
+		// Only now that every device has its copy can they go into their sites and zones
+		for (Map.Entry<Site, Site> entry: siteCopies.entrySet())
+			entry.getValue().addDevices(copiesOf(entry.getKey().getDevices(), deviceCopies));
+		for (Map.Entry<Zone, Zone> entry: zoneCopies.entrySet())
+			entry.getValue().addDevices(copiesOf(entry.getKey().getDevices(), deviceCopies));
+		List<Problem> problemCopies = new ArrayList<>(problems.size());
+		for (Problem problem: problems) {
+			if (problem.getDevice() != null)
+				problemCopies.add(new Problem(deviceCopies.get(problem.getDevice()), problem.getMessage()));
+			else if (problem.getZone() != null)
+				problemCopies.add(new Problem(zoneCopies.get(problem.getZone()), problem.getMessage()));
+			else
+				problemCopies.add(new Problem(siteCopies.get(problem.getSite()), problem.getMessage()));
+		}
+		return new Snapshot(version, copiesOf(devices, deviceCopies), copiesOf(zones, zoneCopies), copiesOf(sites, siteCopies),
+				new HashSet<>(expectedDevices), problemCopies, time);
+	}
+
+	private static <T> List<T> copiesOf(List<T> originals, IdentityHashMap<T, T> copies) {
+		List<T> result = new ArrayList<>(originals.size());
+		for (T original: originals)
+			result.add(copies.get(original));
+		return result;
+	}
+
+	private static <T> Map<String, T> copiesOf(Map<String, T> originals, IdentityHashMap<T, T> copies) {
+		Map<String, T> result = new HashMap<>(originals.size() * 2);
+		for (Map.Entry<String, T> entry: originals.entrySet())
+			result.put(entry.getKey(), copies.get(entry.getValue()));
+		return result;
+	}
+
+	public long getVersion() { return version; }
+	public LocalDateTime getTime() { return time; }
+
+	public boolean hasDevice(String id) { return devices.containsKey(id); }
+	public Device getDevice(String id) { return devices.get(id); }
+
+	public boolean hasZone(String id) { return zones.containsKey(id); }
+	public Zone getZone(String id) { return zones.get(id); }
+
+	public boolean hasSite(String id) { return sites.containsKey(id); }
+	public Site getSite(String id) { return sites.get(id); }
+
+	public List<Device> getDevices() { return deviceList; }
+	public List<Zone> getZones() { return zoneList; }
+	public List<Site> getSites() { return siteList; }
+	public Set<String> getExpectedDevices() { return expectedDevices; }
+	public List<Problem> getProblems() { return problems; }
+}
@@ -0,0 +1,309 @@
+package uk.co.johngabriel.co657a3.model.json;
+
+import java.time.LocalDateTime;
+import java.util.Arrays;
+
+/**
+ * A read-only, compressed copy of a ReadingSeries, encoded as in Facebook's Gorilla: each timestamp is
+ * stored as the change in the gap since the last one, and each value as the bits that differ from the last one.
+ * The feeds give a reading at a fixed interval, and most of the values barely move from one to the next,
+ * so most readings come to a couple of bits for the time and not many more for the value.
+ *
+ * It can only be read in order, with a cursor. To keep range reads from having to start at the very beginning,
+ * the readings are split into blocks that each start afresh, and a cursor skips straight to the block it needs.
+ *
+ * @author John Gabriel
+ */
+public class CompressedSeries {
+	private static final int BLOCK_SIZE = 1024;
+
+	private DataType type;
+	private long[][] blocks;
+	private int[] counts;
+	private long[] firstTimes;
+	private int size;
+
+	/**
+	 * Makes a series out of blocks encoded earlier, as given by getBlock() and getBlockSize().
+	 */
+	public CompressedSeries(DataType type, long[][] blocks, int[] counts) {
+		this.type = type;
+		this.blocks = blocks;
+		this.counts = counts;
+		firstTimes = new long[blocks.length];
+		size = 0;
+		for (int i = 0; i < blocks.length; i++) {
+			firstTimes[i] = blocks[i][0]; // Every block starts with its first timestamp, as it is
+			size += counts[i];
+		}
+	}
+
+	/**
+	 * @return A compressed copy of the readings in the given series.
+	 */
+	public static CompressedSeries encode(ReadingSeries series) {
+		int n = series.size();
+		int blockCount = (n + BLOCK_SIZE - 1) / BLOCK_SIZE;
+		long[][] blocks = new long[blockCount][];
+		int[] counts = new int[blockCount];
+		BitWriter bits = new BitWriter();
+		for (int block = 0; block < blockCount; block++) {
+			int start = block * BLOCK_SIZE;
+			int end = Math.min(start + BLOCK_SIZE, n);
+			bits.reset();
+			long lastTime = series.getTime(start);
+			long lastDelta = 0;
+			long lastValue = Double.doubleToRawLongBits(series.getValue(start));
+			int leading = -1;
+			int trailing = 0;
+			bits.write(lastTime, 64);
+			bits.write(lastValue, 64);
+			for (int i = start + 1; i < end; i++) {
+				long time = series.getTime(i);
+				long delta = time - lastTime;
+				writeTimeChange(bits, delta - lastDelta);
+				lastTime = time;
+				lastDelta = delta;
+				long value = Double.doubleToRawLongBits(series.getValue(i));
+				long xor = value ^ lastValue;
+				lastValue = value;
+				if (xor == 0) {
+					bits.write(0, 1);
+					continue;
+				}
+				int nextLeading = Math.min(Long.numberOfLeadingZeros(xor), 31);
+				int nextTrailing = Long.numberOfTrailingZeros(xor);
+				if (leading != -1 && nextLeading >= leading && nextTrailing >= trailing) {
+					// The bits that changed fit in the same window as last time
+					bits.write(0b10, 2);
+					bits.write(xor >>> trailing, 64 - leading - trailing);
+				}
+				else {
+					leading = nextLeading;
+					trailing = nextTrailing;
+					int meaningful = 64 - leading - trailing;
+					bits.write(0b11, 2);
+					bits.write(leading, 5);
+					bits.write(meaningful - 1, 6);
+					bits.write(xor >>> trailing, meaningful);
+				}
+			}
+			blocks[block] = bits.toArray();
+			counts[block] = end - start;
+		}
+		return new CompressedSeries(series.getType(), blocks, counts);
+	}
+
+	private static boolean fits(long value, int bits) {
+		return value >= -(1L << (bits - 1)) && value < (1L << (bits - 1));
+	}
+
+	private static void writeTimeChange(BitWriter bits, long change) {
+		if (change == 0) bits.write(0, 1);
+		else if (fits(change, 7)) { bits.write(0b10, 2); bits.write(change, 7); }
+		else if (fits(change, 9)) { bits.write(0b110, 3); bits.write(change, 9); }
+		else if (fits(change, 12)) { bits.write(0b1110, 4); bits.write(change, 12); }
+		else if (fits(change, 32)) { bits.write(0b11110, 5); bits.write(change, 32); }
+		else { bits.write(0b11111, 5); bits.write(change, 64); }
+	}
+
+	private static long readTimeChange(BitReader bits) {
+		if (bits.read(1) == 0) return 0;
+		if (bits.read(1) == 0) return bits.readSigned(7);
+		if (bits.read(1) == 0) return bits.readSigned(9);
+		if (bits.read(1) == 0) return bits.readSigned(12);
+		if (bits.read(1) == 0) return bits.readSigned(32);
+		return bits.read(64);
+	}
+
+	public DataType getType() { return type; }
+	public int size() { return size; }
+	public int getBlockCount() { return blocks.length; }
+	public long[] getBlock(int i) { return blocks[i]; }
+	public int getBlockSize(int i) { return counts[i]; }
+
+	/**
+	 * @return Roughly how many bytes the encoded readings take up.
+	 */
+	public long getEncodedBytes() {
+		long total = 0;
+		for (long[] block: blocks)
+			total += block.length * 8L;
+		return total;
+	}
+
+	/**
+	 * @return A plain series with the same readings.
+	 */
+	public ReadingSeries decode() {
+		ReadingSeries result = new ReadingSeries(type);
+		Cursor cursor = cursor();
+		while (cursor.next())
+			result.add(cursor.getTime(), cursor.getValue());
+		return result;
+	}
+
+	public Cursor cursor() {
+		return new Cursor(0, Long.MIN_VALUE, Long.MAX_VALUE);
+	}
+
+	/**
+	 * @return A cursor over the readings from the given time (inclusive) to the other (exclusive), in epoch milliseconds.
+	 */
+	public Cursor cursor(long from, long to) {
+		// Start from the last block that starts before the time we want; it might end with readings at that time
+		int low = 0;
+		int high = firstTimes.length;
+		while (low < high) {
+			int mid = (low + high) >>> 1;
+			if (firstTimes[mid] < from) low = mid + 1;
+			else high = mid;
+		}
+		return new Cursor(Math.max(low - 1, 0), from, to);
+	}
+
+	/**
+	 * Decodes the readings one at a time, in order.
+	 */
+	public class Cursor {
+		private int block;
+		private int remaining;
+		private long from;
+		private long to;
+		private BitReader bits;
+		private long time;
+		private long delta;
+		private long value;
+		private int leading;
+		private int trailing;
+
+		private Cursor(int block, long from, long to) {
+			this.block = block - 1;
+			this.from = from;
+			this.to = to;
+			remaining = 0;
+			bits = new BitReader();
+		}
+
+		/**
+		 * Moves on to the next reading.
+		 * @return Whether there was one.
+		 */
+		public boolean next() {
+			while (true) {
+				if (remaining == 0) {
+					if (++block >= blocks.length) return false;
+					bits.reset(blocks[block]);
+					remaining = counts[block] - 1;
+					time = bits.read(64);
+					value = bits.read(64);
+					delta = 0;
+					leading = -1;
+				}
+				else {
+					remaining--;
+					delta += readTimeChange(bits);
+					time += delta;
+					if (bits.read(1) != 0) {
+						if (bits.read(1) != 0) {
+							leading = (int) bits.read(5);
+							trailing = 64 - leading - ((int) bits.read(6) + 1);
+						}
+						value ^= bits.read(64 - leading - trailing) << trailing;
+					}
+				}
+				if (time >= to) {
+					remaining = 0;
+					block = blocks.length;
+					return false;
+				}
+				if (time >= from) return true;
+			}
+		}
+
+		/**
+		 * @return The timestamp of the current reading, in epoch milliseconds.
+		 */
+		public long getTime() { return time; }
+
+		/**
+		 * @return The raw value of the current reading.
+		 */
+		public double getValue() { return Double.longBitsToDouble(value); }
+
+		public DataType getType() { return type; }
+
+		public LocalDateTime getTimestamp() {
+			return ReadingSeries.fromEpochMilli(time);
+		}
+
+		/**
+		 * @return The current reading, as a Reading object. Only for handing out.
+		 */
+		public Reading getReading() {
+			return new Reading(getTimestamp(), getValue(), type);
+		}
+	}
+
+	/**
+	 * Packs values of any number of bits into longs, from the most significant bit down.
+	 */
+	private static class BitWriter {
+		private long[] words = new long[16];
+		private long position;
+
+		void reset() {
+			Arrays.fill(words, 0);
+			position = 0;
+		}
+
+		void write(long value, int count) {
+			if (count < 64) value &= (1L << count) - 1;
+			int word = (int) (position >>> 6);
+			int free = 64 - (int) (position & 63);
+			if (word + 1 >= words.length)
+				words = Arrays.copyOf(words, words.length * 2);
+			if (count <= free)
+				words[word] |= value << (free - count);
+			else {
+				words[word] |= value >>> (count - free);
+				words[word + 1] |= value << (64 - (count - free));
+			}
+			position += count;
+		}
+
+		long[] toArray() {
+			return Arrays.copyOf(words, (int) ((position + 63) >>> 6));
+		}
+	}
+
+	private static class BitReader {
+		private long[] words;
+		private long position;
+
+		void reset(long[] words) {
+			this.words = words;
+			position = 0;
+		}
+
+		long read(int count) {
+			int word = (int) (position >>> 6);
+			int free = 64 - (int) (position & 63);
+			long result;
+			if (count <= free) {
+				result = words[word] >>> (free - count);
+				if (count < 64) result &= (1L << count) - 1;
+			}
+			else {
+				int rest = count - free;
+				result = ((words[word] & ((1L << free) - 1)) << rest) | (words[word + 1] >>> (64 - rest));
+			}
+			position += count;
+			return result;
+		}
+
+		long readSigned(int count) {
+			return (read(count) << (64 - count)) >> (64 - count);
+		}
+	}
+}
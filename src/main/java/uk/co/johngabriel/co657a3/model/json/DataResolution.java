@@ -5,18 +5,21 @@ package uk.co.johngabriel.co657a3.model.json;
  * @author John Gabriel
  */
 public enum DataResolution {
-	EVERY_MINUTE("every minute", 30),
-	EVERY_10MINUTES("every 10 minutes", 300),
-	EVERY_HOUR("every hour", 30*60);
+	EVERY_MINUTE("every minute", 30, 60),
+	EVERY_10MINUTES("every 10 minutes", 300, 10*60),
+	EVERY_HOUR("every hour", 30*60, 60*60);
 	
 	private String label;
 	private long margin;
+	private long interval;
 	
-	DataResolution(String label, long margin) {
+	DataResolution(String label, long margin, long interval) {
 		this.label = label;
 		this.margin = margin;
+		this.interval = interval;
 	}
 	
 	public String getLabel() { return label; }
 	public long getMargin() { return margin; }
+	public long getInterval() { return interval; } // How many seconds apart readings at this resolution are
 }
@@ -2,11 +2,13 @@ package uk.co.johngabriel.co657a3.model.json;
 
 import java.time.LocalDateTime;
 import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.HashMap;
-import java.util.HashSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.IdentityHashMap;
 import java.util.List;
-import java.util.stream.Collectors;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -20,16 +22,66 @@ import uk.co.johngabriel.co657a3.things.Prettyfier;
  */
 public class Device {
 	private static final Logger LOG = LoggerFactory.getLogger(Device.class);
-
+	
+	/**
+	 * A merge of all of one type's series, which keeps itself up to date as they grow.
+	 */
+	private static class MergedSeries {
+		private final ReadingSeries[] sources;
+		private final int[] positions; // How much of each source is in the merge so far
+		private final ReadingSeries series;
+		private int lastSource; // Which source the newest reading in the merge came from
+		
+		private MergedSeries(DataType type, ReadingSeries[] sources) {
+			this.sources = sources;
+			positions = new int[sources.length];
+			series = new ReadingSeries(type);
+			lastSource = -1;
+			update(sources);
+		}
+		
+		/**
+		 * Appends whatever the sources have gained since last time, as long as it all comes after what's already here.
+		 * @return Whether it could; if not, the merge has to be made again from scratch.
+		 */
+		private synchronized boolean update(ReadingSeries[] current) {
+			if (current.length != sources.length) return false;
+			long last = series.getLastTime();
+			for (int i = 0; i < sources.length; i++) {
+				// A source that's been replaced has had readings slotted in somewhere, so our positions mean nothing now
+				if (current[i] != sources[i]) return false;
+				if (positions[i] == sources[i].size()) continue;
+				long first = sources[i].getTime(positions[i]);
+				// Anything at the same time as our newest reading is fine if it'd lose out to that one anyway
+				if (first < last || (first == last && i < lastSource)) return false;
+			}
+			ReadingCursor cursor = new ReadingCursor(sources, positions, true);
+			while (cursor.next()) {
+				if (!series.isEmpty() && cursor.getTime() == series.getLastTime()) continue;
+				series.add(cursor.getTime(), cursor.getValue());
+				lastSource = cursor.getSource();
+			}
+			for (int i = 0; i < sources.length; i++)
+				positions[i] = cursor.getPosition(i);
+			return true;
+		}
+	}
+	
 	private String id;
 	private String name;
 	private DeviceType type;
 	private Site site;
 	private Zone zone;
-	private LocalDateTime lastConnection;
-	private String softwareVersion;
-	private ArrayList<DeviceData> data;
-	private HashMap<DataType, Ideal> ideals;
+	private volatile LocalDateTime lastConnection;
+	private volatile String softwareVersion;
+	private volatile ArrayList<DeviceData> data; // Replaced, never modified, once published
+	private volatile EnumMap<DataType, EnumMap<DataResolution, DeviceData>> index; // Same data, by type then resolution; likewise
+	private volatile List<DataType> types; // Likewise
+	private volatile int typeMask; // Bit n is set if we have data of the DataType with ordinal n
+	private volatile int resolutionMask; // Likewise, for DataResolution
+	private ConcurrentHashMap<DataType, Ideal> ideals;
+	private ConcurrentHashMap<DataType, Reading> latest; // The newest reading of each type, across all resolutions
+	private ConcurrentHashMap<DataType, MergedSeries> merged; // getAllSeries' results, for as long as they're current
 
 	public Device(String id, String name, DeviceType type, Site site, Zone zone, LocalDateTime lastConnection, String softwareVersion) {
 		this.id = id;
@@ -40,7 +92,48 @@ public class Device {
 		this.lastConnection = lastConnection;
 		this.softwareVersion = softwareVersion;
 		data = new ArrayList<>();
-		ideals = new HashMap<>();
+		index = new EnumMap<>(DataType.class);
+		types = Collections.emptyList();
+		typeMask = 0;
+		resolutionMask = 0;
+		ideals = new ConcurrentHashMap<>();
+		latest = new ConcurrentHashMap<>();
+		merged = new ConcurrentHashMap<>();
+	}
+	
+	/**
+	 * Makes a copy of another as it is now, in the given site and zone, with copies of its data.
+	 */
+	public Device(Device other, Site site, Zone zone) {
+		id = other.id;
+		name = other.name;
+		type = other.type;
+		this.site = site;
+		this.zone = zone;
+		synchronized (other) {
+			lastConnection = other.lastConnection;
+			softwareVersion = other.softwareVersion;
+			IdentityHashMap<DeviceData, DeviceData> copies = new IdentityHashMap<>();
+			data = new ArrayList<>(other.data.size());
+			for (DeviceData next: other.data) {
+				DeviceData copy = new DeviceData(next, site, zone);
+				copies.put(next, copy);
+				data.add(copy);
+			}
+			index = new EnumMap<>(DataType.class);
+			for (Map.Entry<DataType, EnumMap<DataResolution, DeviceData>> entry: other.index.entrySet()) {
+				EnumMap<DataResolution, DeviceData> byResolution = new EnumMap<>(DataResolution.class);
+				for (Map.Entry<DataResolution, DeviceData> next: entry.getValue().entrySet())
+					byResolution.put(next.getKey(), copies.get(next.getValue()));
+				index.put(entry.getKey(), byResolution);
+			}
+			types = other.types;
+			typeMask = other.typeMask;
+			resolutionMask = other.resolutionMask;
+			latest = new ConcurrentHashMap<>(other.latest);
+		}
+		ideals = new ConcurrentHashMap<>(other.ideals);
+		merged = new ConcurrentHashMap<>();
 	}
 
 	public String getId() { return id; }
@@ -53,105 +146,154 @@ public class Device {
 	public ArrayList<DeviceData> getData() { return data; }
 	public Ideal getIdeal(DataType type) { return ideals.get(type); }
 	
-	public void addData(DeviceData dataToAdd) { data.add(dataToAdd); }
-	public void setIdeal(DataType type, Ideal ideal) { ideals.put(type, ideal); }
+	public void setLastConnection(LocalDateTime lastConnection) { this.lastConnection = lastConnection; }
+	public void setSoftwareVersion(String softwareVersion) { this.softwareVersion = softwareVersion; }
+	
+	/**
+	 * Sets the ideal for the given type; null if there isn't one any more.
+	 */
+	public void setIdeal(DataType type, Ideal ideal) {
+		if (ideal == null) ideals.remove(type);
+		else ideals.put(type, ideal);
+	}
+	
+	public synchronized void addData(DeviceData dataToAdd) {
+		DataType type = dataToAdd.getType();
+		ArrayList<DeviceData> next = new ArrayList<>(data);
+		next.add(dataToAdd);
+		// Rebuild the index around it; readers only ever see a finished one
+		EnumMap<DataType, EnumMap<DataResolution, DeviceData>> nextIndex = new EnumMap<>(DataType.class);
+		for (Map.Entry<DataType, EnumMap<DataResolution, DeviceData>> entry: index.entrySet())
+			nextIndex.put(entry.getKey(), new EnumMap<>(entry.getValue()));
+		nextIndex.computeIfAbsent(type, i -> new EnumMap<>(DataResolution.class)).putIfAbsent(dataToAdd.getResolution(), dataToAdd);
+		List<DataType> nextTypes = new ArrayList<>(nextIndex.keySet());
+		updateLatest(dataToAdd.getLatestReading());
+		index = nextIndex;
+		types = Collections.unmodifiableList(nextTypes);
+		data = next;
+		// The masks go last, so anyone who sees a bit set will also see the index that goes with it
+		resolutionMask |= 1 << dataToAdd.getResolution().ordinal();
+		typeMask |= 1 << type.ordinal();
+	}
+	
+	/**
+	 * Adds the readings to the DeviceData we already have for that type and resolution, or adds it as it is if we don't have one.
+	 * @return How many were dropped for being older than what's already stored.
+	 */
+	public synchronized int addReadings(DeviceData dataToAdd) {
+		DeviceData existing = getDeviceData(dataToAdd.getType(), dataToAdd.getResolution());
+		if (existing == null) {
+			addData(dataToAdd);
+			return 0;
+		}
+		int dropped = existing.addReadings(dataToAdd);
+		updateLatest(dataToAdd.getLatestReading());
+		return dropped;
+	}
+	
+	private void updateLatest(Reading reading) {
+		if (reading == null) return;
+		latest.merge(reading.getType(), reading, (a, b) -> b.getTimestamp().isAfter(a.getTimestamp()) ? b : a);
+	}
 	
 	/**
 	 * @return Whether this device has any data of the given type.
 	 */
 	public boolean hasData(DataType type) {
-		for (DeviceData next: data)
-			if (next.getType() == type) return true;
-		return false;
-		//return data.stream().anyMatch(i -> i.getType() == type);
+		return (typeMask & (1 << type.ordinal())) != 0;
+	}
+	
+	/**
+	 * @return Whether this device has any data at the given resolution.
+	 */
+	public boolean hasData(DataResolution resolution) {
+		return (resolutionMask & (1 << resolution.ordinal())) != 0;
 	}
 	
 	/**
 	 * @return What data types this device gathers.
 	 */
 	public List<DataType> getTypes() {
-		return Arrays.asList(DataType.values()).stream()
-				.filter(i -> hasData(i))
-				.collect(Collectors.toList());
+		return types;
 	}
 	
 	/**
 	 * @return The DeviceData of the given type and resolution, if it can; null otherwise.
 	 */
 	public DeviceData getDeviceData(DataType type, DataResolution resolution) {
-		return data.stream()
-				.filter(i ->  i.getType() == type)
-				.filter(i -> i.getResolution() == resolution)
-				.findFirst()
-				.orElse(null);
+		EnumMap<DataResolution, DeviceData> byResolution = index.get(type);
+		return (byResolution == null) ? null : byResolution.get(resolution);
 	}
 	
 	/**
-	 * @return A list of all the timestamps for which we have data, rounded to the nearest minute.
+	 * @return The DeviceData of the given type at every resolution we have it at.
 	 */
-	public List<LocalDateTime> getTimestamps() {
-		HashSet<LocalDateTime> timestamps = new HashSet<>();
-		for (DataType next: getTypes()) {
-			ArrayList<Reading> readings = getAllReadings(next);
-			readings.parallelStream()
-			.map(i -> Prettyfier.toNearestMinute(i.getTimestamp()))
-			.forEach(i -> {
-				timestamps.add(i);
-			});
+	private Collection<DeviceData> getDeviceData(DataType type) {
+		EnumMap<DataResolution, DeviceData> byResolution = index.get(type);
+		return (byResolution == null) ? Collections.emptyList() : byResolution.values();
+	}
+	
+	/**
+	 * @return The timestamps the cursor goes through, rounded to the nearest minute, newest first and without repeats.
+	 */
+	private static List<LocalDateTime> getRoundedTimestamps(ReadingCursor cursor) {
+		ArrayList<LocalDateTime> results = new ArrayList<>();
+		long last = 0;
+		while (cursor.next()) {
+			// Rounding doesn't change the order, so any repeats will be next to each other
+			long time = Prettyfier.toNearestMinute(cursor.getTime());
+			if (results.isEmpty() || time != last) {
+				results.add(ReadingSeries.fromEpochMilli(time));
+				last = time;
+			}
 		}
-		List<LocalDateTime> results = timestamps.stream()
-				.collect(Collectors.toList());
-		results.sort((a, b) -> b.compareTo(a));
+		Collections.reverse(results);
 		return results;
 	}
 	
+	/**
+	 * @return A list of all the timestamps for which we have data, rounded to the nearest minute.
+	 */
+	public List<LocalDateTime> getTimestamps() {
+		List<ReadingSeries> all = new ArrayList<>();
+		for (DataType next: types)
+			all.add(getAllSeries(next));
+		return getRoundedTimestamps(new ReadingCursor(all, false));
+	}
+	
 	/**
 	 * @return A list of all the timestamps for which we have data at the given resolution, rounded to the nearest minute.
 	 */
 	public List<LocalDateTime> getTimestamps(DataResolution resolution) {
-		HashSet<LocalDateTime> timestamps = new HashSet<>();
-		for (DataType next: getTypes()) {
-			DeviceData data = getDeviceData(next, resolution);
-			data.getReadings().parallelStream()
-			.map(i -> Prettyfier.toNearestMinute(i.getTimestamp()))
-			.forEach(i -> {
-				timestamps.add(i);
-			});
-		}
-		List<LocalDateTime> results = timestamps.stream()
-				.collect(Collectors.toList());
-		results.sort((a, b) -> b.compareTo(a));
-		return results;
+		List<ReadingSeries> all = new ArrayList<>();
+		for (DataType next: types)
+			all.add(getDeviceData(next, resolution).getSeries());
+		return getRoundedTimestamps(new ReadingCursor(all, false));
 	}
 	
 	/**
 	 * @return The latest reading of the given type, if it exists; null otherwise.
 	 */
 	public Reading getLatestReading(DataType type) {
-		return data.stream()
-				.filter(i -> i.getType() == type)
-				.map(i -> i.getLatestReading())
-				.sorted((a, b) -> b.getTimestamp().compareTo(a.getTimestamp()))
-				.findFirst()
-				.orElse(null);
+		return latest.get(type);
 	}
 	
 	/**
 	 * @return The reading at the given time, if it exists; null otherwise.
 	 */
 	public Reading getReadingAtDateTime(DataType type, DataResolution resolution, LocalDateTime time) {
-		return getDeviceData(type, resolution).getReadings().stream()
-				.filter(i -> i.getTimestamp().equals(time))
-				.findFirst().orElse(null);
+		return getDeviceData(type, resolution).getReadingAt(time);
 	}
 	
 	/**
 	 * @return The reading at the given time, if it exists; null otherwise.
 	 */
 	public Reading getReadingAtDateTime(DataType type, LocalDateTime time) {
-		return getAllReadings(type).stream()
-				.filter(i -> i.getTimestamp().equals(time))
-				.findFirst().orElse(null);
+		for (DeviceData next: getDeviceData(type)) {
+			Reading reading = next.getReadingAt(time);
+			if (reading != null) return reading;
+		}
+		return null;
 	}
 	
 	/**
@@ -159,124 +301,146 @@ public class Device {
 	 */
 	public boolean hasReadingCloseToDateTime(DataType type, LocalDateTime time, DataResolution resolution) {
 		if (!hasData(type)) return false;
-		return getDeviceData(type, resolution).getReadings().stream()
-				.anyMatch(i -> i.getTimestamp().isAfter(time.minusSeconds(30))
-						&& i.getTimestamp().isBefore(time.plusSeconds(30)));
+		return getDeviceData(type, resolution).getReadingClosestTo(time, 30) != null;
 	}
 	
 	/**
 	 * @return The reading within a minute of the given time, if it exists; null otherwise.
 	 */
 	public Reading getReadingClosestToDateTime(DataType type, LocalDateTime time, DataResolution resolution) {
-		return getDeviceData(type, resolution).getReadings().stream()
-				.filter(i -> i.getTimestamp().isAfter(time.minusSeconds(resolution.getMargin())))
-				.filter(i -> i.getTimestamp().isBefore(time.plusSeconds(resolution.getMargin())))
-				.findFirst().orElse(null);
+		return getDeviceData(type, resolution).getReadingClosestTo(time, resolution.getMargin());
 	}
 	
 	/**
 	 * @return The reading within a minute of the given time, if it exists; null otherwise.
 	 */
 	public Reading getReadingClosestToDateTime(DataType type, LocalDateTime time) {
-		return getAllReadings(type).stream()
-				.filter(i -> i.getTimestamp().isAfter(time.minusSeconds(30)))
-				.filter(i -> i.getTimestamp().isBefore(time.plusSeconds(30)))
-				.findFirst().orElse(null);
+		long target = ReadingSeries.toEpochMilli(time);
+		Reading best = null;
+		long bestDistance = Long.MAX_VALUE;
+		// Each resolution is searched separately, store and all, rather than merging them all first
+		for (DeviceData next: getDeviceData(type)) {
+			Reading reading = next.getReadingClosestTo(time, 30);
+			if (reading == null) continue;
+			long distance = Math.abs(ReadingSeries.toEpochMilli(reading.getTimestamp()) - target);
+			if (distance < bestDistance) {
+				best = reading;
+				bestDistance = distance;
+			}
+		}
+		return best;
+	}
+	
+	/**
+	 * @return All readings, across all resolutions, with the given type, merged into one series.
+	 * The merge is kept, and only has what's new added to it as readings come in.
+	 */
+	private ReadingSeries getAllSeries(DataType type) {
+		Collection<DeviceData> all = getDeviceData(type);
+		if (all.size() == 1)
+			return all.iterator().next().getSeries(); // Nothing to merge
+		ReadingSeries[] sources = new ReadingSeries[all.size()];
+		int i = 0;
+		for (DeviceData next: all)
+			sources[i++] = next.getSeries();
+		MergedSeries cached = merged.get(type);
+		if (cached == null || !cached.update(sources)) {
+			// To avoid duplicates, only the first reading at any given time is kept
+			cached = new MergedSeries(type, sources);
+			merged.put(type, cached);
+		}
+		return cached.series;
+	}
+	
+	/**
+	 * @return A cursor over all readings, across all resolutions, with the given type, oldest first.
+	 */
+	public ReadingCursor getAllReadingsCursor(DataType type) {
+		return new ReadingCursor(Collections.singletonList(getAllSeries(type)), false);
 	}
 	
 	/**
 	 * @return A list of all readings, across all resolutions, with the given type.
 	 */
 	public ArrayList<Reading> getAllReadings(DataType type) {
-		ArrayList<Reading> results = new ArrayList<>();
-		HashSet<LocalDateTime> seen = new HashSet<>();
-		// First, get all the DeviceData that will contribute to this
-		DeviceData[] contributors = data.stream()
-				.filter(i -> i.getType() == type)
-				.toArray(DeviceData[]::new);
-		for (DeviceData next: contributors) {
-			for (Reading nextReading: next.getReadings()) {
-				LocalDateTime timestamp = nextReading.getTimestamp();
-				// To avoid duplicates, make sure we haven't seen this timestamp before
-				if (!seen.contains(timestamp)) {
-					results.add(nextReading);
-					seen.add(timestamp);
-				}
-			}
-		}
+		ReadingSeries readings = getAllSeries(type);
+		ArrayList<Reading> results = new ArrayList<>(readings.size());
+		for (int i = 0; i < readings.size(); i++)
+			results.add(readings.getReading(i));
+		return results;
+	}
+	
+	/**
+	 * @return The combined stats of all readings, across all resolutions, with the given type.
+	 */
+	public RunningStats getStats(DataType type) {
+		RunningStats results = new RunningStats();
+		for (DeviceData next: getDeviceData(type))
+			results.merge(next.getStats());
 		return results;
 	}
 	
+	/**
+	 * @return What's normal for the readings of the given type lately, from the finest resolution that's seen
+	 * enough of them to tell; empty if none have.
+	 */
+	public ExponentialStats getBaseline(DataType type) {
+		for (DataResolution resolution: DataResolution.values()) {
+			DeviceData next = getDeviceData(type, resolution);
+			if (next == null) continue;
+			ExponentialStats baseline = next.getBaseline();
+			if (baseline.isReady()) return baseline;
+		}
+		return new ExponentialStats();
+	}
+	
 	/**
 	 * @return The average of all readings of the given type, if it can; -1 otherwise.
 	 */
 	public double getAverageReading(DataType type) {
-		return getAllReadings(type).stream()
-				.mapToDouble(i -> i.getReading())
-				.average()
-				.orElse(-1);
+		RunningStats stats = getStats(type);
+		return stats.isEmpty() ? -1 : Prettyfier.getReadingValue(stats.getMean(), type);
 	}
 	
 	/**
 	 * @return The average of all readings of the given type, if it can; -1 otherwise.
 	 */
 	public double getRawAverageReading(DataType type) {
-		return getAllReadings(type).stream()
-				.mapToDouble(i -> i.getRawReading())
-				.average()
-				.orElse(-1);
+		RunningStats stats = getStats(type);
+		return stats.isEmpty() ? -1 : stats.getMean();
 	}
 	
 	/**
 	 * @return The average of all readings of the given type and resolution, if it can; -1 otherwise.
 	 */
 	public double getAverageReading(DataType type, DataResolution resolution) {
-		return getDeviceData(type, resolution).getReadings().stream()
-				.mapToDouble(i -> i.getReading())
-				.average()
-				.orElse(-1);
+		RunningStats stats = getDeviceData(type, resolution).getStats();
+		return stats.isEmpty() ? -1 : Prettyfier.getReadingValue(stats.getMean(), type);
 	}
 	
 	/**
 	 * @return The average of all readings of the given type and resolution, if it can; -1 otherwise.
 	 */
 	public double getAverageRawReading(DataType type, DataResolution resolution) {
-		return getDeviceData(type, resolution).getReadings().stream()
-				.mapToDouble(i -> i.getRawReading())
-				.average()
-				.orElse(-1);
+		RunningStats stats = getDeviceData(type, resolution).getStats();
+		return stats.isEmpty() ? -1 : stats.getMean();
 	}
 	
 	/**
 	 * @return The standard deviation of all readings of the given type, if it can; -1 otherwise.
 	 */
 	public double getStandardDeviation(DataType type) {
-		double average = getAverageReading(type);
-		if (average == -1) return -1;
-		double variance = getAllReadings(type).stream()
-				.mapToDouble(i -> i.getReading())
-				.map(i -> i - average)
-				.map(i -> i*i)
-				.average()
-				.orElse(-1);
-		if (variance == -1) return -1;
-		else return Math.sqrt(variance);
+		RunningStats stats = getStats(type);
+		if (stats.isEmpty()) return -1;
+		return Prettyfier.getReadingDeviation(stats.getMean(), stats.getStandardDeviation(), type);
 	}
 	
 	/**
 	 * @return The standard deviation of all readings of the given type, if it can; -1 otherwise.
 	 */
 	public double getStandardDeviationRaw(DataType type) {
-		double average = getAverageReading(type);
-		if (average == -1) return -1;
-		double variance = getAllReadings(type).stream()
-				.mapToDouble(i -> i.getRawReading())
-				.map(i -> i - average)
-				.map(i -> i*i)
-				.average()
-				.orElse(-1);
-		if (variance == -1) return -1;
-		else return Math.sqrt(variance);
+		RunningStats stats = getStats(type);
+		return stats.isEmpty() ? -1 : stats.getStandardDeviation();
 	}
 	
 	/**
@@ -301,12 +465,8 @@ public class Device {
 	 * @return The LocalDateTime of the latest reading of the given type, if possible; null otherwise.
 	 */
 	public LocalDateTime getTimeOfLastReading(DataType type) {
-		return data.stream()
-				.filter(i -> i.getType() == type)
-				.map(i -> i.getLatestReading().getTimestamp())
-				.sorted((a, b) -> b.compareTo(a))
-				.findFirst()
-				.orElse(null);
+		Reading reading = latest.get(type);
+		return (reading == null) ? null : reading.getTimestamp();
 	}
 	
 	/**
@@ -323,11 +483,8 @@ public class Device {
 		//if (last == null) return IdealStatus.UNKNOWN;
 		// Okay, so do we know what sort of boundaries we should be in?
 		Ideal ideal = ideals.get(type);
-		double average = getRawAverageReading(type);
-		double sd = getStandardDeviationRaw(type);
 		double current = getLatestReading(type).getRawReading();
-		double sdMulti = type.getSDMultiplier();
-		if ((current > average + (sdMulti*sd)) || (current < average - (sdMulti*sd))) return IdealStatus.EXTREME;
+		if (getBaseline(type).isExtreme(current, type.getSDMultiplier())) return IdealStatus.EXTREME;
 		else if (ideal == null) return IdealStatus.UNKNOWN;
 		else if (current > ideal.getMax()) return IdealStatus.OVER;
 		else if (current < ideal.getMin()) return IdealStatus.UNDER;
@@ -1,6 +1,11 @@
 package uk.co.johngabriel.co657a3.model.json;
 
+import java.time.LocalDateTime;
 import java.util.ArrayList;
+import java.util.List;
+
+import uk.co.johngabriel.co657a3.things.RetentionPolicy;
+import uk.co.johngabriel.co657a3.things.SegmentStore;
 
 /**
  * A set of readings taken by a device of a specific type, and with specific regularity.
@@ -15,10 +20,21 @@ public class DeviceData {
 	private DataType type;
 	private DataResolution resolution;
 	private String scale;
-	private ArrayList<Reading> readings;
+	private volatile ReadingSeries readings; // Always in time order; with a store, only the newest of them
+	private volatile SegmentStore store; // Where every reading's kept for good; null to keep them all on the heap
+	private RunningStats evicted; // The stats of the readings that have gone from the heap (guarded by this)
+	private ExponentialStats baseline; // What's normal for the readings lately, for telling what's extreme (guarded by this)
 	
 	public DeviceData(String id, String name, Site site, Zone zone, String softwareVersion, DataType type,
 			DataResolution resolution, String scale) {
+		this(id, name, site, zone, softwareVersion, type, resolution, scale, ExponentialStats.DEFAULT_HALF_LIFE);
+	}
+	
+	/**
+	 * @param baselineHalfLife How long it takes a reading to count half as much towards what's normal, in milliseconds.
+	 */
+	public DeviceData(String id, String name, Site site, Zone zone, String softwareVersion, DataType type,
+			DataResolution resolution, String scale, long baselineHalfLife) {
 		this.id = id;
 		this.name = name;
 		this.site = site;
@@ -27,7 +43,30 @@ public class DeviceData {
 		this.type = type;
 		this.resolution = resolution;
 		this.scale = scale;
-		readings = new ArrayList<>();
+		readings = new ReadingSeries(type);
+		evicted = new RunningStats();
+		baseline = new ExponentialStats(baselineHalfLife);
+	}
+	
+	/**
+	 * Makes a copy of another as it is now, in the given site and zone. It shares the other's readings and store,
+	 * but never sees anything added to them afterwards, and can't be added to itself; see ReadingSeries.freeze().
+	 */
+	public DeviceData(DeviceData other, Site site, Zone zone) {
+		id = other.id;
+		name = other.name;
+		this.site = site;
+		this.zone = zone;
+		softwareVersion = other.softwareVersion;
+		type = other.type;
+		resolution = other.resolution;
+		scale = other.scale;
+		synchronized (other) {
+			readings = other.readings.freeze();
+			store = other.store;
+			evicted = new RunningStats(other.evicted);
+			baseline = new ExponentialStats(other.baseline);
+		}
 	}
 
 	public String getId() { return id; }
@@ -38,18 +77,222 @@ public class DeviceData {
 	public DataType getType() { return type; }
 	public DataResolution getResolution() { return resolution; }
 	public String getScale() { return scale; }
-	public ArrayList<Reading> getReadings() { return readings; }
+	public ReadingSeries getSeries() { return readings; }
+	public SegmentStore getStore() { return store; }
 	
-	public void addReading(Reading reading) { readings.add(reading); }
+	/**
+	 * Keeps every reading, both those here already and any added later, in the given store too,
+	 * and lets the older ones go from the heap once they're in it.
+	 */
+	public synchronized void setStore(SegmentStore store) {
+		this.store = store;
+		persist();
+	}
+	
+	/**
+	 * @return The stats of all the readings, including any that are only in the store now.
+	 */
+	public synchronized RunningStats getStats() {
+		RunningStats stats = readings.getStats();
+		stats.merge(evicted);
+		return stats;
+	}
+	
+	/**
+	 * @return A copy of what's normal for the readings lately.
+	 */
+	public synchronized ExponentialStats getBaseline() {
+		return new ExponentialStats(baseline);
+	}
+	
+	/**
+	 * Takes any readings in the series newer than the baseline's seen into account in it.
+	 */
+	private void updateBaseline(ReadingSeries other) {
+		for (int i = other.upperBound(baseline.getLastTime()); i < other.size(); i++)
+			baseline.add(other.getTime(i), other.getValue(i));
+	}
+	
+	/**
+	 * @return The newest timestamp we've ingested, if any; null otherwise.
+	 */
+	public LocalDateTime getLastTimestamp() {
+		long last = readings.getLastTime();
+		return (last == Long.MIN_VALUE) ? null : ReadingSeries.fromEpochMilli(last);
+	}
+	
+	/**
+	 * @return A cursor over the stored readings between the given times (in epoch milliseconds) that aren't on the heap.
+	 */
+	private SegmentCursor scanStore(ReadingSeries readings, long from, long to) {
+		SegmentStore store = this.store;
+		long heapStart = readings.isEmpty() ? Long.MAX_VALUE : readings.getTime(0);
+		// Most lookups are for recent readings, so don't go near the store unless some of the range is only there
+		if (store == null || from >= heapStart) return SegmentCursor.empty(type);
+		return store.scan(id, type, resolution, from, Math.min(to, heapStart));
+	}
+	
+	/**
+	 * @return All the readings on the heap, as Reading objects. These are made on the spot, so only use this for handing them out.
+	 */
+	public ArrayList<Reading> getReadings() {
+		ReadingSeries readings = this.readings;
+		int size = readings.size();
+		ArrayList<Reading> results = new ArrayList<>(size);
+		for (int i = 0; i < size; i++)
+			results.add(readings.getReading(i));
+		return results;
+	}
+	
+	/**
+	 * @return The readings from the given time (inclusive) to the given time (exclusive), as Reading objects.
+	 * Those that aren't on the heap any more are read back from the store.
+	 */
+	public ArrayList<Reading> getReadings(LocalDateTime from, LocalDateTime to) {
+		ReadingSeries readings = this.readings;
+		long fromTime = ReadingSeries.toEpochMilli(from);
+		long toTime = ReadingSeries.toEpochMilli(to);
+		SegmentCursor stored = scanStore(readings, fromTime, toTime);
+		int start = readings.lowerBound(fromTime);
+		int end = readings.lowerBound(toTime);
+		ArrayList<Reading> results = new ArrayList<>(stored.size() + Math.max(end - start, 0));
+		while (stored.next())
+			results.add(stored.getReading());
+		for (int i = start; i < end; i++)
+			results.add(readings.getReading(i));
+		return results;
+	}
+	
+	/**
+	 * @return Rollups of the readings from the given time (inclusive) to the other (exclusive), from the narrowest tier
+	 * that gives no more than the given number of them over that time, or else the widest. Empty if there's no store.
+	 * Only buckets that are over, and have been compacted since, are included, so the newest readings won't be.
+	 */
+	public ArrayList<Rollup> getRollups(LocalDateTime from, LocalDateTime to, int maxPoints) {
+		ArrayList<Rollup> results = new ArrayList<>();
+		SegmentStore store = this.store;
+		if (store == null) return results;
+		List<RetentionPolicy.Tier> tiers = store.getRollupTiers(resolution);
+		if (tiers.isEmpty()) return results;
+		long fromTime = ReadingSeries.toEpochMilli(from);
+		long toTime = ReadingSeries.toEpochMilli(to);
+		RetentionPolicy.Tier tier = tiers.get(tiers.size() - 1);
+		for (RetentionPolicy.Tier next: tiers)
+			if ((toTime - fromTime) / next.getWidth() <= maxPoints) {
+				tier = next;
+				break;
+			}
+		RollupCursor cursor = store.scanRollups(id, type, resolution, tier, fromTime, toTime);
+		results.ensureCapacity(cursor.size());
+		while (cursor.next())
+			results.add(cursor.getRollup());
+		return results;
+	}
+	
+	/**
+	 * @return The reading at exactly the given time, if there is one; null otherwise.
+	 */
+	public Reading getReadingAt(LocalDateTime time) {
+		ReadingSeries readings = this.readings;
+		long target = ReadingSeries.toEpochMilli(time);
+		int i = readings.indexOf(target);
+		if (i != -1) return readings.getReading(i);
+		SegmentCursor stored = scanStore(readings, target, target + 1);
+		return stored.next() ? stored.getReading() : null;
+	}
+	
+	/**
+	 * @return The reading closest to the given time, and less than the margin (in seconds) away from it, if there is one; null otherwise.
+	 */
+	public Reading getReadingClosestTo(LocalDateTime time, long margin) {
+		ReadingSeries readings = this.readings;
+		long target = ReadingSeries.toEpochMilli(time);
+		long within = margin * 1000;
+		int i = readings.indexNearest(target, within);
+		Reading best = (i == -1) ? null : readings.getReading(i);
+		long bestDistance = (i == -1) ? within : Math.abs(readings.getTime(i) - target);
+		// It might be closer to one that's only in the store
+		SegmentCursor stored = scanStore(readings, target - within + 1, target + within);
+		while (stored.next()) {
+			long distance = Math.abs(stored.getTime() - target);
+			if (distance < bestDistance) {
+				best = stored.getReading();
+				bestDistance = distance;
+			}
+		}
+		return best;
+	}
+	
+	/**
+	 * Adds a single reading with the given raw value.
+	 * @return 1 if it was dropped for being older than what's already stored; 0 if it was added.
+	 */
+	public int addReading(LocalDateTime timestamp, double value) {
+		ReadingSeries single = new ReadingSeries(type);
+		single.add(ReadingSeries.toEpochMilli(timestamp), value);
+		return addReadings(single);
+	}
+	
+	public int addReading(Reading reading) {
+		return addReading(reading.getTimestamp(), reading.getRawReading());
+	}
+	
+	/**
+	 * Adds all the readings from the given series. Safe to use on a DeviceData that's already in use.
+	 * Once there's a store, any older than the newest reading in it can't be stored any more, so they're dropped.
+	 * @return How many were dropped.
+	 */
+	public synchronized int addReadings(ReadingSeries other) {
+		SegmentStore store = this.store;
+		int dropped = (store == null) ? 0 : other.upperBound(store.getLastTime(id, type, resolution));
+		if (dropped > 0)
+			other = other.tail(dropped);
+		if (other.isEmpty()) return dropped;
+		if (other.getTime(0) >= readings.getLastTime())
+			readings.addAll(other);
+		else
+			// Out of order; slot them in to a copy, so anyone reading the old one isn't disturbed
+			readings = ReadingSeries.merge(readings, other, false);
+		updateBaseline(other);
+		persist();
+		return dropped;
+	}
+	
+	/**
+	 * Puts any new readings in the store, then lets go of the ones that are both in it and older than its heap window.
+	 * That's only done once there's a whole window's worth to let go of, so the rest aren't copied every time.
+	 */
+	private void persist() {
+		SegmentStore store = this.store;
+		if (store == null || readings.isEmpty()) return;
+		store.append(id, type, resolution, readings);
+		long window = store.getHeapWindow();
+		long keepFrom = readings.getLastTime() - window;
+		if (readings.getTime(0) >= keepFrom - window) return;
+		// Only what's made it into the store can go
+		long stored = store.getLastTime(id, type, resolution);
+		int cut = readings.lowerBound(Math.min(keepFrom, stored + 1));
+		if (cut == 0) return;
+		evicted.merge(readings.getStats(0, cut));
+		readings = readings.tail(cut);
+	}
+	
+	/**
+	 * Adds all the readings from another DeviceData of the same type and resolution.
+	 * Safe to use on a DeviceData that's already in use.
+	 * @return How many were dropped for being older than what's already stored.
+	 */
+	public int addReadings(DeviceData other) {
+		return addReadings(other.getSeries());
+	}
 	
 	/**
 	 * @return The latest reading, if there are any; null otherwise.
 	 */
 	public Reading getLatestReading() {
-		return readings.stream()
-				.sorted((a, b) -> b.getTimestamp().compareTo(a.getTimestamp()))
-				.findFirst()
-				.orElse(null);
+		ReadingSeries readings = this.readings;
+		int size = readings.size();
+		return (size == 0) ? null : readings.getReading(size - 1);
 	}
 	
 }
@@ -0,0 +1,129 @@
+package uk.co.johngabriel.co657a3.model.json;
+
+/**
+ * An exponentially weighted mean and variance of a set of timestamped values, kept up to date one value at a
+ * time. It's RunningStats, except that older values count for less the further behind they are; a value
+ * one half-life old counts for half as much as a new one. So the baseline follows the seasons, rather than
+ * staying stuck on the mean of everything we've ever seen.
+ *
+ * Weights decay by time rather than by count, so it copes with readings that don't come in regularly.
+ * Two of these can be merged, like RunningStats, which is how a Zone or Site gets a baseline for all its devices.
+ *
+ * @author John Gabriel
+ */
+public class ExponentialStats {
+	public static final long DEFAULT_HALF_LIFE = 7L * 24 * 60 * 60 * 1000; // A week, in milliseconds
+	private static final double MIN_WEIGHT = 10; // Until it's seen this much, its variance isn't worth much
+
+	private long halfLife; // How long it takes for a value's weight to halve, in milliseconds
+	private double weight; // The sum of all the values' weights, as of lastTime
+	private double mean;
+	private double m2; // The weighted sum of squared differences from the mean, as of lastTime
+	private long lastTime; // In epoch milliseconds
+
+	public ExponentialStats() {
+		this(DEFAULT_HALF_LIFE);
+	}
+
+	/**
+	 * @param halfLife How long it takes for a value's weight to halve, in milliseconds.
+	 */
+	public ExponentialStats(long halfLife) {
+		if (halfLife <= 0)
+			throw new IllegalArgumentException("Half-life has to be positive: " + halfLife);
+		this.halfLife = halfLife;
+		weight = 0;
+		mean = 0;
+		m2 = 0;
+		lastTime = Long.MIN_VALUE;
+	}
+
+	public ExponentialStats(ExponentialStats other) {
+		halfLife = other.halfLife;
+		weight = other.weight;
+		mean = other.mean;
+		m2 = other.m2;
+		lastTime = other.lastTime;
+	}
+
+	/**
+	 * @return How long it takes for a value's weight to halve, in milliseconds.
+	 */
+	public long getHalfLife() { return halfLife; }
+
+	private double getDecay(long elapsed) {
+		return (elapsed <= 0) ? 1 : Math.pow(0.5, (double) elapsed / halfLife);
+	}
+
+	public double getWeight() { return weight; }
+	public boolean isEmpty() { return weight == 0; }
+	public double getMean() { return mean; }
+	public long getLastTime() { return lastTime; }
+
+	/**
+	 * @return Whether enough has been seen to tell what's extreme.
+	 */
+	public boolean isReady() { return weight >= MIN_WEIGHT; }
+
+	/**
+	 * @return The weighted variance of the values so far; 0 if there aren't any.
+	 */
+	public double getVariance() {
+		return (weight == 0) ? 0 : m2 / weight;
+	}
+
+	public double getStandardDeviation() {
+		return Math.sqrt(getVariance());
+	}
+
+	/**
+	 * Takes another value, from the given time in epoch milliseconds, into account.
+	 * Values older than the newest so far count as if they were from then.
+	 */
+	public void add(long time, double value) {
+		if (Double.isNaN(value)) return;
+		double decay = getDecay(time - lastTime);
+		weight = weight * decay + 1;
+		m2 *= decay;
+		double delta = value - mean;
+		mean += delta / weight;
+		m2 += delta * (value - mean);
+		lastTime = Math.max(lastTime, time);
+	}
+
+	/**
+	 * Takes all the values behind another baseline into account, as of whichever is newer.
+	 * If this one's empty, it takes on the other's half-life too; otherwise it keeps its own.
+	 */
+	public void merge(ExponentialStats other) {
+		if (other.weight == 0) return;
+		if (weight == 0) {
+			halfLife = other.halfLife;
+			weight = other.weight;
+			mean = other.mean;
+			m2 = other.m2;
+			lastTime = other.lastTime;
+			return;
+		}
+		long time = Math.max(lastTime, other.lastTime);
+		double decay = getDecay(time - lastTime);
+		double otherDecay = getDecay(time - other.lastTime);
+		double weightA = weight * decay;
+		double weightB = other.weight * otherDecay;
+		double total = weightA + weightB;
+		double delta = other.mean - mean;
+		mean += delta * weightB / total;
+		m2 = m2 * decay + other.m2 * otherDecay + delta * delta * (weightA * weightB / total);
+		weight = total;
+		lastTime = time;
+	}
+
+	/**
+	 * @return Whether the given value is more than the given number of standard deviations from the mean.
+	 * Always false until it's seen enough.
+	 */
+	public boolean isExtreme(double value, double sdMultiplier) {
+		if (!isReady()) return false;
+		return Math.abs(value - mean) > sdMultiplier * getStandardDeviation();
+	}
+}
@@ -0,0 +1,117 @@
+package uk.co.johngabriel.co657a3.model.json;
+
+import java.time.LocalDateTime;
+import java.util.List;
+
+/**
+ * Walks through several time-ordered series at once, oldest reading first, without building a merged copy.
+ * With only a handful of series (one per resolution, or one per type) it just checks the head of each on every step.
+ *
+ * Where more than one series has a reading at the same time, the one from the earliest series in the list comes first;
+ * if distinct is set, it's the only one at that time that's seen at all.
+ * Readings appended after the cursor was made aren't included.
+ *
+ * @author John Gabriel
+ */
+public class ReadingCursor {
+	private ReadingSeries[] series;
+	private int[] positions;
+	private int[] sizes;
+	private boolean distinct;
+	private int count;
+	private long time;
+	private double value;
+	private DataType type;
+	private int source;
+
+	public ReadingCursor(List<ReadingSeries> series, boolean distinct) {
+		this(series.toArray(new ReadingSeries[series.size()]), new int[series.size()], distinct);
+	}
+
+	/**
+	 * Makes a cursor that starts each series at the given position, rather than its first reading.
+	 */
+	public ReadingCursor(ReadingSeries[] series, int[] from, boolean distinct) {
+		this.series = series;
+		this.distinct = distinct;
+		positions = from.clone();
+		sizes = new int[series.length];
+		for (int i = 0; i < sizes.length; i++)
+			sizes[i] = series[i].size();
+		count = 0;
+	}
+
+	/**
+	 * @return How many readings there were across all the series when the cursor was made.
+	 */
+	public long getTotalSize() {
+		long total = 0;
+		for (int size: sizes)
+			total += size;
+		return total;
+	}
+
+	/**
+	 * @return How far through the given series the cursor is; once it's finished, that's how big it was when the cursor was made.
+	 */
+	public int getPosition(int i) {
+		return positions[i];
+	}
+
+	/**
+	 * Moves on to the next reading.
+	 * @return Whether there was one.
+	 */
+	public boolean next() {
+		while (true) {
+			int best = -1;
+			long bestTime = 0;
+			for (int i = 0; i < series.length; i++) {
+				if (positions[i] == sizes[i]) continue;
+				long next = series[i].getTime(positions[i]);
+				if (best == -1 || next < bestTime) {
+					best = i;
+					bestTime = next;
+				}
+			}
+			if (best == -1) return false;
+			double bestValue = series[best].getValue(positions[best]++);
+			if (distinct && count > 0 && bestTime == time)
+				continue;
+			time = bestTime;
+			value = bestValue;
+			type = series[best].getType();
+			source = best;
+			count++;
+			return true;
+		}
+	}
+
+	/**
+	 * @return The timestamp of the current reading, in epoch milliseconds.
+	 */
+	public long getTime() { return time; }
+
+	/**
+	 * @return The raw value of the current reading.
+	 */
+	public double getValue() { return value; }
+
+	public DataType getType() { return type; }
+
+	/**
+	 * @return Which of the series (by its place in the list) the current reading came from.
+	 */
+	public int getSource() { return source; }
+
+	public LocalDateTime getTimestamp() {
+		return ReadingSeries.fromEpochMilli(time);
+	}
+
+	/**
+	 * @return The current reading, as a Reading object. Only for handing out.
+	 */
+	public Reading getReading() {
+		return new Reading(getTimestamp(), value, type);
+	}
+}
@@ -0,0 +1,302 @@
+package uk.co.johngabriel.co657a3.model.json;
+
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.Arrays;
+
+/**
+ * A columnar series of readings: epoch-millisecond timestamps in a long[] and raw values in a double[],
+ * rather than a Reading object (and the LocalDateTime inside it) per sample.
+ * 
+ * The columns are split into fixed-size chunks, so growing the series never copies the readings
+ * themselves, only the small arrays of chunk references. There's only ever one writer; readers can
+ * carry on while it appends, as the size is only bumped once a reading has been fully written.
+ * 
+ * Readings are kept in time order, so exact, nearest and range lookups are binary searches.
+ * The count, mean and variance of the values are kept up to date as they're appended.
+ * 
+ * A chunk never changes once it's full, so a new series made from an old one (say, to slot in some
+ * readings that arrived late) shares the old one's full chunks up to the first change, rather than copying them.
+ * Nor does any reading before the end of the series, so freeze() can share every chunk, even the last.
+ * 
+ * @author John Gabriel
+ */
+public class ReadingSeries {
+	private static final int CHUNK_SHIFT = 10;
+	private static final int CHUNK_SIZE = 1 << CHUNK_SHIFT;
+	private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+	
+	private DataType type;
+	private volatile long[][] timeChunks;
+	private volatile double[][] valueChunks;
+	private volatile int size;
+	private final RunningStats stats; // Guarded by this
+	private boolean frozen; // Whether it shares a chunk the series it was frozen from can still write to
+	
+	public ReadingSeries(DataType type) {
+		this.type = type;
+		timeChunks = new long[0][];
+		valueChunks = new double[0][];
+		size = 0;
+		stats = new RunningStats();
+	}
+	
+	/**
+	 * Makes a series that starts off with the first few chunks of another, shared rather than copied.
+	 * They have to be full, so that the other series never writes to them again.
+	 */
+	private ReadingSeries(ReadingSeries from, int chunks) {
+		type = from.type;
+		timeChunks = Arrays.copyOf(from.timeChunks, chunks);
+		valueChunks = Arrays.copyOf(from.valueChunks, chunks);
+		stats = new RunningStats();
+		for (double[] chunk: valueChunks)
+			for (double value: chunk)
+				stats.add(value);
+		size = chunks << CHUNK_SHIFT;
+	}
+	
+	/**
+	 * @return A copy of this series as it is now, which never sees the readings added to this one afterwards.
+	 * It shares all of this one's chunks, so it can't be added to itself.
+	 */
+	public synchronized ReadingSeries freeze() {
+		ReadingSeries copy = new ReadingSeries(type);
+		copy.timeChunks = timeChunks;
+		copy.valueChunks = valueChunks;
+		copy.size = size;
+		copy.stats.merge(stats);
+		copy.frozen = true;
+		return copy;
+	}
+	
+	public static long toEpochMilli(LocalDateTime timestamp) {
+		return timestamp.toInstant(ZoneOffset.UTC).toEpochMilli();
+	}
+	
+	public static LocalDateTime fromEpochMilli(long epochMilli) {
+		return LocalDateTime.ofInstant(Instant.ofEpochMilli(epochMilli), ZoneOffset.UTC);
+	}
+	
+	public DataType getType() { return type; }
+	public int size() { return size; }
+	public boolean isEmpty() { return size == 0; }
+	
+	/**
+	 * @return A copy of the stats of the values in this series, as of now.
+	 */
+	public synchronized RunningStats getStats() {
+		return new RunningStats(stats);
+	}
+	
+	/**
+	 * @return The stats of the values from the given index (inclusive) to the other (exclusive).
+	 */
+	public RunningStats getStats(int from, int to) {
+		RunningStats results = new RunningStats();
+		for (int i = from; i < to; i++)
+			results.add(getValue(i));
+		return results;
+	}
+	
+	/**
+	 * @return The timestamp of the newest reading, in epoch milliseconds; Long.MIN_VALUE if there aren't any.
+	 */
+	public long getLastTime() {
+		int n = size;
+		return (n == 0) ? Long.MIN_VALUE : getTime(n - 1);
+	}
+	
+	/**
+	 * @return The timestamp of the reading at the given index, in epoch milliseconds.
+	 */
+	public long getTime(int i) {
+		return timeChunks[i >>> CHUNK_SHIFT][i & CHUNK_MASK];
+	}
+	
+	/**
+	 * @return The raw value of the reading at the given index.
+	 */
+	public double getValue(int i) {
+		return valueChunks[i >>> CHUNK_SHIFT][i & CHUNK_MASK];
+	}
+	
+	public LocalDateTime getTimestamp(int i) {
+		return fromEpochMilli(getTime(i));
+	}
+	
+	/**
+	 * @return The reading at the given index, as a Reading object. Only for handing out; don't keep these.
+	 */
+	public Reading getReading(int i) {
+		return new Reading(getTimestamp(i), getValue(i), type);
+	}
+	
+	private int lowerBound(long time, int n) {
+		int low = 0;
+		int high = n;
+		while (low < high) {
+			int mid = (low + high) >>> 1;
+			if (getTime(mid) < time) low = mid + 1;
+			else high = mid;
+		}
+		return low;
+	}
+	
+	/**
+	 * @return The index of the first reading at or after the given time; size() if there isn't one.
+	 */
+	public int lowerBound(long time) {
+		return lowerBound(time, size);
+	}
+	
+	/**
+	 * @return The index of the first reading after the given time; size() if there isn't one.
+	 */
+	public int upperBound(long time) {
+		return (time == Long.MAX_VALUE) ? size : lowerBound(time + 1, size);
+	}
+	
+	/**
+	 * @return The index of the first reading at exactly the given time, if there is one; -1 otherwise.
+	 */
+	public int indexOf(long time) {
+		int n = size;
+		int i = lowerBound(time, n);
+		return (i < n && getTime(i) == time) ? i : -1;
+	}
+	
+	/**
+	 * @return The index of the reading closest to the given time and strictly within the margin of it, if there is one; -1 otherwise.
+	 */
+	public int indexNearest(long time, long margin) {
+		int n = size;
+		int i = lowerBound(time, n);
+		int best = -1;
+		long bestDistance = margin;
+		if (i < n && getTime(i) - time < bestDistance) {
+			best = i;
+			bestDistance = getTime(i) - time;
+		}
+		if (i > 0 && time - getTime(i - 1) < bestDistance)
+			best = i - 1;
+		return best;
+	}
+	
+	/**
+	 * Appends a reading. It can't be older than the newest one already here.
+	 */
+	public synchronized void add(long time, double value) {
+		if (frozen)
+			throw new IllegalStateException("Can't add to a frozen series");
+		int index = size;
+		if (index > 0 && time < getTime(index - 1))
+			throw new IllegalArgumentException("Readings must be added in time order");
+		int chunk = index >>> CHUNK_SHIFT;
+		if (chunk == timeChunks.length) {
+			// Out of room; add another chunk
+			long[][] newTimes = new long[chunk + 1][];
+			double[][] newValues = new double[chunk + 1][];
+			System.arraycopy(timeChunks, 0, newTimes, 0, chunk);
+			System.arraycopy(valueChunks, 0, newValues, 0, chunk);
+			newTimes[chunk] = new long[CHUNK_SIZE];
+			newValues[chunk] = new double[CHUNK_SIZE];
+			timeChunks = newTimes;
+			valueChunks = newValues;
+		}
+		timeChunks[chunk][index & CHUNK_MASK] = time;
+		valueChunks[chunk][index & CHUNK_MASK] = value;
+		stats.add(value);
+		// Only now can anyone else see it
+		size = index + 1;
+	}
+	
+	public void add(LocalDateTime timestamp, double value) {
+		add(toEpochMilli(timestamp), value);
+	}
+	
+	/**
+	 * Appends every reading in the given series.
+	 */
+	public void addAll(ReadingSeries other) {
+		int otherSize = other.size();
+		for (int i = 0; i < otherSize; i++)
+			add(other.getTime(i), other.getValue(i));
+	}
+	
+	/**
+	 * @return A new series with the readings from the given index onwards.
+	 */
+	public ReadingSeries tail(int from) {
+		ReadingSeries result = new ReadingSeries(type);
+		int n = size;
+		for (int i = from; i < n; i++)
+			result.add(getTime(i), getValue(i));
+		return result;
+	}
+	
+	/**
+	 * @return A series of the given readings, sorted by time. Readings with the same time keep their order.
+	 */
+	public static ReadingSeries sort(DataType type, long[] times, double[] values, int count) {
+		ReadingSeries result = new ReadingSeries(type);
+		boolean ascending = true;
+		boolean descending = true;
+		for (int i = 1; i < count; i++) {
+			if (times[i] < times[i - 1]) ascending = false;
+			if (times[i] > times[i - 1]) descending = false;
+		}
+		if (ascending) {
+			for (int i = 0; i < count; i++)
+				result.add(times[i], values[i]);
+		}
+		else if (descending) {
+			// The feeds tend to come newest-first
+			for (int i = count - 1; i >= 0; i--)
+				result.add(times[i], values[i]);
+		}
+		else {
+			Integer[] order = new Integer[count];
+			for (int i = 0; i < count; i++)
+				order[i] = i;
+			Arrays.sort(order, (a, b) -> Long.compare(times[a], times[b]));
+			for (int i: order)
+				result.add(times[i], values[i]);
+		}
+		return result;
+	}
+	
+	/**
+	 * @return A new series with the readings of both, in time order. Where both have a reading at the same time,
+	 * the one from a comes first; if distinct is set, only the first reading at any given time is kept.
+	 * Any of a's full chunks from before where b starts are shared with the new series.
+	 */
+	public static ReadingSeries merge(ReadingSeries a, ReadingSeries b, boolean distinct) {
+		int aSize = a.size();
+		int bSize = b.size();
+		// Nothing in a before b's first reading moves, so those chunks can be reused as they are
+		int shared = 0;
+		if (!distinct && bSize > 0)
+			shared = a.upperBound(b.getTime(0)) >>> CHUNK_SHIFT;
+		ReadingSeries result = new ReadingSeries(a, shared);
+		int i = shared << CHUNK_SHIFT;
+		int j = 0;
+		while (i < aSize || j < bSize) {
+			long time;
+			double value;
+			if (j == bSize || (i < aSize && a.getTime(i) <= b.getTime(j))) {
+				time = a.getTime(i);
+				value = a.getValue(i++);
+			}
+			else {
+				time = b.getTime(j);
+				value = b.getValue(j++);
+			}
+			if (distinct && result.size > 0 && result.getTime(result.size - 1) == time)
+				continue;
+			result.add(time, value);
+		}
+		return result;
+	}
+}
@@ -0,0 +1,61 @@
+package uk.co.johngabriel.co657a3.model.json;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Walks through fixed-size records stored on disk, oldest first, reading them straight out of the segment
+ * files' mapped buffers rather than copying them anywhere first. Every record starts with its timestamp.
+ *
+ * @author John Gabriel
+ */
+public abstract class RecordCursor {
+	private int recordSize;
+	private ByteBuffer[] segments;
+	private int[] starts;
+	private int[] ends;
+	private int segment;
+	private int position;
+	private int size;
+
+	/**
+	 * Makes a cursor over the given records (start inclusive, end exclusive, counted in records) of each buffer, in turn.
+	 */
+	protected RecordCursor(int recordSize, ByteBuffer[] segments, int[] starts, int[] ends) {
+		this.recordSize = recordSize;
+		this.segments = segments;
+		this.starts = starts;
+		this.ends = ends;
+		segment = 0;
+		position = (segments.length == 0) ? 0 : starts[0] - 1;
+		size = 0;
+		for (int i = 0; i < segments.length; i++)
+			size += ends[i] - starts[i];
+	}
+
+	/**
+	 * @return How many records the cursor covers in all.
+	 */
+	public int size() { return size; }
+
+	/**
+	 * Moves on to the next record.
+	 * @return Whether there was one.
+	 */
+	public boolean next() {
+		while (segment < segments.length) {
+			if (++position < ends[segment]) {
+				read(segments[segment], position * recordSize);
+				return true;
+			}
+			segment++;
+			if (segment < segments.length)
+				position = starts[segment] - 1;
+		}
+		return false;
+	}
+
+	/**
+	 * Reads the record at the given offset of the buffer into the cursor's fields.
+	 */
+	protected abstract void read(ByteBuffer buffer, int offset);
+}
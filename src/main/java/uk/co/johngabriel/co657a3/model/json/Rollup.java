@@ -0,0 +1,41 @@
+package uk.co.johngabriel.co657a3.model.json;
+
+import java.time.LocalDateTime;
+
+import uk.co.johngabriel.co657a3.things.Prettyfier;
+
+/**
+ * A summary of a device's readings of one type over a bucket of time: how many there were, and their smallest,
+ * largest and mean values.
+ * @author John Gabriel
+ */
+public class Rollup {
+	private LocalDateTime start;
+	private long width;
+	private long count;
+	private double min;
+	private double max;
+	private double mean;
+	private DataType type;
+
+	public Rollup(LocalDateTime start, long width, long count, double min, double max, double mean, DataType type) {
+		this.start = start;
+		this.width = width;
+		this.count = count;
+		this.min = min;
+		this.max = max;
+		this.mean = mean;
+		this.type = type;
+	}
+
+	public LocalDateTime getStart() { return start; }
+	public long getWidth() { return width; } // In milliseconds
+	public long getCount() { return count; }
+	public double getRawMin() { return min; }
+	public double getRawMax() { return max; }
+	public double getRawMean() { return mean; }
+	public double getMin() { return Prettyfier.getReadingValue(min, type); }
+	public double getMax() { return Prettyfier.getReadingValue(max, type); }
+	public double getMean() { return Prettyfier.getReadingValue(mean, type); }
+	public DataType getType() { return type; }
+}
@@ -0,0 +1,61 @@
+package uk.co.johngabriel.co657a3.model.json;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Walks through rollups stored on disk, oldest first.
+ *
+ * Each rollup is a record of 40 bytes: the epoch-millisecond start of its bucket and the count of readings in it,
+ * as longs, then the smallest, largest and mean raw values, as doubles.
+ *
+ * @author John Gabriel
+ */
+public class RollupCursor extends RecordCursor {
+	public static final int RECORD_SIZE = 40;
+
+	private DataType type;
+	private long width;
+	private long time;
+	private long count;
+	private double min;
+	private double max;
+	private double mean;
+
+	public RollupCursor(DataType type, long width, ByteBuffer[] segments, int[] starts, int[] ends) {
+		super(RECORD_SIZE, segments, starts, ends);
+		this.type = type;
+		this.width = width;
+	}
+
+	@Override
+	protected void read(ByteBuffer buffer, int offset) {
+		time = buffer.getLong(offset);
+		count = buffer.getLong(offset + 8);
+		min = buffer.getDouble(offset + 16);
+		max = buffer.getDouble(offset + 24);
+		mean = buffer.getDouble(offset + 32);
+	}
+
+	/**
+	 * @return When the current rollup's bucket starts, in epoch milliseconds.
+	 */
+	public long getTime() { return time; }
+
+	/**
+	 * @return How wide each bucket is, in milliseconds.
+	 */
+	public long getWidth() { return width; }
+
+	public long getCount() { return count; }
+	public double getMin() { return min; }
+	public double getMax() { return max; }
+	public double getMean() { return mean; }
+	public DataType getType() { return type; }
+
+	/**
+	 * @return The current rollup, as a Rollup object. Only for handing out.
+	 */
+	public Rollup getRollup() {
+		return new Rollup(ReadingSeries.fromEpochMilli(time), width, count, min, max, mean, type);
+	}
+}
@@ -0,0 +1,75 @@
+package uk.co.johngabriel.co657a3.model.json;
+
+/**
+ * Count, mean and sum of squared differences from the mean (M2) of a set of values, kept up to date
+ * one value at a time with Welford's method, so the mean and standard deviation never need a rescan.
+ *
+ * Two of these can be merged (Chan et al.) into the stats of both sets together, which is how a
+ * Zone or Site gets the stats of all its devices' readings without going through the readings.
+ *
+ * @author John Gabriel
+ */
+public class RunningStats {
+	private long count;
+	private double mean;
+	private double m2;
+
+	public RunningStats() {
+		count = 0;
+		mean = 0;
+		m2 = 0;
+	}
+
+	public RunningStats(RunningStats other) {
+		count = other.count;
+		mean = other.mean;
+		m2 = other.m2;
+	}
+
+	public long getCount() { return count; }
+	public boolean isEmpty() { return count == 0; }
+	public double getMean() { return mean; }
+	public double getSum() { return mean * count; }
+
+	/**
+	 * @return The population variance of the values so far; 0 if there aren't any.
+	 */
+	public double getVariance() {
+		return (count == 0) ? 0 : m2 / count;
+	}
+
+	/**
+	 * @return The population standard deviation of the values so far; 0 if there aren't any.
+	 */
+	public double getStandardDeviation() {
+		return Math.sqrt(getVariance());
+	}
+
+	/**
+	 * Takes another value into account.
+	 */
+	public void add(double value) {
+		count++;
+		double delta = value - mean;
+		mean += delta / count;
+		m2 += delta * (value - mean);
+	}
+
+	/**
+	 * Takes all the values behind another set of stats into account.
+	 */
+	public void merge(RunningStats other) {
+		if (other.count == 0) return;
+		if (count == 0) {
+			count = other.count;
+			mean = other.mean;
+			m2 = other.m2;
+			return;
+		}
+		long total = count + other.count;
+		double delta = other.mean - mean;
+		mean += delta * other.count / total;
+		m2 += other.m2 + delta * delta * ((double) count * other.count / total);
+		count = total;
+	}
+}
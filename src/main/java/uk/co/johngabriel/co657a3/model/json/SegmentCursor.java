@@ -0,0 +1,57 @@
+package uk.co.johngabriel.co657a3.model.json;
+
+import java.nio.ByteBuffer;
+import java.time.LocalDateTime;
+
+/**
+ * Walks through raw readings stored on disk, oldest first.
+ *
+ * Each reading is a record of 16 bytes: the epoch-millisecond timestamp as a long, then the raw value as a double.
+ *
+ * @author John Gabriel
+ */
+public class SegmentCursor extends RecordCursor {
+	public static final int RECORD_SIZE = 16;
+
+	private DataType type;
+	private long time;
+	private double value;
+
+	public SegmentCursor(DataType type, ByteBuffer[] segments, int[] starts, int[] ends) {
+		super(RECORD_SIZE, segments, starts, ends);
+		this.type = type;
+	}
+
+	public static SegmentCursor empty(DataType type) {
+		return new SegmentCursor(type, new ByteBuffer[0], new int[0], new int[0]);
+	}
+
+	@Override
+	protected void read(ByteBuffer buffer, int offset) {
+		time = buffer.getLong(offset);
+		value = buffer.getDouble(offset + 8);
+	}
+
+	/**
+	 * @return The timestamp of the current reading, in epoch milliseconds.
+	 */
+	public long getTime() { return time; }
+
+	/**
+	 * @return The raw value of the current reading.
+	 */
+	public double getValue() { return value; }
+
+	public DataType getType() { return type; }
+
+	public LocalDateTime getTimestamp() {
+		return ReadingSeries.fromEpochMilli(time);
+	}
+
+	/**
+	 * @return The current reading, as a Reading object. Only for handing out.
+	 */
+	public Reading getReading() {
+		return new Reading(getTimestamp(), value, type);
+	}
+}
@@ -3,15 +3,18 @@ package uk.co.johngabriel.co657a3.model.json;
 import java.time.LocalDateTime;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.stream.Collectors;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import uk.co.johngabriel.co657a3.model.Ideal;
+import uk.co.johngabriel.co657a3.things.Prettyfier;
 
 /**
  * Representation of a site on the farm.
@@ -27,9 +30,9 @@ public class Site {
 	private double altitude;
 	private String countryCode;
 	private String timezone;
-	private ArrayList<Device> devices;
-	private HashMap<String, Zone> zones;
-	private HashMap<DataType, Ideal> ideals;
+	private volatile ArrayList<Device> devices; // Replaced, never modified, once published
+	private volatile HashMap<String, Zone> zones; // Replaced, never modified, once published
+	private ConcurrentHashMap<DataType, Ideal> ideals;
 	
 	public Site(String id, String name, double longitude, double latitude, double altitude, String countryCode,
 			String timezone) {
@@ -42,7 +45,15 @@ public class Site {
 		this.timezone = timezone;
 		devices = new ArrayList<>();
 		zones = new HashMap<>();
-		ideals = new HashMap<>();
+		ideals = new ConcurrentHashMap<>();
+	}
+	
+	/**
+	 * Makes a copy of another, with its ideals as they are now, but without any of its zones or devices yet.
+	 */
+	public Site(Site other) {
+		this(other.id, other.name, other.longitude, other.latitude, other.altitude, other.countryCode, other.timezone);
+		ideals.putAll(other.ideals);
 	}
 
 	public String getId() { return id; }
@@ -57,9 +68,44 @@ public class Site {
 	public Zone getZone(String id) { return zones.get(id); }
 	public Ideal getIdeal(DataType type) { return ideals.get(type); }
 	
-	public void addDevice(Device device) { devices.add(device); }
-	public void addZone(String id, Zone zone) { zones.put(id, zone); }
-	public void setIdeal(DataType type, Ideal ideal) { ideals.put(type, ideal); }
+	
+	/**
+	 * Sets the ideal for the given type; null if there isn't one any more.
+	 */
+	public void setIdeal(DataType type, Ideal ideal) {
+		if (ideal == null) ideals.remove(type);
+		else ideals.put(type, ideal);
+	}
+	
+	public synchronized void addDevice(Device device) {
+		ArrayList<Device> next = new ArrayList<>(devices);
+		next.add(device);
+		devices = next;
+	}
+	
+	public synchronized void addDevices(Collection<Device> devicesToAdd) {
+		ArrayList<Device> next = new ArrayList<>(devices);
+		next.addAll(devicesToAdd);
+		devices = next;
+	}
+	
+	public synchronized void removeDevice(Device device) {
+		ArrayList<Device> next = new ArrayList<>(devices);
+		next.remove(device);
+		devices = next;
+	}
+	
+	public synchronized void addZone(String id, Zone zone) {
+		HashMap<String, Zone> next = new HashMap<>(zones);
+		next.put(id, zone);
+		zones = next;
+	}
+	
+	public synchronized void removeZone(String id) {
+		HashMap<String, Zone> next = new HashMap<>(zones);
+		next.remove(id);
+		zones = next;
+	}
 	
 	/**
 	 * @return Whether the site has any data of the given type.
@@ -90,28 +136,40 @@ public class Site {
 				.collect(Collectors.toList());
 	}
 	
+	/**
+	 * @return The combined stats of all readings of the given type across this site.
+	 */
+	public RunningStats getStats(DataType type) {
+		RunningStats results = new RunningStats();
+		for (Device next: devices)
+			if (next.hasData(type)) results.merge(next.getStats(type));
+		return results;
+	}
+	
+	/**
+	 * @return What's normal lately for the readings of the given type across this site.
+	 */
+	public ExponentialStats getBaseline(DataType type) {
+		ExponentialStats results = new ExponentialStats();
+		for (Device next: devices)
+			if (next.hasData(type)) results.merge(next.getBaseline(type));
+		return results;
+	}
+	
 	/**
 	 * @return The historical average reading of the given type across this site, if it can; -1 otherwise.
 	 */
 	public double getAverageReading(DataType type) {
-		return zones.values().stream()
-				.filter(i -> i.hasData(type))
-				.mapToDouble(i -> i.getAverageReading(type))
-				.filter(i -> i != -1)
-				.average()
-				.orElse(-1);
+		RunningStats stats = getStats(type);
+		return stats.isEmpty() ? -1 : Prettyfier.getReadingValue(stats.getMean(), type);
 	}
 	
 	/**
 	 * @return The historical average reading of the given type across this site, if it can; -1 otherwise.
 	 */
 	public double getAverageReadingRaw(DataType type) {
-		return zones.values().stream()
-				.filter(i -> i.hasData(type))
-				.mapToDouble(i -> i.getAverageReadingRaw(type))
-				.filter(i -> i != -1)
-				.average()
-				.orElse(-1);
+		RunningStats stats = getStats(type);
+		return stats.isEmpty() ? -1 : stats.getMean();
 	}
 	
 	/**
@@ -157,26 +215,17 @@ public class Site {
 	 * @return The standard deviation of all readings of the given type, if it can; -1 otherwise.
 	 */
 	public double getStandardDeviation(DataType type) {
-		double average = getAverageReading(type);
-		if (average == -1) return -1;
-		return devices.stream()
-				.filter(i -> i.hasData(type))
-				.mapToDouble(i -> i.getStandardDeviation(type))
-				.average()
-				.orElse(-1);
+		RunningStats stats = getStats(type);
+		if (stats.isEmpty()) return -1;
+		return Prettyfier.getReadingDeviation(stats.getMean(), stats.getStandardDeviation(), type);
 	}
 	
 	/**
 	 * @return The standard deviation of all readings of the given type, if it can; -1 otherwise.
 	 */
 	public double getStandardDeviationRaw(DataType type) {
-		double average = getAverageReading(type);
-		if (average == -1) return -1;
-		return devices.stream()
-				.filter(i -> i.hasData(type))
-				.mapToDouble(i -> i.getStandardDeviationRaw(type))
-				.average()
-				.orElse(-1);
+		RunningStats stats = getStats(type);
+		return stats.isEmpty() ? -1 : stats.getStandardDeviation();
 	}
 	
 	/**
@@ -205,11 +254,8 @@ public class Site {
 			return IdealStatus.LATE;
 		// Okay, so do we know what sort of boundaries we should be in?
 		Ideal ideal = ideals.get(type);
-		double average = getAverageReadingRaw(type);
-		double sd = getStandardDeviationRaw(type);
 		double current = getCurrentReadingRaw(type);
-		double sdMulti = type.getSDMultiplier();
-		if ((current > average + (sdMulti*sd)) || (current < average - (sdMulti*sd))) return IdealStatus.EXTREME;
+		if (getBaseline(type).isExtreme(current, type.getSDMultiplier())) return IdealStatus.EXTREME;
 		else if (ideal == null) return IdealStatus.UNKNOWN;
 		else if (current > ideal.getMax()) return IdealStatus.OVER;
 		else if (current < ideal.getMin()) return IdealStatus.UNDER;
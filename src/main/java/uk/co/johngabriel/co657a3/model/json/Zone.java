@@ -3,15 +3,17 @@ package uk.co.johngabriel.co657a3.model.json;
 import java.time.LocalDateTime;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.HashMap;
+import java.util.Collection;
 import java.util.HashSet;
 import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.stream.Collectors;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import uk.co.johngabriel.co657a3.model.Ideal;
+import uk.co.johngabriel.co657a3.things.Prettyfier;
 
 /**
  * Representation of a zone on the farm.
@@ -23,14 +25,22 @@ public class Zone {
 	private String id;
 	private String name;
 	private Site site;
-	private ArrayList<Device> devices;
-	private HashMap<DataType, Ideal> ideals;
+	private volatile ArrayList<Device> devices; // Replaced, never modified, once published
+	private ConcurrentHashMap<DataType, Ideal> ideals;
 
 	public Zone(String id, String name) {
 		this.id = id;
 		this.name = name;
 		devices = new ArrayList<>();
-		ideals = new HashMap<>();
+		ideals = new ConcurrentHashMap<>();
+	}
+	
+	/**
+	 * Makes a copy of another, with its ideals as they are now, but without its site or any of its devices yet.
+	 */
+	public Zone(Zone other) {
+		this(other.id, other.name);
+		ideals.putAll(other.ideals);
 	}
 
 	public String getId() { return id; }
@@ -40,8 +50,32 @@ public class Zone {
 	public Ideal getIdeal(DataType type) { return ideals.get(type); }
 	
 	public void setSite(Site site) { this.site = site; }
-	public void addDevice(Device device) { devices.add(device); }
-	public void setIdeal(DataType type, Ideal ideal) { ideals.put(type, ideal); }
+	
+	/**
+	 * Sets the ideal for the given type; null if there isn't one any more.
+	 */
+	public void setIdeal(DataType type, Ideal ideal) {
+		if (ideal == null) ideals.remove(type);
+		else ideals.put(type, ideal);
+	}
+	
+	public synchronized void addDevice(Device device) {
+		ArrayList<Device> next = new ArrayList<>(devices);
+		next.add(device);
+		devices = next;
+	}
+	
+	public synchronized void addDevices(Collection<Device> devicesToAdd) {
+		ArrayList<Device> next = new ArrayList<>(devices);
+		next.addAll(devicesToAdd);
+		devices = next;
+	}
+	
+	public synchronized void removeDevice(Device device) {
+		ArrayList<Device> next = new ArrayList<>(devices);
+		next.remove(device);
+		devices = next;
+	}
 	
 	/**
 	 * @return Whether the Zone has any devices recording data of the given type.
@@ -181,48 +215,57 @@ public class Zone {
 				.orElse(-1);
 	}
 	
+	/**
+	 * @return The combined stats of all readings of the given type across this zone.
+	 */
+	public RunningStats getStats(DataType type) {
+		RunningStats results = new RunningStats();
+		for (Device next: devices)
+			if (next.hasData(type)) results.merge(next.getStats(type));
+		return results;
+	}
+	
+	/**
+	 * @return What's normal lately for the readings of the given type across this zone.
+	 */
+	public ExponentialStats getBaseline(DataType type) {
+		ExponentialStats results = new ExponentialStats();
+		for (Device next: devices)
+			if (next.hasData(type)) results.merge(next.getBaseline(type));
+		return results;
+	}
+	
 	/**
 	 * @return The current average reading of the given type, if possible; -1 otherwise.
 	 */
 	public double getAverageReading(DataType type) {
-		return devices.stream()
-				.filter(i -> i.hasData(type))
-				.mapToDouble(i -> i.getAverageReading(type))
-				.average()
-				.orElse(-1);
+		RunningStats stats = getStats(type);
+		return stats.isEmpty() ? -1 : Prettyfier.getReadingValue(stats.getMean(), type);
 	}
 	
 	/**
 	 * @return The current average reading of the given type, if possible; -1 otherwise.
 	 */
 	public double getAverageReadingRaw(DataType type) {
-		return devices.stream()
-				.filter(i -> i.hasData(type))
-				.mapToDouble(i -> i.getRawAverageReading(type))
-				.average()
-				.orElse(-1);
+		RunningStats stats = getStats(type);
+		return stats.isEmpty() ? -1 : stats.getMean();
 	}
 	
 	/**
 	 * @return The standard deviation of all readings of the given type, if it can; -1 otherwise.
 	 */
 	public double getStandardDeviation(DataType type) {
-		return devices.stream()
-				.filter(i -> i.hasData(type))
-				.mapToDouble(i -> i.getStandardDeviation(type))
-				.average()
-				.orElse(-1);
+		RunningStats stats = getStats(type);
+		if (stats.isEmpty()) return -1;
+		return Prettyfier.getReadingDeviation(stats.getMean(), stats.getStandardDeviation(), type);
 	}
 	
 	/**
 	 * @return The standard deviation of all readings of the given type, if it can; -1 otherwise.
 	 */
 	public double getRawStandardDeviation(DataType type) {
-		return devices.stream()
-				.filter(i -> i.hasData(type))
-				.mapToDouble(i -> i.getStandardDeviationRaw(type))
-				.average()
-				.orElse(-1);
+		RunningStats stats = getStats(type);
+		return stats.isEmpty() ? -1 : stats.getStandardDeviation();
 	}
 	
 	/**
@@ -250,12 +293,9 @@ public class Zone {
 			return IdealStatus.LATE;
 		//else if (last == null) return IdealStatus.UNKNOWN;
 		// Okay, so do we know what sort of boundaries we should be in?
-		double average = getAverageReadingRaw(type);
-		double sd = getRawStandardDeviation(type);
 		double current = getCurrentReadingRaw(type);
 		Ideal ideal = ideals.get(type);
-		double sdMulti = type.getSDMultiplier();
-		if ((current > average + (sdMulti*sd)) || (current < average - (sdMulti*sd))) return IdealStatus.EXTREME;
+		if (getBaseline(type).isExtreme(current, type.getSDMultiplier())) return IdealStatus.EXTREME;
 		else if (ideal == null) return IdealStatus.UNKNOWN;
 		else if (current > ideal.getMax()) return IdealStatus.OVER;
 		else if (current < ideal.getMin()) return IdealStatus.UNDER;
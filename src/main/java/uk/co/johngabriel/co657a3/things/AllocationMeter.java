@@ -0,0 +1,58 @@
+package uk.co.johngabriel.co657a3.things;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+/**
+ * Measures how much heap a set of threads allocates, using the per-thread allocation counters that
+ * HotSpot keeps. On a JVM without them, everything comes back as -1.
+ *
+ * Counts from threads that die partway through are lost, so it's only meant for long-lived ones,
+ * like the update thread and the fetch pool.
+ *
+ * @author John Gabriel
+ */
+public class AllocationMeter {
+	private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+
+	private long[] threadIds;
+	private long start;
+
+	/**
+	 * @return Whether this JVM can tell us how much each thread has allocated.
+	 */
+	public static boolean isSupported() {
+		if (!(THREADS instanceof com.sun.management.ThreadMXBean)) return false;
+		com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) THREADS;
+		return threads.isThreadAllocatedMemorySupported() && threads.isThreadAllocatedMemoryEnabled();
+	}
+
+	/**
+	 * @return How many bytes the given threads have allocated in their lives so far, in total; -1 if we can't tell.
+	 */
+	public static long getAllocatedBytes(long[] threadIds) {
+		if (!isSupported()) return -1;
+		long[] allocated = ((com.sun.management.ThreadMXBean) THREADS).getThreadAllocatedBytes(threadIds);
+		long total = 0;
+		for (long next: allocated)
+			if (next > 0) total += next; // Threads that have gone come back as -1
+		return total;
+	}
+
+	/**
+	 * Starts measuring the given threads from now.
+	 */
+	public void start(long[] threadIds) {
+		this.threadIds = threadIds;
+		start = getAllocatedBytes(threadIds);
+	}
+
+	/**
+	 * @return How many bytes the threads have allocated since start(); -1 if we can't tell.
+	 */
+	public long stop() {
+		if (start == -1) return -1;
+		long end = getAllocatedBytes(threadIds);
+		return (end == -1) ? -1 : end - start;
+	}
+}
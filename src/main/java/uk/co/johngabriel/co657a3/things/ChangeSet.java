@@ -0,0 +1,78 @@
+package uk.co.johngabriel.co657a3.things;
+
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import uk.co.johngabriel.co657a3.model.json.DataType;
+
+/**
+ * What's changed since problems were last looked for: which devices got new readings of which types, which
+ * devices' last connections moved, and which sites need looking at again from scratch. Filled in by the
+ * fetch threads as they go, then handed to the ProblemFinder.
+ * @author John Gabriel
+ */
+public class ChangeSet {
+	private volatile boolean everything;
+	private Set<String> sites;
+	private Set<String> connections;
+	private ConcurrentHashMap<String, Set<DataType>> readings; // By device
+
+	public ChangeSet() {
+		sites = ConcurrentHashMap.newKeySet();
+		connections = ConcurrentHashMap.newKeySet();
+		readings = new ConcurrentHashMap<>();
+	}
+
+	/**
+	 * @return A change set that has everything changed; for when nothing's known about what came before.
+	 */
+	public static ChangeSet everything() {
+		ChangeSet changes = new ChangeSet();
+		changes.changedEverything();
+		return changes;
+	}
+
+	public void changedEverything() { everything = true; }
+
+	/**
+	 * Marks everything in the given site as changed; its ideals, its zones, or which devices it has.
+	 */
+	public void changedSite(String siteId) { sites.add(siteId); }
+
+	public void changedConnection(String deviceId) { connections.add(deviceId); }
+
+	public void changedReadings(String deviceId, DataType type) {
+		readings.computeIfAbsent(deviceId, i -> Collections.synchronizedSet(EnumSet.noneOf(DataType.class))).add(type);
+	}
+
+	/**
+	 * Marks everything about the given device as changed; it's new, or its ideals have changed.
+	 */
+	public void changedDevice(String deviceId) {
+		connections.add(deviceId);
+		readings.computeIfAbsent(deviceId, i -> Collections.synchronizedSet(EnumSet.noneOf(DataType.class)))
+				.addAll(EnumSet.allOf(DataType.class));
+	}
+
+	public boolean isEverything() { return everything; }
+	public boolean hasSite(String siteId) { return everything || sites.contains(siteId); }
+	public boolean hasConnection(String deviceId) { return everything || connections.contains(deviceId); }
+
+	public boolean hasReadings(String deviceId, DataType type) {
+		if (everything) return true;
+		Set<DataType> types = readings.get(deviceId);
+		return types != null && types.contains(type);
+	}
+
+	public boolean isEmpty() {
+		return !everything && sites.isEmpty() && connections.isEmpty() && readings.isEmpty();
+	}
+
+	@Override
+	public String toString() {
+		if (everything) return "everything";
+		return String.format("%d sites, %d connections, readings from %d devices", sites.size(), connections.size(), readings.size());
+	}
+}
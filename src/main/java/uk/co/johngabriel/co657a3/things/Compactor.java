@@ -0,0 +1,41 @@
+package uk.co.johngabriel.co657a3.things;
+
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Goes through everything in a SegmentStore, rolling the readings up into each of its retention tiers,
+ * then deleting whatever's outlived its tier. Meant to be run every so often, alongside the updates.
+ *
+ * @author John Gabriel
+ */
+public class Compactor implements Runnable {
+	private static final Logger LOG = LoggerFactory.getLogger(Compactor.class);
+
+	private SegmentStore store;
+
+	public Compactor(SegmentStore store) {
+		this.store = store;
+	}
+
+	@Override
+	public void run() {
+		long start = System.currentTimeMillis();
+		try {
+			List<String> series = store.listSeries();
+			int made = 0;
+			int dropped = 0;
+			for (String key: series) {
+				made += store.rollUp(key);
+				dropped += store.dropExpired(key, start);
+			}
+			LOG.info("Compacted {} series in {}ms: made {} rollups and deleted {} expired files",
+					series.size(), System.currentTimeMillis() - start, made, dropped);
+		} catch (RuntimeException e) {
+			// Let it try again next time, rather than the scheduler giving up on it
+			LOG.error("Compaction failed", e);
+		}
+	}
+}
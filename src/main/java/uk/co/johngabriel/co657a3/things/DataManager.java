@@ -1,71 +1,224 @@
 package uk.co.johngabriel.co657a3.things;
 
+import java.io.File;
+import java.io.IOException;
+import java.time.Duration;
+import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
-import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.HashSet;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
+import java.util.List;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
 
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Repository;
 
-import uk.co.johngabriel.co657a3.model.json.Device;
-import uk.co.johngabriel.co657a3.model.json.Site;
-import uk.co.johngabriel.co657a3.model.json.Zone;
+import uk.co.johngabriel.co657a3.model.Ideal;
+import uk.co.johngabriel.co657a3.model.Snapshot;
+import uk.co.johngabriel.co657a3.model.json.ExponentialStats;
 
 /**
+ * The one place the farm's data comes from. Spring makes a single one of these and hands it to the controllers;
+ * it starts updating once it's made, and stops when the application does.
+ *
+ * How often it updates, how big its fetch pool is, where to find the ideals (if not the built-in ones), how
+ * quickly what's normal for the readings moves on, and where to keep what it's taken in and for how long, come from
+ * application.properties.
+ *
  * @author John Gabriel
  */
 @Repository
 public class DataManager {
+	private static final Logger LOG = LoggerFactory.getLogger(DataManager.class);
+	public static final String DEFAULT_DATA_DIR = "data";
+	public static final long DEFAULT_HEAP_WINDOW = 7; // In days
+	public static final long DEFAULT_UPDATE_PERIOD = 60; // In seconds
+	public static final long DEFAULT_COMPACTION_PERIOD = 10; // In minutes
+	public static final long DEFAULT_BASELINE_HALF_LIFE = ExponentialStats.DEFAULT_HALF_LIFE / (24 * 60 * 60 * 1000); // In days
+
 	DateTimeFormatter formatter = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss.SSS");
-	
+
 	private DataUpdater updater;
 	private ProblemFinder problemFinder;
 	private Idealator idealator;
-	
-	private HashMap<String, Device> devices;
-	private HashMap<String, Zone> zones;
-	private HashMap<String, Site> sites;
-	private HashSet<String> expectedDevices;
-    
+
+	private AtomicReference<Snapshot> snapshot;
+
+	private long updatePeriod; // In seconds
+	private long compactionPeriod; // In minutes
+	private boolean ingestEnabled; // Whether start() does anything; off for tests, so they don't fetch from the server
+	private ScheduledThreadPoolExecutor ex; // Null unless we're running
+
     public DataManager() {
+    	this(DEFAULT_UPDATE_PERIOD, DEFAULT_COMPACTION_PERIOD, FetchExecutor.DEFAULT_THREADS, FetchExecutor.DEFAULT_QUEUE_SIZE,
+    			FetchExecutor.DEFAULT_BATCH_TIMEOUT, "", DEFAULT_BASELINE_HALF_LIFE, DEFAULT_DATA_DIR, DEFAULT_HEAP_WINDOW, RetentionPolicy.DEFAULT, true);
+    }
+
+    @Autowired
+    public DataManager(@Value("${co657a3.update.period:" + DEFAULT_UPDATE_PERIOD + "}") long updatePeriod,
+    		@Value("${co657a3.compaction.period:" + DEFAULT_COMPACTION_PERIOD + "}") long compactionPeriod,
+    		@Value("${co657a3.fetch.threads:" + FetchExecutor.DEFAULT_THREADS + "}") int fetchThreads,
+    		@Value("${co657a3.fetch.queue-size:" + FetchExecutor.DEFAULT_QUEUE_SIZE + "}") int fetchQueueSize,
+    		@Value("${co657a3.fetch.timeout:" + FetchExecutor.DEFAULT_BATCH_TIMEOUT + "}") long fetchTimeout,
+    		@Value("${co657a3.ideals:}") String idealsFile,
+    		@Value("${co657a3.baseline.half-life:" + DEFAULT_BASELINE_HALF_LIFE + "}") double baselineHalfLife,
+    		@Value("${co657a3.data.dir:" + DEFAULT_DATA_DIR + "}") String dataDir,
+    		@Value("${co657a3.heap-window:" + DEFAULT_HEAP_WINDOW + "}") long heapWindow,
+    		@Value("${co657a3.retention:" + RetentionPolicy.DEFAULT + "}") String retention,
+    		@Value("${co657a3.ingest.enabled:true}") boolean ingestEnabled) {
+    	this.updatePeriod = updatePeriod;
+    	this.compactionPeriod = compactionPeriod;
+    	this.ingestEnabled = ingestEnabled;
+		snapshot = new AtomicReference<>(Snapshot.EMPTY);
 		problemFinder = new ProblemFinder();
-		idealator = new Idealator();
-		updater = new DataUpdater(this, problemFinder, idealator);
-    	ScheduledExecutorService ex = Executors.newSingleThreadScheduledExecutor();
-    	ex.scheduleAtFixedRate(updater, 0, 1, TimeUnit.MINUTES);
+		idealator = idealsFile.isEmpty() ? new Idealator() : new Idealator(loadIdeals(new File(idealsFile)));
+		if (heapWindow <= 0)
+			throw new IllegalArgumentException("The heap window has to be positive: " + heapWindow);
+		if (baselineHalfLife <= 0)
+			throw new IllegalArgumentException("The baseline's half-life has to be positive: " + baselineHalfLife);
+		updater = new DataUpdater(this, problemFinder, idealator, new FetchExecutor(fetchThreads, fetchQueueSize, fetchTimeout * 1000),
+				new File(dataDir), TimeUnit.DAYS.toMillis(heapWindow), RetentionPolicy.parse(retention),
+				(long) (baselineHalfLife * TimeUnit.DAYS.toMillis(1)));
     }
-    
-    public void update() {
-		devices = updater.getDevices();
-		zones = updater.getZones();
-		sites = updater.getSites();
-		expectedDevices = updater.getExpectedDevices();
+
+    private static List<Ideal> loadIdeals(File file) {
+    	try {
+    		List<Ideal> ideals = Idealator.load(file);
+    		LOG.info("Loaded {} ideals from {}", ideals.size(), file);
+    		return ideals;
+    	} catch (IOException e) {
+    		throw new IllegalArgumentException("Couldn't read ideals from " + file, e);
+    	}
     }
-	
-	public boolean hasDevice(String id) { return devices.containsKey(id); }
-	public Device getDevice(String id) { return devices.get(id); }
 
-	public boolean hasZone(String id) { return zones.containsKey(id); }
-	public Zone getZone(String id) { return zones.get(id); }
-	
-	public boolean hasSite(String id) { return sites.containsKey(id); }
-	public Site getSite(String id) { return sites.get(id); }
+    /**
+     * Starts updating, if we aren't already and it's enabled.
+     */
+    @PostConstruct
+    public synchronized void start() {
+    	if (ex != null) return;
+    	if (!ingestEnabled) {
+    		LOG.info("Ingestion's disabled; not updating");
+    		return;
+    	}
+    	LOG.info("Updating every {}s, compacting every {}m", updatePeriod, compactionPeriod);
+    	ex = new ScheduledThreadPoolExecutor(1, r -> new Thread(r, "updater"));
+    	// Once we're stopping, only the update that's running matters
+    	ex.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+    	// Serve whatever we had before the restart while the first update runs
+    	ex.execute(updater::warmStart);
+    	ex.scheduleAtFixedRate(updater, 0, updatePeriod, TimeUnit.SECONDS);
+    	// On the same thread, so it never has to compete with an update for the store
+    	ex.scheduleWithFixedDelay(new Compactor(updater.getSegments()), compactionPeriod, compactionPeriod, TimeUnit.MINUTES);
+    	scheduleBoundary(ex);
+    }
 
-	public ArrayList<Device> getDevices() { return new ArrayList<Device>(devices.values()); }
-	public ArrayList<Zone> getZones() { return new ArrayList<Zone>(zones.values()); }
-	public ArrayList<Site> getSites() { return new ArrayList<Site>(sites.values()); }
-	public HashSet<String> getExpectedDevices() { return expectedDevices; }
+    /**
+     * Has the ideals re-bound the moment it next goes from day to night, summer to winter, or back, rather than
+     * whenever the next update happens to be; and then the time after that, and so on.
+     */
+    private void scheduleBoundary(ScheduledThreadPoolExecutor ex) {
+    	LocalDateTime now = LocalDateTime.now();
+    	LocalDateTime next = Idealator.getNextBoundary(now);
+    	ex.schedule(() -> {
+    		try {
+    			updater.rebindIdeals();
+    		} catch (RuntimeException e) {
+    			// Anything thrown from here would be kept by the future nobody looks at, so log it, like run() does
+    			LOG.error("Re-binding ideals failed", e);
+    		} finally {
+    			if (!ex.isShutdown())
+    				scheduleBoundary(ex);
+    		}
+    	}, Duration.between(now, next).toMillis(), TimeUnit.MILLISECONDS);
+    	LOG.debug("Re-binding ideals at {}", next);
+    }
+
+    /**
+     * Stops updating, letting the update that's running (if there is one) finish first, so its snapshot gets saved.
+     */
+    @PreDestroy
+    public synchronized void stop() {
+    	if (ex == null) return;
+    	ex.shutdown();
+    	try {
+    		if (!ex.awaitTermination(updatePeriod, TimeUnit.SECONDS)) {
+    			LOG.warn("Update didn't finish within {}s; interrupting it", updatePeriod);
+    			ex.shutdownNow();
+    		}
+    	} catch (InterruptedException e) {
+    		ex.shutdownNow();
+    		Thread.currentThread().interrupt();
+    	}
+    	updater.getExecutor().shutdown();
+    	ex = null;
+    	LOG.info("Stopped updating");
+    }
+
+    public synchronized boolean isRunning() { return ex != null; }
+
+    /**
+     * @return The latest complete cycle's data. Grab it once and use that for the whole request.
+     */
+    public Snapshot getSnapshot() { return snapshot.get(); }
+
+    /**
+     * Makes the given snapshot the one everyone sees from now on.
+     */
+    void publish(Snapshot next) {
+    	snapshot.set(next);
+    }
+
+    /**
+     * @return How the fetch pool and the update cycles are getting on, for /json/stats.
+     */
+    public HashMap<String, Object> getStats() {
+    	FetchExecutor executor = updater.getExecutor();
+    	HashMap<String, Object> pool = new HashMap<>();
+    	pool.put("threads", executor.getPoolSize());
+    	pool.put("active", executor.getActiveCount());
+    	pool.put("queued", executor.getQueueSize());
+    	pool.put("completed", executor.getCompletedTaskCount());
+    	pool.put("timedOut", executor.getTimedOutCount());
+    	pool.put("failed", executor.getFailedCount());
+    	PollScheduler scheduler = updater.getScheduler();
+    	HashMap<String, Object> cycles = new HashMap<>();
+    	cycles.put("version", snapshot.get().getVersion());
+    	cycles.put("lastUpdate", updater.getLastUpdateTime() == null ? null : formatter.format(updater.getLastUpdateTime()));
+    	cycles.put("updating", updater.isUpdating());
+    	cycles.put("lastDuration", updater.getLastCycleDuration());
+    	cycles.put("lastAllocated", updater.getLastCycleAllocated());
+    	cycles.put("requestsMade", scheduler.getRequestsMade());
+    	cycles.put("requestsSaved", scheduler.getRequestsSaved());
+    	cycles.put("requestsMadeLastHour", scheduler.getRequestsMadeLastHour());
+    	cycles.put("requestsSavedLastHour", scheduler.getRequestsSavedLastHour());
+    	cycles.put("loggedBatches", updater.getLog().getRecords());
+    	cycles.put("logSyncs", updater.getLog().getSyncs());
+    	cycles.put("problems", problemFinder.getProblems().size());
+    	cycles.put("problemsAdded", problemFinder.getAdded().size());
+    	cycles.put("problemsResolved", problemFinder.getResolved().size());
+    	HashMap<String, Object> stats = new HashMap<>();
+    	stats.put("running", isRunning());
+    	stats.put("updatePeriod", updatePeriod);
+    	stats.put("pool", pool);
+    	stats.put("cycles", cycles);
+    	return stats;
+    }
 
 	public DataUpdater getUpdater() { return updater; }
 	public ProblemFinder getProblemFinder() { return problemFinder; }
 	public Idealator getIdealator() { return idealator; }
-	
+
 	public static void main(String[] args) {
-		DataManager dm = new DataManager();
-		dm.update();
+		// A single update, without scheduling any more; what it finds is logged
+		new DataManager().getUpdater().run();
 	}
-	
+
 }
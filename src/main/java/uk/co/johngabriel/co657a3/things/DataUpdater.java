@@ -1,15 +1,23 @@
 package uk.co.johngabriel.co657a3.things;
 
-import java.awt.List;
+import java.io.File;
+import java.io.IOException;
 import java.time.LocalDateTime;
+import java.time.ZoneOffset;
 import java.time.format.DateTimeFormatter;
 import java.time.format.DateTimeParseException;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
-import org.apache.tomcat.util.http.fileupload.util.Streams;
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
@@ -17,12 +25,15 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import uk.co.johngabriel.co657a3.model.Ideal;
+import uk.co.johngabriel.co657a3.model.Problem;
+import uk.co.johngabriel.co657a3.model.Snapshot;
 import uk.co.johngabriel.co657a3.model.json.DataResolution;
 import uk.co.johngabriel.co657a3.model.json.DataType;
 import uk.co.johngabriel.co657a3.model.json.Device;
 import uk.co.johngabriel.co657a3.model.json.DeviceData;
 import uk.co.johngabriel.co657a3.model.json.DeviceType;
-import uk.co.johngabriel.co657a3.model.json.Reading;
+import uk.co.johngabriel.co657a3.model.json.ExponentialStats;
+import uk.co.johngabriel.co657a3.model.json.ReadingSeries;
 import uk.co.johngabriel.co657a3.model.json.Site;
 import uk.co.johngabriel.co657a3.model.json.Zone;
 
@@ -33,36 +44,75 @@ public class DataUpdater implements Runnable {
 	private static final Logger LOG = LoggerFactory.getLogger(DataUpdater.class);
 	private static final DateTimeFormatter DTF = DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm:ss[.][n][n][n][n][n][n][n][n][n]'Z'");
     
-    private HashMap<String, Device> devices;
-    private HashMap<String, Zone> zones;
-    private HashMap<String, Site> sites;
+    private Map<String, Device> devices;
+    private Map<String, Zone> zones;
+    private Map<String, Site> sites;
     
-    private HashSet<String> expectedDevices;
+    private Set<String> expectedDevices;
     
-    private HashMap<String, Device> updating_devices;
-    private HashMap<String, Zone> updating_zones;
-    private HashMap<String, Site> updating_sites;
+    private GraphBuilder building; // The cycle in progress; the fetchers all add to this
     
-    private HashSet<String> updating_expectedDevices;
+    private LinkedHashMap<String, DeviceType> deviceList; // The last list of devices we got, so we can reuse it if it hasn't changed
     
     private boolean updating;
+    private boolean incremental; // Whether to build on the last cycle's data rather than starting afresh
+    private boolean working_incremental; // Whether the cycle in progress is an incremental one
     private LocalDateTime lastUpdateTime; // When the last update finished
+    private long version; // How many cycles we've published
+    private long lastCycleAllocated; // How many bytes the last cycle allocated, or -1 if we can't tell
+    private long lastCycleDuration; // How long the last cycle took, in milliseconds
+    private long baselineHalfLife; // For the baselines of the readings we take in, in milliseconds
+    private volatile boolean unlogged; // Whether any readings couldn't be logged this cycle, so the log can't be checkpointed
     
     private DataManager manager;
     private ProblemFinder finder;
+    private Idealator idealator;
+    private Idealator.Context ideals; // The ideals as they stood when this pass started
+    private ChangeSet changes; // What's changed since problems were last looked for
+    private ConcurrentLinkedQueue<InternetGetterThing.Response> applied; // The responses this cycle has taken in, marked as such once it's published
+    private PollScheduler scheduler;
+    private FetchExecutor executor;
+    private ReentrantReadWriteLock batchLock; // Fetch tasks apply what they got under the read lock; closing a batch takes the write lock
+    private long currentBatch; // The batch of fetch tasks whose results can still be applied
+    private SnapshotStore store; // Where each cycle's snapshot is kept, to start from after a restart
+    private SegmentStore segments; // Where all the readings are kept, once they're too old to keep on the heap
+    private WriteAheadLog wal; // Every batch of readings taken in since the last snapshot was saved
+    private ResponseCache cache; // The last response for each URL, so requests can be conditional
     
     public DataUpdater(DataManager manager, ProblemFinder finder, Idealator idealator) {
+    	this(manager, finder, idealator, new FetchExecutor(), new File(DataManager.DEFAULT_DATA_DIR),
+    			TimeUnit.DAYS.toMillis(DataManager.DEFAULT_HEAP_WINDOW), RetentionPolicy.getDefault(), ExponentialStats.DEFAULT_HALF_LIFE);
+    }
+    
+    /**
+     * @param dataDir Where to keep the snapshot, the stored readings, the write-ahead log and the response cache.
+     * @param heapWindow How far back (in milliseconds) to keep each device's readings on the heap, as well as in the store.
+     * @param retention How long to keep stored readings, and in how much detail.
+     * @param baselineHalfLife How long it takes a reading to count half as much towards what's normal, in milliseconds.
+     */
+    public DataUpdater(DataManager manager, ProblemFinder finder, Idealator idealator, FetchExecutor executor, File dataDir,
+    		long heapWindow, RetentionPolicy retention, long baselineHalfLife) {
     	this.manager = manager;
     	this.finder = finder;
+    	this.idealator = idealator;
+    	this.executor = executor;
+    	this.baselineHalfLife = baselineHalfLife;
+    	scheduler = new PollScheduler();
+    	batchLock = new ReentrantReadWriteLock();
+    	applied = new ConcurrentLinkedQueue<>();
 		devices = new HashMap<>();
 		zones = new HashMap<>();
 		sites = new HashMap<>();
 		expectedDevices = new HashSet<>();
+		deviceList = new LinkedHashMap<>();
     	updating = false;
-		updating_devices = new HashMap<>();
-		updating_zones = new HashMap<>();
-		updating_sites = new HashMap<>();
-		updating_expectedDevices = new HashSet<>();
+    	incremental = true;
+    	lastCycleAllocated = -1;
+		building = new GraphBuilder();
+		store = new SnapshotStore(new File(dataDir, "snapshot.bin"), baselineHalfLife);
+		segments = new SegmentStore(new File(dataDir, "segments"), heapWindow, retention);
+		wal = new WriteAheadLog(new File(dataDir, "wal"));
+		cache = new ResponseCache(new File(dataDir, "cache"));
     }
     
     private String extractString(JSONObject json, String key) throws JSONException {
@@ -98,45 +148,87 @@ public class DataUpdater implements Runnable {
 		return zone;
     }
 	
+	/**
+	 * Binds the site's ideals as they stand in this pass's context.
+	 * @return Whether any of them changed.
+	 */
+	private boolean setSiteIdeals(Site site) {
+		boolean changed = false;
+		for (DataType type: DataType.values()) {
+			Ideal ideal = ideals.getSiteIdeal(site, type);
+			if (ideal != site.getIdeal(type)) {
+				site.setIdeal(type, ideal);
+				changed = true;
+			}
+		}
+		if (changed) changes.changedSite(site.getId());
+		return changed;
+	}
+	
+	/**
+	 * Binds the zone's ideals as they stand in this pass's context.
+	 * @return Whether any of them changed.
+	 */
+	private boolean setZoneIdeals(Zone zone) {
+		boolean changed = false;
+		for (DataType type: DataType.values()) {
+			Ideal ideal = ideals.getZoneIdeal(zone, type);
+			if (ideal != zone.getIdeal(type)) {
+				zone.setIdeal(type, ideal);
+				changed = true;
+			}
+		}
+		if (changed) changes.changedSite(zone.getSite().getId());
+		return changed;
+	}
+	
 	private Site makeSite(JSONObject json) throws JSONException {
 		String id = extractString(json, "id");
-    	LOG.info("Making Site {}", id);
-		String name = extractString(json, "name");
-		String countryCode = extractString(json, "country_code");
-		String timezone = extractString(json, "time_zone");
-		double latitude = extractDouble(json, "lat");
-		double longitude = extractDouble(json, "lon");
-		double altitude = extractDouble(json, "al");
-		// Construct the Site object
-		Site newSite = new Site(id, name, longitude, latitude, altitude, countryCode, timezone);
-		// Set ideals
-		for (DataType type: DataType.values()) {
-			Ideal ideal = Idealator.getSiteIdeal(newSite, type);
-			if (ideal != null)
-				newSite.setIdeal(type, ideal);
+		// If we already know about this site, keep it as it is
+		Site newSite = working_incremental ? sites.get(id) : null;
+		if (newSite == null) {
+			LOG.info("Making Site {}", id);
+			String name = extractString(json, "name");
+			String countryCode = extractString(json, "country_code");
+			String timezone = extractString(json, "time_zone");
+			double latitude = extractDouble(json, "lat");
+			double longitude = extractDouble(json, "lon");
+			double altitude = extractDouble(json, "al");
+			// Construct the Site object
+			newSite = new Site(id, name, longitude, latitude, altitude, countryCode, timezone);
 		}
+		else LOG.debug("Keeping Site {}", id);
+		setSiteIdeals(newSite);
 		// Add zones
 		JSONArray zonesJSON = json.getJSONArray("zones");
+		HashSet<String> zoneIds = new HashSet<>();
 		for (int j = 0; j < zonesJSON.length(); j++) {
 			JSONObject zone = zonesJSON.getJSONObject(j);
-			Zone newZone = makeZone(zone);
-			newZone.setSite(newSite);
-			// Set ideals
-			for (DataType type: DataType.values()) {
-				Ideal ideal = Idealator.getZoneIdeal(newZone, type);
-				if (ideal != null) newZone.setIdeal(type, ideal);
+			String zoneId = extractString(zone, "id");
+			zoneIds.add(zoneId);
+			Zone newZone = newSite.getZone(zoneId);
+			if (newZone == null) {
+				newZone = makeZone(zone);
+				newZone.setSite(newSite);
+				newSite.addZone(newZone.getId(), newZone);
 			}
-			// Add to many things
-			newSite.addZone(newZone.getId(), newZone);
-			updating_zones.put(id + "/" + newZone.getId(), newZone);
+			setZoneIdeals(newZone);
+			building.addZone(id, newZone);
 		}
+		// Drop any zones that have gone away
+		for (Zone oldZone: newSite.getZones())
+			if (!zoneIds.contains(oldZone.getId())) {
+				newSite.removeZone(oldZone.getId());
+				changes.changedSite(id);
+			}
 		return newSite;
 	}
 	
 	/**
-	 * Makes a Reading for a temperature reading
+	 * Makes a raw value for a temperature reading
+	 * @return The value in Kelvin, or NaN if the reading should be discarded.
 	 */
-	private Reading makeTempReading(LocalDateTime timestamp, double value, String scale) {
+	private double makeTempReading(double value, String scale) {
 		// Convert the reading to Kelvin
 		double kelvin;
 		if (scale.equals("C"))
@@ -150,67 +242,84 @@ public class DataUpdater implements Runnable {
 			kelvin = ((((value + 16) * 5) / 7) + 273.15); 
 		}
 		// Now make sure the reading isn't beyond the realm of the possible
-		if (kelvin < 0) return null;
-		return new Reading(timestamp, kelvin, DataType.TEMPERATURE);
+		if (kelvin < 0) return Double.NaN;
+		return kelvin;
 	}
 	
 	/**
-	 * Makes a Reading for a luminosity reading
+	 * Makes a raw value for a luminosity reading
+	 * @return The value, or NaN if the reading should be discarded.
 	 */
-	private Reading makeLuxReading(LocalDateTime timestamp, double value, String scale) {
+	private double makeLuxReading(double value, String scale) {
 		// If the reading is reporting negative lux, something's off; discard this reading
-		if (value < 0) return null;
+		if (value < 0) return Double.NaN;
 		// If all is well, return the reading without transformation
-		return new Reading(timestamp, value, DataType.LUMOSITY);
+		return value;
 	}
 	
 	/**
-	 * Smartly makes a reading based on the raw data from the server.
+	 * Smartly makes a raw value based on the raw data from the server.
+	 * @return The value, or NaN if the reading should be discarded.
 	 */
-	private Reading makeReading(LocalDateTime timestamp, double value, DataType type, String scale) {
-		if (value == -1) return null;
+	private double makeReading(double value, DataType type, String scale) {
+		if (value == -1) return Double.NaN;
 		switch (type) {
-		case TEMPERATURE: return makeTempReading(timestamp, value, scale);
-		case LUMOSITY: return makeLuxReading(timestamp, value, scale);
-		default: return new Reading(timestamp, value, type);
+		case TEMPERATURE: return makeTempReading(value, scale);
+		case LUMOSITY: return makeLuxReading(value, scale);
+		default: return value;
 		}
 	}
 	
-	private void makeReadings(DeviceData deviceData, DataType type, String scale, JSONArray json) throws JSONException {
+	/**
+	 * Fills the given DeviceData with readings from the series.
+	 * If since is given, only readings newer than that are kept.
+	 */
+	private void makeReadings(DeviceData deviceData, DataType type, String scale, DeviceDataParser.Series series, LocalDateTime since) {
+		long[] times = new long[series.size()];
+		double[] values = new double[series.size()];
+		int count = 0;
 		// Process each reading
-		for (int i = 0; i < json.length(); i++) {
-			JSONArray next = json.getJSONArray(i);
+		for (int i = 0; i < series.size(); i++) {
 			// Get the fields from the reading
-			String timeStr = next.getString(0);
-			LocalDateTime timestamp = parseDateTime(timeStr);
+			LocalDateTime timestamp = parseDateTime(series.getTimestamp(i));
+			if (timestamp == null) continue;
+			// Skip anything we've already got
+			if (since != null && !timestamp.isAfter(since))
+				continue;
 			double value = -1;
-			if (!next.isNull(1))
-				value = next.getDouble(1);
-			Reading reading = makeReading(timestamp, value, type, scale);
-			if (reading != null)
-				deviceData.addReading(reading);
+			if (!series.isNull(i))
+				value = series.getValue(i);
+			double reading = makeReading(value, type, scale);
+			if (!Double.isNaN(reading)) {
+				times[count] = ReadingSeries.toEpochMilli(timestamp);
+				values[count] = reading;
+				count++;
+			}
 		}
+		// The feed's order isn't guaranteed, so sort them before they go in
+		deviceData.addReadings(ReadingSeries.sort(type, times, values, count));
 	}
 	
 	/**
 	 * Makes a DeviceData from the given JSON object at the given res and type - if the JSON contains that type. Returns null otherwise.
+	 * If since is given, only readings newer than that are included.
 	 */
-	private DeviceData makeDeviceData(JSONObject json, DataType type, DataResolution resolution) throws JSONException {
+	private DeviceData makeDeviceData(DeviceDataParser.Result json, DataType type, DataResolution resolution, LocalDateTime since) {
 		// First, check that the JSON has the type of data we're looking for
 		String valueName = type.getValueName();
 		String scaleName = type.getScaleName();
 		if (!json.has(valueName) || !json.has(scaleName))
 			return null;
 		// Get all the parameters we need
-		String id = extractString(json, "id");
-		String name = extractString(json, "name");
-		String siteId = extractString(json, "site_id");
-		String zoneId = extractString(json, "zone_id");
-		String softwareVersion = extractString(json, "software_version");
-		String scale = extractString(json, scaleName);
+		String id = json.getString("id");
+		String name = json.getString("name");
+		String siteId = json.getString("site_id");
+		String zoneId = json.getString("zone_id");
+		String softwareVersion = json.getString("software_version");
+		String scale = json.getString(scaleName);
 		// Check that the siteId and zoneId referenced actually exist
-		Site site = updating_sites.get(siteId);
-		Zone zone = updating_zones.get(siteId + "/" + zoneId);
+		Site site = building.getSite(siteId);
+		Zone zone = building.getZone(siteId, zoneId);
 		if (site == null) {
 			LOG.error("DeviceData for {} references non-existant site {}", id, siteId);
 			return null;
@@ -220,10 +329,14 @@ public class DataUpdater implements Runnable {
 			return null;
 		}
 		// Construct the DeviceData instance
-		DeviceData data = new DeviceData(id, name, site, zone, softwareVersion, type, resolution, scale);
+		DeviceData data = new DeviceData(id, name, site, zone, softwareVersion, type, resolution, scale, baselineHalfLife);
 		// Now fill it with the readings
-		JSONArray valuesJson = json.getJSONArray(type.getValueName());
-		makeReadings(data, type, scale, valuesJson);
+		DeviceDataParser.Series series = json.getSeries(valueName);
+		if (series == null) {
+			LOG.error("DeviceData for {} has a {} that isn't an array of readings", id, valueName);
+			return null;
+		}
+		makeReadings(data, type, scale, series, since);
 		return data;
 	}
 	
@@ -234,70 +347,253 @@ public class DataUpdater implements Runnable {
 		String lastConStr = extractString(json, "last_connection");
 		String softwareVersion = extractString(json, "software_version");
 		LocalDateTime lastConnection = parseDateTime(lastConStr);
-		Site site = updating_sites.get(siteId);
+		Site site = building.getSite(siteId);
 		Zone zone = site.getZone(zoneId);
 		// Construct the Device object
 		return new Device(id, name, type, site, zone, lastConnection, softwareVersion);
 	}
 	
-	private void fillDeviceWithData(Device device) throws JSONException {
+	/**
+	 * Starts applying what a fetch task from the given batch got, if that batch is still open.
+	 * @return Whether it can go ahead; if so, call endApply() once it's done.
+	 */
+	private boolean beginApply(long batch) {
+		batchLock.readLock().lock();
+		if (batch == currentBatch)
+			return true;
+		batchLock.readLock().unlock();
+		return false;
+	}
+	
+	private void endApply() {
+		batchLock.readLock().unlock();
+	}
+	
+	/**
+	 * Runs the given fetch tasks as one batch. Once it's over, any of them still going (because they timed out)
+	 * can't change anything; and none that are applying what they got are left part way through.
+	 */
+	private <T> List<T> invokeBatch(List<Callable<T>> tasks) {
+		try {
+			return executor.invokeAll(tasks);
+		} finally {
+			batchLock.writeLock().lock();
+			currentBatch++;
+			batchLock.writeLock().unlock();
+		}
+	}
+	
+	/**
+	 * Fetches one resolution of readings for the given device and adds them to it, if the batch is still open.
+	 */
+	private void fillDeviceWithData(long batch, Device device, DataResolution resolution) {
 		String id = device.getId();
-		Arrays.asList(DataResolution.values()).parallelStream()
-		.forEach(nextResolution -> {
-			JSONObject jsonData;
+		// When building on the last cycle, feeds that can't have changed yet are left as they are
+		LocalDateTime now = LocalDateTime.now(ZoneOffset.UTC); // The server's timestamps are in UTC
+		if (working_incremental && !scheduler.isDue(id, resolution, now))
+			return;
+		InternetGetterThing.Response response = InternetGetterThing.getDeviceDataResponse(cache, id, resolution);
+		// If the batch has been given up on, whatever we got is too late to use
+		if (!beginApply(batch))
+			return;
+		try {
+			applyDeviceData(device, resolution, response, now);
+		} finally {
+			endApply();
+		}
+	}
+	
+	/**
+	 * Adds the readings in a response to the given device.
+	 */
+	private void applyDeviceData(Device device, DataResolution resolution, InternetGetterThing.Response response, LocalDateTime now) {
+		String id = device.getId();
+		// Only a poll that gets somewhere counts; otherwise the feed's left due, to be tried again next cycle
+		if (response == null) {
+			LOG.error("Got null from InternetGetterThing; no {} data for {}", resolution.getLabel(), id);
+			return;
+		}
+		// If it's the same as last time and we already have it, there's nothing to do
+		if (working_incremental && response.isUnchanged() && device.hasData(resolution)) {
+			LOG.trace("{} data for {} hasn't changed", resolution.getLabel(), id);
+			scheduler.polled(id, resolution, now, device.getLastConnection());
+			return;
+		}
+		DeviceDataParser.Result jsonData;
+		try {
+			jsonData = response.getDeviceData();
+		} catch (JSONException e) {
+			LOG.error("Couldn't parse {} data for {}", resolution.getLabel(), id, e);
+			return;
+		}
+		boolean complete = true;
+		for (DataType type: DataType.values()) {
+			// If we already have this series, only take what's new
+			DeviceData existing = device.getDeviceData(type, resolution);
+			LocalDateTime since = (existing != null) ? existing.getLastTimestamp() : null;
+			DeviceData datum = makeDeviceData(jsonData, type, resolution, since);
+			if (datum == null) continue;
+			// Log it before it's applied, so it can be replayed if we don't make it to the next checkpoint
 			try {
-				jsonData = InternetGetterThing.getDeviceData(id, nextResolution);
-				for (DataType type: DataType.values()) {
-					DeviceData datum = makeDeviceData(jsonData, type, nextResolution);
-					if (datum != null)
-						device.addData(datum);
-				}
-			} catch (JSONException e) {
-				// TODO Auto-generated catch block
-				e.printStackTrace();
+				wal.append(id, type, resolution, datum.getSeries());
+			} catch (IOException e) {
+				// Anything we can't log, we don't apply; it's fetched again next cycle instead
+				LOG.error("Couldn't log {} {} data for {}; leaving it for next time", resolution.getLabel(), type, id, e);
+				unlogged = true;
+				complete = false;
+				scheduler.forget(id);
+				continue;
 			}
-		});
+			int dropped = device.addReadings(datum);
+			if (dropped > 0)
+				LOG.warn("Dropped {} {} {} readings for {} that came in older than what's already stored", dropped,
+						resolution.getLabel(), type, id);
+			changes.changedReadings(id, type);
+			DeviceData kept = device.getDeviceData(type, resolution);
+			if (kept.getStore() == null)
+				kept.setStore(segments);
+		}
+		if (complete) {
+			applied.add(response);
+			scheduler.polled(id, resolution, now, device.getLastConnection());
+		}
+	}
+	
+	/**
+	 * Binds the device's ideals as they stand in this pass's context.
+	 * @return Whether any of them changed.
+	 */
+	private boolean setDeviceIdeals(Device device) {
+		boolean changed = false;
+		for (DataType dataType: DataType.values()) {
+			Ideal ideal = ideals.getDeviceIdeal(device, dataType);
+			if (ideal != device.getIdeal(dataType)) {
+				device.setIdeal(dataType, ideal);
+				changed = true;
+			}
+		}
+		if (changed) changes.changedDevice(device.getId());
+		return changed;
 	}
 	
+	/**
+	 * Makes a new Device, without any readings yet.
+	 */
 	private Device makeDevice(String id, DeviceType type, JSONObject json) throws JSONException  {
 		LOG.info("Making Device {}", id);
 		Device device = makeDeviceObject(id, type, json);
-		fillDeviceWithData(device);
-		// Add the device to its parent site and zone
-		device.getSite().addDevice(device);
-		device.getZone().addDevice(device);
-		for (DataType dataType: DataType.values()) {
-			Ideal ideal = Idealator.getDeviceIdeal(device, dataType);
-			if (ideal != null) device.setIdeal(dataType, ideal);
+		setDeviceIdeals(device);
+		changes.changedDevice(id);
+		return device;
+	}
+	
+	/**
+	 * Brings a Device we already have up to date, apart from its readings.
+	 * @return The device, or null if it has moved site or zone and needs making again.
+	 */
+	private Device refreshDevice(Device device, JSONObject json) throws JSONException {
+		String siteId = extractString(json, "site_id");
+		String zoneId = extractString(json, "zone_id");
+		Site site = building.getSite(siteId);
+		if (site == null || device.getSite() != site || device.getZone() != site.getZone(zoneId))
+			return null;
+		LOG.debug("Refreshing Device {}", device.getId());
+		LocalDateTime lastConnection = parseDateTime(extractString(json, "last_connection"));
+		if (lastConnection != null && !lastConnection.equals(device.getLastConnection())) {
+			device.setLastConnection(lastConnection);
+			changes.changedConnection(device.getId());
+			// If it's back after being stale, its feeds shouldn't have to wait out their back-off
+			scheduler.connected(device.getId(), LocalDateTime.now(ZoneOffset.UTC), lastConnection);
 		}
+		device.setSoftwareVersion(extractString(json, "software_version"));
+		setDeviceIdeals(device);
 		return device;
 	}
 	
-	private void makeDevices(JSONArray json, DeviceType type) throws JSONException {
-		// First, turn it into a regular ArrayList, so we can process it
-		ArrayList<String> ids = new ArrayList<>();
-		for (int i = 0; i < json.length(); i++) {
-			String id = json.getString(i);
-			ids.add(id);
+	/**
+	 * Gets the details of a single device, and makes or refreshes its Device, if the batch is still open.
+	 * @return The device, or null if we couldn't get it.
+	 */
+	private Device fetchDevice(long batch, String id, DeviceType type) {
+		InternetGetterThing.Response response = InternetGetterThing.getDeviceResponse(cache, id);
+		// Make sure we actually got it
+		if (response == null) {
+			LOG.error("Got null from InternetGetterThing; cannot create Device instance for {}", id);
+			return null;
 		}
-		ids.parallelStream()
-		.forEach(i -> {
-			updating_expectedDevices.add(i);
-			JSONObject jsonObj;
-			try {
-				jsonObj = InternetGetterThing.getDevice(i);
-				// Make sure we actually got it
-				if (jsonObj == null)
-					LOG.error("Got null from InternetGetterThing; cannot create Device instance for {}", i);
-				else {
-					Device newDevice = makeDevice(i, type, jsonObj);
-					updating_devices.put(i, newDevice);
+		// If the batch has been given up on, whatever we got is too late to use
+		if (!beginApply(batch))
+			return null;
+		try {
+			return applyDevice(id, type, response);
+		} finally {
+			endApply();
+		}
+	}
+	
+	/**
+	 * Makes or refreshes a Device from the details in a response.
+	 * @return The device, or null if we couldn't make sense of it.
+	 */
+	private Device applyDevice(String id, DeviceType type, InternetGetterThing.Response response) {
+		try {
+			Device newDevice = null;
+			Device oldDevice = working_incremental ? devices.get(id) : null;
+			// If nothing's changed and it's still where we left it, keep it as it is
+			if (oldDevice != null && response.isUnchanged()
+					&& building.getSite(oldDevice.getSite().getId()) == oldDevice.getSite()
+					&& oldDevice.getSite().getZone(oldDevice.getZone().getId()) == oldDevice.getZone()) {
+				LOG.trace("Device {} hasn't changed", id);
+				setDeviceIdeals(oldDevice);
+				return oldDevice;
+			}
+			JSONObject jsonObj = response.getJSONObject();
+			if (oldDevice != null)
+				newDevice = refreshDevice(oldDevice, jsonObj);
+			if (newDevice == null) {
+				newDevice = makeDevice(id, type, jsonObj);
+				// If it's moved, take it out of where it used to be, now there's a new one to take its place
+				if (oldDevice != null) {
+					oldDevice.getSite().removeDevice(oldDevice);
+					oldDevice.getZone().removeDevice(oldDevice);
+					changes.changedSite(oldDevice.getSite().getId());
+					scheduler.forget(id);
 				}
-			} catch (JSONException e) {
-				// TODO Auto-generated catch block
-				e.printStackTrace();
 			}
-		});
+			applied.add(response);
+			return newDevice;
+		} catch (JSONException e) {
+			LOG.error("Caught JSONException when making Device {}", id, e);
+			return null;
+		}
+	}
+	
+	/**
+	 * @return The last cycle's Device with the given ID, for when we couldn't get it this time; or null if there
+	 * wasn't one, or the site or zone it was in has gone.
+	 */
+	private Device getPreviousDevice(String id) {
+		Device previous = devices.get(id);
+		if (previous == null || building.getSite(previous.getSite().getId()) != previous.getSite()
+				|| previous.getSite().getZone(previous.getZone().getId()) != previous.getZone())
+			return null;
+		LOG.warn("Couldn't get Device {}; keeping the one from the last cycle", id);
+		return previous;
+	}
+	
+	/**
+	 * Carries the last cycle's sites and zones over as they are, apart from their ideals.
+	 */
+	private void keepSites() {
+		LOG.info("Sites haven't changed; keeping the {} we've got", sites.size());
+		for (Site site: sites.values()) {
+			setSiteIdeals(site);
+			building.addSite(site);
+			for (Zone zone: site.getZones()) {
+				setZoneIdeals(zone);
+				building.addZone(site.getId(), zone);
+			}
+		}
 	}
 	
 	/**
@@ -306,15 +602,24 @@ public class DataUpdater implements Runnable {
 	 */
 	private void makeSites() throws JSONException {
 		LOG.info("Getting sites/zones");
-		JSONArray siteArray = InternetGetterThing.getSites();
+		InternetGetterThing.Response response = InternetGetterThing.getSitesResponse(cache);
+		if (response == null)
+			throw new JSONException("Couldn't get the list of sites");
+		// If it's the same as last time, the sites and zones we've already got will do
+		if (working_incremental && response.isUnchanged()) {
+			keepSites();
+			return;
+		}
+		JSONArray siteArray = response.getJSONArray();
 		// Process each site
 		for (int i = 0; i < siteArray.length(); i++) {
 			JSONObject next = (JSONObject) siteArray.get(i);
 			Site newSite = makeSite(next);
 			if (newSite != null)
-				updating_sites.put(newSite.getId(), newSite);
+				building.addSite(newSite);
 		}
-		LOG.info("Finished getting sites, {} in total", updating_sites.size());
+		applied.add(response);
+		LOG.info("Finished getting sites, {} in total", building.getSites().size());
 	}
 	
 	/**
@@ -323,56 +628,268 @@ public class DataUpdater implements Runnable {
 	 */
 	private void makeDevices() throws JSONException {
 		LOG.info("Getting devices");
-		// First, turn it into a regular array so we can process it in parallel
-		JSONObject deviceObject = InternetGetterThing.getDevices();
-		ArrayList<Object[]> jsonArray = new ArrayList<>();
-		for (DeviceType type: DeviceType.values()) {
-			JSONArray devices = deviceObject.getJSONArray(type.getLabel());
-			jsonArray.add(new Object[] {devices, type});
-		}
-		// Now process the array
-		jsonArray.parallelStream()
-		.forEach(i -> {
-			JSONArray devices = (JSONArray) i[0];
-			DeviceType type = (DeviceType) i[1];
-			try {
-				makeDevices(devices, type);
-			} catch (JSONException e) {
-				// TODO Auto-generated catch block
-				e.printStackTrace();
+		InternetGetterThing.Response response = InternetGetterThing.getDevicesResponse(cache);
+		if (response == null)
+			throw new JSONException("Couldn't get the list of devices");
+		// Only go through the list again if it's changed
+		if (!response.isUnchanged() || deviceList.isEmpty()) {
+			JSONObject deviceObject = response.getJSONObject();
+			LinkedHashMap<String, DeviceType> newList = new LinkedHashMap<>();
+			for (DeviceType type: DeviceType.values()) {
+				JSONArray ids = deviceObject.getJSONArray(type.getLabel());
+				for (int i = 0; i < ids.length(); i++)
+					newList.put(ids.getString(i), type);
+			}
+			deviceList = newList;
+			applied.add(response);
+		}
+		long batch = currentBatch;
+		ArrayList<String> ids = new ArrayList<>(deviceList.size());
+		ArrayList<Callable<Device>> deviceTasks = new ArrayList<>();
+		for (Map.Entry<String, DeviceType> next: deviceList.entrySet()) {
+			String id = next.getKey();
+			DeviceType type = next.getValue();
+			building.expectDevice(id);
+			ids.add(id);
+			deviceTasks.add(() -> fetchDevice(batch, id, type));
+		}
+		// First get the devices themselves...
+		List<Device> fetched = invokeBatch(deviceTasks);
+		for (int i = 0; i < fetched.size(); i++) {
+			Device device = fetched.get(i);
+			// If we couldn't get it, it's still there as far as we know; the last cycle's will do until we can
+			if (device == null) {
+				device = getPreviousDevice(ids.get(i));
+				if (device == null) continue;
+				fetched.set(i, device);
 			}
+			if (devices.get(device.getId()) == device)
+				building.keepDevice(device);
+			else
+				building.addDevice(device);
+		}
+		// ...then all of their readings, one task per feed
+		long dataBatch = currentBatch;
+		ArrayList<Callable<Void>> dataTasks = new ArrayList<>();
+		for (Device device: fetched) {
+			if (device == null) continue;
+			for (DataResolution resolution: DataResolution.values())
+				dataTasks.add(() -> {
+					fillDeviceWithData(dataBatch, device, resolution);
+					return null;
+				});
+		}
+		invokeBatch(dataTasks);
+		// Only now that they have their readings do new devices go into their sites and zones
+		building.link();
+		LOG.info("Finished getting devices, expected {}, {} in total", building.getExpectedDevices().size(), building.getDevices().size());
+	}
+	
+	/**
+	 * Takes devices that are no longer listed, or that have moved, out of the sites and zones we kept from the
+	 * last cycle. Devices that are still listed but that we couldn't get were kept by makeDevices, so they stay.
+	 */
+	private void pruneDevices() {
+		for (String id: devices.keySet())
+			if (!building.getExpectedDevices().contains(id))
+				scheduler.forget(id);
+		for (Site site: building.getSites().values()) {
+			for (Device device: site.getDevices())
+				if (building.getDevice(device.getId()) != device) {
+					site.removeDevice(device);
+					changes.changedSite(site.getId());
+				}
+			for (Zone zone: site.getZones())
+				for (Device device: zone.getDevices())
+					if (building.getDevice(device.getId()) != device)
+						zone.removeDevice(device);
+		}
+	}
+	
+	/**
+	 * @return The IDs of every thread that does ingestion work: this one, and the fetch pool's.
+	 */
+	private long[] getIngestionThreadIds() {
+		long[] pool = executor.getThreadIds();
+		long[] ids = new long[pool.length + 1];
+		ids[0] = Thread.currentThread().getId();
+		System.arraycopy(pool, 0, ids, 1, pool.length);
+		return ids;
+	}
+	
+	private static <T> int countReused(Map<String, T> previous, Map<String, T> current) {
+		int reused = 0;
+		for (Map.Entry<String, T> entry: current.entrySet())
+			if (previous.get(entry.getKey()) == entry.getValue()) reused++;
+		return reused;
+	}
+	
+	/**
+	 * Logs how much of the last cycle's graph was carried over, and how much the cycle allocated.
+	 */
+	private void logReuse() {
+		String allocated = (lastCycleAllocated == -1) ? "unknown" : String.format("%.1f MB", lastCycleAllocated / (1024d * 1024d));
+		LOG.info("Cycle allocated {}; reused {} of {} sites, {} of {} zones and {} of {} devices",
+				allocated,
+				countReused(sites, building.getSites()), building.getSites().size(),
+				countReused(zones, building.getZones()), building.getZones().size(),
+				countReused(devices, building.getDevices()), building.getDevices().size());
+	}
+	
+	/**
+	 * Applies whatever was taken in after the saved snapshot, but before we stopped, from the write-ahead log.
+	 * Readings for devices the snapshot doesn't have are left for the first cycle to fetch.
+	 */
+	private void replayLog(GraphBuilder loaded) {
+		long start = System.currentTimeMillis();
+		int replayed = wal.replay((id, type, resolution, readings) -> {
+			Device device = loaded.getDevice(id);
+			DeviceData data = (device == null) ? null : device.getDeviceData(type, resolution);
+			if (data == null) return;
+			// Only what's newer than we've got, so replaying the same record twice does no harm
+			data.addReadings(readings.tail(readings.upperBound(data.getSeries().getLastTime())));
 		});
-		LOG.info("Finished getting devices, expected {}, {} in total", updating_expectedDevices.size(), updating_devices.size());
+		if (replayed > 0)
+			LOG.info("Replayed {} logged batches of readings in {}ms", replayed, System.currentTimeMillis() - start);
+	}
+	
+	/**
+	 * Publishes the snapshot saved by the last run, if there is one, and carries on from it, so there's
+	 * something to show before the first cycle's done, and that cycle only has to fetch what's new.
+	 * Call this before the first run(), from the same thread.
+	 */
+	public void warmStart() {
+		GraphBuilder loaded = new GraphBuilder();
+		Snapshot saved = store.load(loaded);
+		if (saved == null) return;
+		replayLog(loaded);
+		// Ideals and problems aren't saved, so work them out again
+		ideals = idealator.context();
+		changes = ChangeSet.everything();
+		for (Site site: saved.getSites())
+			setSiteIdeals(site);
+		for (Zone zone: saved.getZones())
+			setZoneIdeals(zone);
+		for (Device device: saved.getDevices()) {
+			setDeviceIdeals(device);
+			for (DeviceData data: device.getData())
+				data.setStore(segments);
+		}
+		ArrayList<Problem> problems = finder.update(saved.getSites(), changes);
+		changes = null;
+		version = saved.getVersion();
+		lastUpdateTime = saved.getTime();
+		manager.publish(Snapshot.copyOf(version, loaded.getDevices(), loaded.getZones(), loaded.getSites(),
+				loaded.getExpectedDevices(), problems, lastUpdateTime));
+		devices = loaded.getDevices();
+		zones = loaded.getZones();
+		sites = loaded.getSites();
+		expectedDevices = loaded.getExpectedDevices();
+		LOG.info("Serving {} devices from the saved snapshot until the first update's done", devices.size());
 	}
 	
 	@Override
 	public void run() {
     	updating = true;
-    	updating_devices = new HashMap<>();
-    	updating_zones= new HashMap<>();
-    	updating_sites= new HashMap<>();
-    	updating_expectedDevices= new HashSet<>();
+    	long start = System.currentTimeMillis();
+    	// We can only build on the last cycle if there was one
+    	working_incremental = incremental && !sites.isEmpty();
+    	unlogged = false;
+    	// Anything taken in by a cycle that didn't finish has to be taken in again
+    	applied.clear();
+    	building = new GraphBuilder();
+    	ideals = idealator.context();
+    	// If the last cycle didn't finish, what it changed still needs looking at
+    	if (!working_incremental) changes = ChangeSet.everything();
+    	else if (changes == null) changes = new ChangeSet();
+    	AllocationMeter meter = new AllocationMeter();
+    	meter.start(getIngestionThreadIds());
 		try {
 			makeSites();
 			makeDevices();
-			manager.update();
-			finder.update(new ArrayList<Site>(updating_sites.values()), new ArrayList<Device>(updating_devices.values()));
+			if (working_incremental)
+				pruneDevices();
+			ArrayList<Problem> problems = finder.update(building.getSites().values(), changes);
+			changes = null;
 			lastUpdateTime = LocalDateTime.now();
-			devices = updating_devices;
-			zones = updating_zones;
-			sites = updating_sites;
-			expectedDevices = updating_expectedDevices;
-			updating = false;
+			lastCycleAllocated = meter.stop();
+			lastCycleDuration = System.currentTimeMillis() - start;
+			logReuse();
+			// Everything the web side sees goes out in one go
+			version++;
+			Snapshot snapshot = Snapshot.copyOf(version, building.getDevices(), building.getZones(), building.getSites(),
+					building.getExpectedDevices(), problems, lastUpdateTime);
+			manager.publish(snapshot);
+			// Only now is what this cycle took in really in use, so the same responses can be skipped next time
+			for (InternetGetterThing.Response response: applied)
+				response.markApplied();
+			applied.clear();
+			// Everything logged is in the snapshot or the store now, so once they're both on disk, the log can go;
+			// unless the log's been failing, in which case it's left as it is until a cycle gets through cleanly
+			if (store.save(snapshot) && segments.sync()) {
+				if (unlogged)
+					LOG.warn("Not checkpointing the log, as some readings couldn't be logged this cycle");
+				else {
+					wal.checkpoint();
+					LOG.info("Logged {} batches of readings with {} syncs since starting", wal.getRecords(), wal.getSyncs());
+				}
+			}
+			LOG.info("Made {} feed requests and saved {} in the last hour ({} and {} since starting)",
+					scheduler.getRequestsMadeLastHour(), scheduler.getRequestsSavedLastHour(),
+					scheduler.getRequestsMade(), scheduler.getRequestsSaved());
+			devices = building.getDevices();
+			zones = building.getZones();
+			sites = building.getSites();
+			expectedDevices = building.getExpectedDevices();
 		} catch (JSONException e) {
 			LOG.error("Caught JSONException when parsing data from server", e);
+		} catch (RuntimeException e) {
+			// Anything thrown from here would stop the scheduler running us again, so this cycle's all we lose
+			LOG.error("Update failed", e);
+		} finally {
+			updating = false;
 		}
 	}
 
-	public HashMap<String, Device> getDevices() { return devices; }
-	public HashMap<String, Zone> getZones() { return zones; }
-	public HashMap<String, Site> getSites() { return sites; }
-	public HashSet<String> getExpectedDevices() { return expectedDevices; }
+	/**
+	 * Re-binds the last cycle's ideals as they stand now, and finds the problems again for just the sites where
+	 * any changed, without fetching anything. For when it goes from day to night or summer to winter between cycles.
+	 * Call it from the same thread as run().
+	 */
+	public void rebindIdeals() {
+		ideals = idealator.context();
+		if (changes == null) changes = new ChangeSet();
+		ArrayList<Site> changed = new ArrayList<>();
+		for (Site site: sites.values()) {
+			boolean siteChanged = setSiteIdeals(site);
+			for (Zone zone: site.getZones())
+				siteChanged |= setZoneIdeals(zone);
+			for (Device device: site.getDevices())
+				siteChanged |= setDeviceIdeals(device);
+			if (siteChanged) changed.add(site);
+		}
+		LOG.info("It's now {} and {}; ideals changed in {} of {} sites", ideals.isDaytime() ? "day" : "night",
+				ideals.isSummer() ? "summer" : "winter", changed.size(), sites.size());
+		if (changed.isEmpty()) return;
+		ArrayList<Problem> problems = finder.update(sites.values(), changes);
+		changes = null;
+		version++;
+		manager.publish(Snapshot.copyOf(version, devices, zones, sites, expectedDevices, problems, lastUpdateTime));
+	}
+	
+	public Map<String, Device> getDevices() { return devices; }
+	public Map<String, Zone> getZones() { return zones; }
+	public Map<String, Site> getSites() { return sites; }
+	public Set<String> getExpectedDevices() { return expectedDevices; }
 	
+	public SegmentStore getSegments() { return segments; }
+	public WriteAheadLog getLog() { return wal; }
+	public PollScheduler getScheduler() { return scheduler; }
+	public FetchExecutor getExecutor() { return executor; }
 	public boolean isUpdating() { return updating; }
+	public boolean isIncremental() { return incremental; }
+	public void setIncremental(boolean incremental) { this.incremental = incremental; }
 	public LocalDateTime getLastUpdateTime() { return lastUpdateTime; }
+	public long getLastCycleAllocated() { return lastCycleAllocated; }
+	public long getLastCycleDuration() { return lastCycleDuration; }
 }
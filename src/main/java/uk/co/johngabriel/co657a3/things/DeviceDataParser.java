@@ -0,0 +1,287 @@
+package uk.co.johngabriel.co657a3.things;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+
+import org.json.JSONException;
+
+/**
+ * Streaming parser for the /device/{id}/{resolution} payloads.
+ * 
+ * Rather than building an org.json DOM of the whole response and then walking it, this reads the
+ * top-level object token by token. Plain fields (id, name, scales...) are kept as strings, and the
+ * [timestamp, value] pairs of any "*_value" or "*_values" array are read straight into a Series.
+ * Anything else (nested objects, other arrays) is skipped without being kept.
+ * 
+ * @author John Gabriel
+ */
+public class DeviceDataParser {
+	private static final int BUFFER_SIZE = 8 * 1024;
+	
+	/**
+	 * The [timestamp, value] pairs of a single "*_value" array, in the order they were sent.
+	 * A null value from the server is stored as NaN.
+	 */
+	public static class Series {
+		private String[] timestamps;
+		private double[] values;
+		private int size;
+		
+		private Series() {
+			timestamps = new String[64];
+			values = new double[64];
+			size = 0;
+		}
+		
+		private void add(String timestamp, double value) {
+			if (size == timestamps.length) {
+				timestamps = Arrays.copyOf(timestamps, size * 2);
+				values = Arrays.copyOf(values, size * 2);
+			}
+			timestamps[size] = timestamp;
+			values[size] = value;
+			size++;
+		}
+		
+		public int size() { return size; }
+		public String getTimestamp(int i) { return timestamps[i]; }
+		public double getValue(int i) { return values[i]; }
+		public boolean isNull(int i) { return Double.isNaN(values[i]); }
+	}
+	
+	/**
+	 * Everything we kept from a single payload.
+	 */
+	public static class Result {
+		private HashMap<String, String> fields = new HashMap<>();
+		private HashMap<String, Series> series = new HashMap<>();
+		
+		public boolean has(String key) { return fields.containsKey(key) || series.containsKey(key); }
+		public String getString(String key) { return fields.get(key); }
+		public Series getSeries(String key) { return series.get(key); }
+	}
+	
+	private final Reader reader;
+	private final char[] buffer;
+	private int position;
+	private int limit;
+	private final StringBuilder scratch;
+	
+	private DeviceDataParser(Reader reader) {
+		this.reader = reader;
+		buffer = new char[BUFFER_SIZE];
+		position = 0;
+		limit = 0;
+		scratch = new StringBuilder();
+	}
+	
+	/**
+	 * Parses a device data payload from the given stream. The stream is not closed.
+	 */
+	public static Result parse(InputStream in) throws IOException, JSONException {
+		return new DeviceDataParser(new InputStreamReader(in, StandardCharsets.UTF_8)).readResult();
+	}
+	
+	/**
+	 * Parses a device data payload from the given reader. The reader is not closed.
+	 */
+	public static Result parse(Reader in) throws IOException, JSONException {
+		return new DeviceDataParser(in).readResult();
+	}
+	
+	private static boolean isSeriesKey(String key) {
+		return key.endsWith("_value") || key.endsWith("_values");
+	}
+	
+	/*
+	 * LOW LEVEL STUFF
+	 */
+	
+	/**
+	 * @return The next character without consuming it, or -1 at the end of the stream.
+	 */
+	private int peek() throws IOException {
+		if (position == limit) {
+			limit = reader.read(buffer, 0, buffer.length);
+			position = 0;
+			if (limit <= 0) {
+				limit = 0;
+				return -1;
+			}
+		}
+		return buffer[position];
+	}
+	
+	private int next() throws IOException {
+		int c = peek();
+		if (c != -1) position++;
+		return c;
+	}
+	
+	/**
+	 * @return The next non-whitespace character without consuming it.
+	 */
+	private int peekToken() throws IOException {
+		int c = peek();
+		while (c == ' ' || c == '\n' || c == '\r' || c == '\t') {
+			position++;
+			c = peek();
+		}
+		return c;
+	}
+	
+	private void expect(char expected) throws IOException, JSONException {
+		int c = peekToken();
+		if (c != expected)
+			throw new JSONException(String.format("Expected '%s' but got '%s'", expected, c == -1 ? "EOF" : (char) c));
+		position++;
+	}
+	
+	private String readString() throws IOException, JSONException {
+		expect('"');
+		scratch.setLength(0);
+		while (true) {
+			int c = next();
+			if (c == -1) throw new JSONException("Unterminated string");
+			if (c == '"') return scratch.toString();
+			if (c == '\\') {
+				int escaped = next();
+				switch (escaped) {
+				case 'b': scratch.append('\b'); break;
+				case 'f': scratch.append('\f'); break;
+				case 'n': scratch.append('\n'); break;
+				case 'r': scratch.append('\r'); break;
+				case 't': scratch.append('\t'); break;
+				case 'u':
+					char[] hex = new char[4];
+					for (int i = 0; i < 4; i++) {
+						int h = next();
+						if (h == -1) throw new JSONException("Unterminated unicode escape");
+						hex[i] = (char) h;
+					}
+					scratch.append((char) Integer.parseInt(new String(hex), 16));
+					break;
+				case -1: throw new JSONException("Unterminated string");
+				default: scratch.append((char) escaped); break;
+				}
+			}
+			else scratch.append((char) c);
+		}
+	}
+	
+	/**
+	 * Reads a bare literal (number, true, false or null) as a string.
+	 */
+	private String readLiteral() throws IOException, JSONException {
+		peekToken();
+		scratch.setLength(0);
+		while (true) {
+			int c = peek();
+			if (c == -1 || c == ',' || c == ']' || c == '}' || c == ' ' || c == '\n' || c == '\r' || c == '\t')
+				break;
+			scratch.append((char) c);
+			position++;
+		}
+		if (scratch.length() == 0) throw new JSONException("Expected a value");
+		return scratch.toString();
+	}
+	
+	/**
+	 * @return A number, or NaN if the literal was null.
+	 */
+	private double readNumber() throws IOException, JSONException {
+		String literal = readLiteral();
+		if (literal.equals("null")) return Double.NaN;
+		try {
+			return Double.parseDouble(literal);
+		} catch (NumberFormatException e) {
+			throw new JSONException("Expected a number but got " + literal);
+		}
+	}
+	
+	/**
+	 * Reads past the next value, whatever it is, without keeping it.
+	 */
+	private void skipValue() throws IOException, JSONException {
+		int c = peekToken();
+		if (c == '"') readString();
+		else if (c == '{' || c == '[') {
+			int depth = 0;
+			do {
+				c = peekToken();
+				if (c == '"') {
+					readString();
+					continue;
+				}
+				position++;
+				if (c == '{' || c == '[') depth++;
+				else if (c == '}' || c == ']') depth--;
+				else if (c == -1) throw new JSONException("Unterminated array or object");
+			} while (depth > 0);
+		}
+		else readLiteral();
+	}
+	
+	/*
+	 * STRUCTURE STUFF
+	 */
+	
+	/**
+	 * Reads a [[timestamp, value], ...] array.
+	 */
+	private Series readSeries() throws IOException, JSONException {
+		Series series = new Series();
+		expect('[');
+		if (peekToken() == ']') {
+			position++;
+			return series;
+		}
+		while (true) {
+			expect('[');
+			String timestamp = readString();
+			expect(',');
+			double value = readNumber();
+			// Skip anything else that's tagged onto the end of the pair
+			while (peekToken() == ',') {
+				position++;
+				skipValue();
+			}
+			expect(']');
+			series.add(timestamp, value);
+			int c = peekToken();
+			position++;
+			if (c == ']') return series;
+			if (c != ',') throw new JSONException("Expected ',' or ']' in readings array");
+		}
+	}
+	
+	private Result readResult() throws IOException, JSONException {
+		Result result = new Result();
+		expect('{');
+		if (peekToken() == '}') return result;
+		while (true) {
+			String key = readString();
+			expect(':');
+			int c = peekToken();
+			if (c == '"')
+				result.fields.put(key, readString());
+			else if (c == '[' && isSeriesKey(key))
+				result.series.put(key, readSeries());
+			else if (c == '[' || c == '{')
+				skipValue();
+			else {
+				String literal = readLiteral();
+				if (!literal.equals("null")) result.fields.put(key, literal);
+			}
+			c = peekToken();
+			position++;
+			if (c == '}') return result;
+			if (c != ',') throw new JSONException("Expected ',' or '}' in device data");
+		}
+	}
+}
@@ -0,0 +1,148 @@
+package uk.co.johngabriel.co657a3.things;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A dedicated pool for the blocking HTTP work done while ingesting, so it never ties up the
+ * common ForkJoinPool that page renders' parallel streams rely on.
+ * 
+ * The queue is bounded; once it's full, submitting waits for a task to finish, which slows
+ * ingestion down rather than letting it queue up without limit. Each batch of tasks gets one
+ * deadline, so a batch never takes longer than the timeout however many of its tasks are slow;
+ * whatever hasn't finished by then is cancelled and its result counted as missing. Cancelling
+ * can't stop a request that's already waiting on the network (the connection's own timeouts
+ * do that), so anything a task changes once it has its response has to check it's still wanted.
+ * 
+ * @author John Gabriel
+ */
+public class FetchExecutor {
+	private static final Logger LOG = LoggerFactory.getLogger(FetchExecutor.class);
+	
+	public static final int DEFAULT_THREADS = 8;
+	public static final int DEFAULT_QUEUE_SIZE = 256;
+	public static final long DEFAULT_BATCH_TIMEOUT = 60; // In seconds
+	
+	private ThreadPoolExecutor executor;
+	private Semaphore slots; // One for every task the pool can be running or have queued; it's what bounds the queue
+	private long batchTimeout; // In milliseconds
+	private AtomicInteger timedOut;
+	private AtomicInteger failed;
+	private CopyOnWriteArrayList<Thread> poolThreads; // Every thread the pool has made, so their allocations can be measured
+	
+	public FetchExecutor() {
+		this(DEFAULT_THREADS, DEFAULT_QUEUE_SIZE, DEFAULT_BATCH_TIMEOUT * 1000);
+	}
+	
+	public FetchExecutor(int threads, int queueSize, long batchTimeout) {
+		this.batchTimeout = batchTimeout;
+		slots = new Semaphore(threads + queueSize);
+		timedOut = new AtomicInteger();
+		failed = new AtomicInteger();
+		poolThreads = new CopyOnWriteArrayList<>();
+		AtomicInteger threadCount = new AtomicInteger();
+		ThreadFactory factory = r -> {
+			Thread thread = new Thread(r, "fetch-" + threadCount.incrementAndGet());
+			thread.setDaemon(true);
+			poolThreads.add(thread);
+			return thread;
+		};
+		executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+				new LinkedBlockingQueue<>(), factory) {
+			// A task that's cancelled stays queued until a thread takes it, so it keeps its slot till then too
+			@Override
+			protected void afterExecute(Runnable r, Throwable t) {
+				slots.release();
+			}
+		};
+	}
+	
+	/**
+	 * Submits the given task once there's room for it, unless the deadline passes first.
+	 * @return Its future, or null if there wasn't room in time.
+	 */
+	private <T> Future<T> submit(Callable<T> task, long deadline) throws InterruptedException {
+		if (!slots.tryAcquire(deadline - System.currentTimeMillis(), TimeUnit.MILLISECONDS))
+			return null;
+		try {
+			return executor.submit(task);
+		} catch (RejectedExecutionException e) {
+			slots.release();
+			throw e;
+		}
+	}
+	
+	/**
+	 * Runs all the given tasks on the pool and waits for them, for no longer than the timeout in all.
+	 * @return Their results, in the same order; null for any that failed or didn't finish in time.
+	 */
+	public <T> List<T> invokeAll(List<? extends Callable<T>> tasks) {
+		long deadline = System.currentTimeMillis() + batchTimeout;
+		ArrayList<Future<T>> futures = new ArrayList<>(tasks.size());
+		try {
+			for (Callable<T> task: tasks)
+				futures.add(submit(task, deadline));
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		ArrayList<T> results = new ArrayList<>(tasks.size());
+		for (int i = 0; i < tasks.size(); i++) {
+			Future<T> future = (i < futures.size()) ? futures.get(i) : null;
+			T result = null;
+			try {
+				if (future == null)
+					throw new TimeoutException();
+				result = future.get(deadline - System.currentTimeMillis(), TimeUnit.MILLISECONDS);
+			} catch (TimeoutException e) {
+				if (future != null) future.cancel(true);
+				timedOut.incrementAndGet();
+				LOG.warn("Fetch task didn't finish within its batch's {}ms", batchTimeout);
+			} catch (ExecutionException | CancellationException e) {
+				failed.incrementAndGet();
+				LOG.error("Fetch task failed", e);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				future.cancel(true);
+			}
+			results.add(result);
+		}
+		return results;
+	}
+	
+	/**
+	 * @return The IDs of the pool's threads that are still alive.
+	 */
+	public long[] getThreadIds() {
+		return poolThreads.stream()
+				.filter(i -> i.isAlive())
+				.mapToLong(i -> i.getId())
+				.toArray();
+	}
+	
+	public void shutdown() {
+		executor.shutdownNow();
+	}
+	
+	public int getPoolSize() { return executor.getPoolSize(); }
+	public int getActiveCount() { return executor.getActiveCount(); }
+	public int getQueueSize() { return executor.getQueue().size(); }
+	public long getCompletedTaskCount() { return executor.getCompletedTaskCount(); }
+	public int getTimedOutCount() { return timedOut.get(); }
+	public int getFailedCount() { return failed.get(); }
+}
@@ -0,0 +1,98 @@
+package uk.co.johngabriel.co657a3.things;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import uk.co.johngabriel.co657a3.model.json.Device;
+import uk.co.johngabriel.co657a3.model.json.Site;
+import uk.co.johngabriel.co657a3.model.json.Zone;
+
+/**
+ * Collects the sites, zones and devices of one update cycle while the fetchers are running.
+ *
+ * Any number of fetch threads can add to it at once; everything goes into concurrent maps, so none of
+ * them wait on each other. Devices that are new this cycle aren't put into their sites and zones straight
+ * away, as those lists are copied on every change; they're queued up, and link() adds each site's and
+ * zone's new devices in one go, from the thread running the cycle, once the fetching's done.
+ *
+ * @author John Gabriel
+ */
+public class GraphBuilder {
+	private ConcurrentHashMap<String, Device> devices;
+	private ConcurrentHashMap<String, Zone> zones;
+	private ConcurrentHashMap<String, Site> sites;
+	private Set<String> expectedDevices;
+	private ConcurrentLinkedQueue<Device> unlinked;
+
+	public GraphBuilder() {
+		devices = new ConcurrentHashMap<>();
+		zones = new ConcurrentHashMap<>();
+		sites = new ConcurrentHashMap<>();
+		expectedDevices = ConcurrentHashMap.newKeySet();
+		unlinked = new ConcurrentLinkedQueue<>();
+	}
+
+	private static String getZoneKey(String siteId, String zoneId) {
+		return siteId + "/" + zoneId;
+	}
+
+	public Map<String, Device> getDevices() { return devices; }
+	public Map<String, Zone> getZones() { return zones; }
+	public Map<String, Site> getSites() { return sites; }
+	public Set<String> getExpectedDevices() { return expectedDevices; }
+
+	public Site getSite(String id) { return sites.get(id); }
+	public Zone getZone(String siteId, String zoneId) { return zones.get(getZoneKey(siteId, zoneId)); }
+	public Device getDevice(String id) { return devices.get(id); }
+	public boolean hasDevice(String id) { return devices.containsKey(id); }
+
+	public void addSite(Site site) {
+		sites.put(site.getId(), site);
+	}
+
+	public void addZone(String siteId, Zone zone) {
+		zones.put(getZoneKey(siteId, zone.getId()), zone);
+	}
+
+	public void expectDevice(String id) {
+		expectedDevices.add(id);
+	}
+
+	/**
+	 * Adds a device we already had last cycle, and which is already in its site and zone.
+	 */
+	public void keepDevice(Device device) {
+		devices.put(device.getId(), device);
+	}
+
+	/**
+	 * Adds a device that's new this cycle. It'll go into its site and zone when link() is called.
+	 */
+	public void addDevice(Device device) {
+		devices.put(device.getId(), device);
+		unlinked.add(device);
+	}
+
+	/**
+	 * Puts all the devices added since last time into their sites and zones, one batch per site and zone.
+	 * Only call this from one thread at a time.
+	 */
+	public void link() {
+		IdentityHashMap<Site, List<Device>> bySite = new IdentityHashMap<>();
+		IdentityHashMap<Zone, List<Device>> byZone = new IdentityHashMap<>();
+		Device next;
+		while ((next = unlinked.poll()) != null) {
+			bySite.computeIfAbsent(next.getSite(), i -> new ArrayList<>()).add(next);
+			byZone.computeIfAbsent(next.getZone(), i -> new ArrayList<>()).add(next);
+		}
+		for (Map.Entry<Site, List<Device>> entry: bySite.entrySet())
+			entry.getKey().addDevices(entry.getValue());
+		for (Map.Entry<Zone, List<Device>> entry: byZone.entrySet())
+			entry.getKey().addDevices(entry.getValue());
+	}
+}
@@ -1,7 +1,15 @@
 package uk.co.johngabriel.co657a3.things;
 
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.time.LocalDateTime;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
 
 import uk.co.johngabriel.co657a3.model.Ideal;
@@ -12,6 +20,12 @@ import uk.co.johngabriel.co657a3.model.json.Zone;
 
 /**
  * Manages ideal values.
+ *
+ * The rules are compiled into an index by scope, id and data type, which for each of the four combinations of
+ * day or night and summer or winter already holds the first rule that applies. So looking an ideal up is a hash
+ * lookup and two array indexes, however many rules there are. Whether it's day or summer is worked out once,
+ * when a Context is made for a pass, rather than for every rule.
+ *
  * @author John Gabriel
  */
 public class Idealator {
@@ -19,8 +33,10 @@ public class Idealator {
 	private static final int HOUR_DAY_END = 19;
 	private static final int MONTH_SUMMER_START = 5;
 	private static final int MONTH_SUMMER_END = 10;
-	
-	private static List<Ideal> ideals = Arrays.asList(new Ideal[] {
+	private static final int TYPES = DataType.values().length;
+	private static final int CONDITIONS = 4; // Day or night, by summer or winter
+
+	public static final List<Ideal> DEFAULT_IDEALS = Collections.unmodifiableList(Arrays.asList(new Ideal[] {
 		new Ideal(Ideal.TYPE_SITE, "gh1", DataType.GAS, 0, 1),
 		new Ideal(Ideal.TYPE_SITE, "gh1", DataType.HUMIDITY, 30, 40),
 		new Ideal(Ideal.TYPE_SITE, "gh1", DataType.TEMPERATURE, 280.15, 302.15, Ideal.DONT_CARE, Ideal.MUST_BE_SUMMER),
@@ -44,66 +60,219 @@ public class Idealator {
 		new Ideal("outside", "heap", DataType.TEMPERATURE, 290, 320),
 		new Ideal("outside", "field", DataType.TEMPERATURE, 268, 305),
 		new Ideal("outside", "field", DataType.MOISTURE, 65, 73)
-	});
-    
+	}));
+
+	/**
+	 * The rules, compiled. Never changed once it's made, so a Context can keep using it after setIdeals().
+	 */
+	private static class Index {
+		// For each id, the ideal for each data type (by ordinal), under each condition (see getCondition())
+		private HashMap<String, Ideal[][]> sites = new HashMap<>();
+		private HashMap<String, HashMap<String, Ideal[][]>> zones = new HashMap<>(); // By site, then zone
+		private HashMap<String, Ideal[][]> devices = new HashMap<>();
+		private int size;
+
+		private Index(List<Ideal> ideals) {
+			for (Ideal ideal: ideals) {
+				HashMap<String, Ideal[][]> scope;
+				String id;
+				switch (ideal.getType()) {
+				case Ideal.TYPE_SITE: scope = sites; id = ideal.getId(); break;
+				case Ideal.TYPE_ZONE: scope = zones.computeIfAbsent(ideal.getSiteId(), i -> new HashMap<>()); id = ideal.getZoneId(); break;
+				case Ideal.TYPE_DEVICE: scope = devices; id = ideal.getId(); break;
+				default: throw new IllegalArgumentException("Unknown ideal type " + ideal.getType());
+				}
+				Ideal[] byCondition = scope.computeIfAbsent(id, i -> new Ideal[TYPES][CONDITIONS])[ideal.getDataType().ordinal()];
+				// Earlier rules win, as they always have
+				for (int condition = 0; condition < CONDITIONS; condition++)
+					if (byCondition[condition] == null && ideal.requirementsMatch(isDay(condition), isSummer(condition)))
+						byCondition[condition] = ideal;
+				size++;
+			}
+		}
+	}
+
 	/**
-	 * @return Whether it's daytime right now.
+	 * The ideals as they stand at one moment; make one for each pass through the sites and devices.
 	 */
-    private static boolean isDaytime() {
-    	int hour = LocalDateTime.now().getHour();
-    	return (hour > HOUR_DAY_START && hour < HOUR_DAY_END);
-    }
-    
-    /**
-     * @return Whether it's summer right now.
-     */
-    private static boolean isSummer() {
-    	int month = LocalDateTime.now().getMonthValue();
-    	return (month > MONTH_SUMMER_START && month < MONTH_SUMMER_END);
-    }
-
-    /**
-     * Determines the ideal range for the given site.
-     */
-    public static Ideal getSiteIdeal(Site site, DataType type) {
-    	return ideals.stream()
-    			.filter(i -> i.getType() == Ideal.TYPE_SITE)
-    			.filter(i -> i.getId().equals(site.getId()))
-    			.filter(i -> i.getDataType() == type)
-    			.filter(i -> i.requirementsMatch(isDaytime(), isSummer()))
-    			.findFirst().orElse(null);
-    }
-
-    /**
-     * Determines the ideal range for the given zone.
-     */
-    public static Ideal getZoneIdeal(Zone zone, DataType type) {
-    	// Is there a specific zone ideal that can serve our needs?
-    	Ideal ideal = ideals.stream()
-    			.filter(i -> i.getType() == Ideal.TYPE_ZONE)
-    			.filter(i -> i.getSiteId().equals(zone.getSite().getId()))
-    			.filter(i -> i.getZoneId().equals(zone.getId()))
-    			.filter(i -> i.getDataType() == type)
-    			.filter(i -> i.requirementsMatch(isDaytime(), isSummer()))
-    			.findFirst().orElse(null);
-    	if (ideal != null) return ideal;
-    	// If not, is there a site ideal that could work?
-    	return getSiteIdeal(zone.getSite(), type);
-    }
-
-    /**
-     * Determines the ideal range for the given device.
-     */
-    public static Ideal getDeviceIdeal(Device device, DataType type) {
-    	// Is there a specific device ideal that can serve our needs?
-    	Ideal ideal = ideals.stream()
-    			.filter(i -> i.getType() == Ideal.TYPE_DEVICE)
-    			.filter(i -> i.getId().equals(device.getId()))
-    			.filter(i -> i.getDataType() == type)
-    			.filter(i -> i.requirementsMatch(isDaytime(), isSummer()))
-    			.findFirst().orElse(null);
-    	if (ideal != null) return ideal;
-    	// If not, is there a zone/site ideal that could work?
-    	return getZoneIdeal(device.getZone(), type);
-    }
+	public static class Context {
+		private Index index;
+		private int condition;
+
+		private Context(Index index, int condition) {
+			this.index = index;
+			this.condition = condition;
+		}
+
+		public boolean isDaytime() { return isDay(condition); }
+		public boolean isSummer() { return Idealator.isSummer(condition); }
+
+		private Ideal find(Ideal[][] ideals, DataType type) {
+			return (ideals == null) ? null : ideals[type.ordinal()][condition];
+		}
+
+		/**
+		 * Determines the ideal range for the given site.
+		 */
+		public Ideal getSiteIdeal(Site site, DataType type) {
+			return find(index.sites.get(site.getId()), type);
+		}
+
+		/**
+		 * Determines the ideal range for the given zone.
+		 */
+		public Ideal getZoneIdeal(Zone zone, DataType type) {
+			// Is there a specific zone ideal that can serve our needs?
+			HashMap<String, Ideal[][]> siteZones = index.zones.get(zone.getSite().getId());
+			Ideal ideal = (siteZones == null) ? null : find(siteZones.get(zone.getId()), type);
+			if (ideal != null) return ideal;
+			// If not, is there a site ideal that could work?
+			return getSiteIdeal(zone.getSite(), type);
+		}
+
+		/**
+		 * Determines the ideal range for the given device.
+		 */
+		public Ideal getDeviceIdeal(Device device, DataType type) {
+			// Is there a specific device ideal that can serve our needs?
+			Ideal ideal = find(index.devices.get(device.getId()), type);
+			if (ideal != null) return ideal;
+			// If not, is there a zone/site ideal that could work?
+			return getZoneIdeal(device.getZone(), type);
+		}
+	}
+
+	private volatile Index index;
+
+	public Idealator() {
+		this(DEFAULT_IDEALS);
+	}
+
+	public Idealator(List<Ideal> ideals) {
+		setIdeals(ideals);
+	}
+
+	/**
+	 * Replaces the rules. Contexts made before this carry on with the old ones.
+	 */
+	public void setIdeals(List<Ideal> ideals) {
+		index = new Index(ideals);
+	}
+
+	/**
+	 * @return How many rules there are.
+	 */
+	public int size() { return index.size; }
+
+	private static int getCondition(boolean isDay, boolean isSummer) {
+		return (isDay ? 1 : 0) | (isSummer ? 2 : 0);
+	}
+
+	private static boolean isDay(int condition) { return (condition & 1) != 0; }
+	private static boolean isSummer(int condition) { return (condition & 2) != 0; }
+
+	/**
+	 * @return Whether it's daytime at the given time.
+	 */
+	public static boolean isDaytime(LocalDateTime time) {
+		int hour = time.getHour();
+		return (hour > HOUR_DAY_START && hour < HOUR_DAY_END);
+	}
+
+	/**
+	 * @return Whether it's summer at the given time.
+	 */
+	public static boolean isSummer(LocalDateTime time) {
+		int month = time.getMonthValue();
+		return (month > MONTH_SUMMER_START && month < MONTH_SUMMER_END);
+	}
+
+	/**
+	 * @return The next time after the given one that it goes from day to night, summer to winter, or back again;
+	 * when the ideals that depend on either might change.
+	 */
+	public static LocalDateTime getNextBoundary(LocalDateTime time) {
+		int condition = getCondition(isDaytime(time), isSummer(time));
+		// Both only change on the hour, and day always turns to night within a day, so this doesn't go far
+		LocalDateTime next = time.truncatedTo(ChronoUnit.HOURS);
+		do {
+			next = next.plusHours(1);
+		} while (getCondition(isDaytime(next), isSummer(next)) == condition);
+		return next;
+	}
+
+	/**
+	 * @return The ideals as they stand right now.
+	 */
+	public Context context() {
+		return context(LocalDateTime.now());
+	}
+
+	/**
+	 * @return The ideals as they stand at the given time.
+	 */
+	public Context context(LocalDateTime time) {
+		return new Context(index, getCondition(isDaytime(time), isSummer(time)));
+	}
+
+	/**
+	 * Reads rules from a file, one per line, first to match winning:
+	 * <pre>
+	 * site gh1 TEMPERATURE 280.15 302.15 any summer
+	 * zone house/store LUMOSITY 0 5 night
+	 * device some-device MOISTURE 10 60
+	 * </pre>
+	 * The time of day (day, night or any) and season (summer, winter or any) are optional. Blank lines and
+	 * anything after a # are ignored.
+	 * @throws IllegalArgumentException If a line doesn't make sense.
+	 */
+	public static List<Ideal> load(File file) throws IOException {
+		ArrayList<Ideal> ideals = new ArrayList<>();
+		int number = 0;
+		for (String line: Files.readAllLines(file.toPath(), StandardCharsets.UTF_8)) {
+			number++;
+			int comment = line.indexOf('#');
+			if (comment != -1) line = line.substring(0, comment);
+			line = line.trim();
+			if (line.isEmpty()) continue;
+			try {
+				ideals.add(parse(line));
+			} catch (IllegalArgumentException e) {
+				throw new IllegalArgumentException(file + ", line " + number + ": " + e.getMessage(), e);
+			}
+		}
+		return ideals;
+	}
+
+	/**
+	 * Reads a single rule, as described in load().
+	 * @throws IllegalArgumentException If it doesn't make sense.
+	 */
+	public static Ideal parse(String line) {
+		String[] parts = line.trim().split("\\s+");
+		if (parts.length < 5 || parts.length > 7)
+			throw new IllegalArgumentException("Expected scope, id, type, min, max, and optionally time and season: " + line);
+		DataType dataType = DataType.valueOf(parts[2].toUpperCase());
+		double min = Double.parseDouble(parts[3]);
+		double max = Double.parseDouble(parts[4]);
+		byte time = parseRequirement(parts.length > 5 ? parts[5] : "any", "day", Ideal.MUST_BE_DAY, "night", Ideal.MUST_BE_NIGHT);
+		byte season = parseRequirement(parts.length > 6 ? parts[6] : "any", "summer", Ideal.MUST_BE_SUMMER, "winter", Ideal.MUST_BE_WINTER);
+		switch (parts[0].toLowerCase()) {
+		case "site": return new Ideal(Ideal.TYPE_SITE, parts[1], dataType, min, max, time, season);
+		case "device": return new Ideal(Ideal.TYPE_DEVICE, parts[1], dataType, min, max, time, season);
+		case "zone":
+			int slash = parts[1].indexOf('/');
+			if (slash == -1)
+				throw new IllegalArgumentException("Zone ids need to be site/zone: " + parts[1]);
+			return new Ideal(parts[1].substring(0, slash), parts[1].substring(slash + 1), dataType, min, max, time, season);
+		default: throw new IllegalArgumentException("Unknown scope " + parts[0]);
+		}
+	}
+
+	private static byte parseRequirement(String value, String first, byte firstValue, String second, byte secondValue) {
+		if (value.equalsIgnoreCase("any")) return Ideal.DONT_CARE;
+		if (value.equalsIgnoreCase(first)) return firstValue;
+		if (value.equalsIgnoreCase(second)) return secondValue;
+		throw new IllegalArgumentException("Expected " + first + ", " + second + " or any: " + value);
+	}
 }
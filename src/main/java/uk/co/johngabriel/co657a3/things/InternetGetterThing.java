@@ -1,11 +1,15 @@
 package uk.co.johngabriel.co657a3.things;
 
-import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
+import java.io.InputStream;
 import java.net.HttpURLConnection;
 import java.net.SocketException;
 import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
 
 import org.json.JSONArray;
 import org.json.JSONException;
@@ -19,8 +23,14 @@ import uk.co.johngabriel.co657a3.model.json.DataResolution;
 /**
  * Handles all the interactions with shed.kent.ac.uk.
  * 
+ * Connections are kept alive between requests and handed back to the JDK's keep-alive pool,
+ * so a refresh cycle only pays for TCP setup once per pooled connection rather than once per URL.
+ * For that to work the body (or error body) of every response has to be read to the end and the
+ * stream closed - never disconnect() - otherwise the socket gets thrown away.
+ * 
  * References:
  * https://www.mkyong.com/java/how-to-send-http-request-getpost-in-java/
+ * https://docs.oracle.com/javase/8/docs/technotes/guides/net/http-keepalive.html
  * 
  * @author John Gabriel
  */
@@ -33,71 +43,224 @@ public class InternetGetterThing {
 	private static final String DEVICES_URL = "http://shed.kent.ac.uk/devices";
 	private static final String DEVICE_URL = "http://shed.kent.ac.uk/device/";
 	
-	public static String makeGetRequest(String url) throws SocketException, IOException {
-		LOG.debug("Making GET request to {}", url);
-		URL urlObject = new URL(url);
-		// Construct the request
+	private static final int CONNECT_TIMEOUT = 5000; // In milliseconds
+	private static final int READ_TIMEOUT = 20000; // In milliseconds
+	private static final int MAX_CONNECTIONS_PER_HOST = 8; // Both the size of the keep-alive pool and the concurrency limit
+	private static final int BUFFER_SIZE = 16 * 1024;
+	
+	// Limits how many requests can be in flight to a single host at once
+	private static final ConcurrentHashMap<String, Semaphore> hostPermits = new ConcurrentHashMap<>();
+	
+	/**
+	 * A response body, and whether it's the same as the last one for that URL that was taken in.
+	 */
+	public static class Response {
+		private ResponseCache cache;
+		private String url;
+		private byte[] body;
+		private String hash;
+		private boolean unchanged;
+		
+		private Response(ResponseCache cache, String url, byte[] body, String hash, boolean unchanged) {
+			this.cache = cache;
+			this.url = url;
+			this.body = body;
+			this.hash = hash;
+			this.unchanged = unchanged;
+		}
+		
+		public byte[] getBody() { return body; }
+		public boolean isUnchanged() { return unchanged; }
+		
+		/**
+		 * Records that this body has been taken in, so the next response for the URL with the same body is unchanged.
+		 * Only call it once whatever was in it has been applied, or it'll be skipped next time without ever being used.
+		 */
+		public void markApplied() {
+			cache.deliver(url, hash);
+		}
+		
+		public JSONObject getJSONObject() throws JSONException {
+			return new JSONObject(new String(body, StandardCharsets.UTF_8));
+		}
+		
+		public JSONArray getJSONArray() throws JSONException {
+			return new JSONArray(new String(body, StandardCharsets.UTF_8));
+		}
+		
+		public DeviceDataParser.Result getDeviceData() throws JSONException {
+			try {
+				return DeviceDataParser.parse(new ByteArrayInputStream(body));
+			} catch (IOException e) {
+				throw new JSONException(e); // Can't happen when reading from memory
+			}
+		}
+	}
+	
+	static {
+		// These have to be set before the first connection is made, as the JDK reads them once
+		System.setProperty("http.keepAlive", "true");
+		System.setProperty("http.maxConnections", Integer.toString(MAX_CONNECTIONS_PER_HOST));
+	}
+	
+	/**
+	 * Reads the whole of the given stream into a byte array.
+	 */
+	private static byte[] readFully(InputStream in, int expectedLength) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream(expectedLength > 0 ? expectedLength : BUFFER_SIZE);
+		byte[] buffer = new byte[BUFFER_SIZE];
+		int read;
+		while ((read = in.read(buffer)) != -1)
+			out.write(buffer, 0, read);
+		return out.toByteArray();
+	}
+	
+	/**
+	 * Reads and throws away whatever is left on the given stream, then closes it,
+	 * so the connection can go back in the pool.
+	 */
+	private static void finish(InputStream in) {
+		byte[] buffer = new byte[BUFFER_SIZE];
+		try {
+			while (in.read(buffer) != -1);
+			in.close();
+		} catch (IOException e) {
+			LOG.trace("Couldn't finish reading response: {}", e.getMessage());
+		}
+	}
+	
+	private static void drain(HttpURLConnection connection) {
+		InputStream err = connection.getErrorStream();
+		if (err != null) finish(err);
+	}
+	
+	/**
+	 * @return The semaphore guarding the given host, creating it if needed.
+	 */
+	private static Semaphore getHostPermit(String host) {
+		return hostPermits.computeIfAbsent(host, i -> new Semaphore(MAX_CONNECTIONS_PER_HOST, true));
+	}
+	
+	
+	private static void acquire(Semaphore permit, String host) throws IOException {
+		try {
+			permit.acquire();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while waiting for a connection to " + host);
+		}
+	}
+	
+	private static HttpURLConnection openConnection(URL urlObject) throws IOException {
 		HttpURLConnection connection = (HttpURLConnection) urlObject.openConnection();
 		connection.setRequestMethod("GET");
 		connection.setRequestProperty("User-Agent", USER_AGENT);
-		// Get the response
-		int responseCode = connection.getResponseCode();
-		LOG.trace("Response from {} was {}", url, responseCode);
-		// Read the response into a string
-		BufferedReader br = new BufferedReader(new InputStreamReader(connection.getInputStream()));
-		StringBuffer response = new StringBuffer();
-		String inputLine;
-		while ((inputLine = br.readLine()) != null)
-			response.append(inputLine);
-		br.close();
-		// Convert the response to a JSON object and return it
-		String responseString = response.toString();
-		return responseString;
-	}
-	
-	public static JSONArray getJSONArray(String url) throws JSONException {
-		String jsonString;
+		connection.setRequestProperty("Connection", "keep-alive");
+		connection.setConnectTimeout(CONNECT_TIMEOUT);
+		connection.setReadTimeout(READ_TIMEOUT);
+		connection.setUseCaches(false);
+		return connection;
+	}
+	
+	/**
+	 * @return The response code for the given connection, making sure it can still be reused if that fails.
+	 */
+	private static int getResponseCode(HttpURLConnection connection, String url) throws IOException {
+		int responseCode;
 		try {
-			jsonString = makeGetRequest(url);
-		} catch (SocketException e) {
-			LOG.error("Got SocketException for {}; probably the server crapping out again");
-			return null;
+			responseCode = connection.getResponseCode();
 		} catch (IOException e) {
-			LOG.error("Got {} for {}", e.getMessage(), url);
-			e.printStackTrace();
-			return null;
+			drain(connection);
+			throw e;
+		}
+		LOG.trace("Response from {} was {}", url, responseCode);
+		if (responseCode >= 400) {
+			drain(connection);
+			throw new IOException("Server returned " + responseCode + " for " + url);
 		}
-		return new JSONArray(jsonString);
+		return responseCode;
 	}
 	
-	public static JSONObject getJSONObject(String url) throws JSONException {
-		String jsonString;
+	/**
+	 * Makes a conditional GET request to the given URL, using whatever validators the given cache has for it.
+	 * A 304 is answered from the cache, and the response is marked unchanged if the body is the same as the
+	 * last one for that URL to be marked applied - whether the server said so or we worked it out from the hash.
+	 */
+	public static Response getResponse(ResponseCache cache, String url) throws SocketException, IOException {
+		LOG.debug("Making conditional GET request to {}", url);
+		URL urlObject = new URL(url);
+		ResponseCache.Entry entry = cache.get(url);
+		Semaphore permit = getHostPermit(urlObject.getHost());
+		acquire(permit, urlObject.getHost());
+		byte[] body;
+		String hash;
 		try {
-			jsonString = makeGetRequest(url);
+			HttpURLConnection connection = openConnection(urlObject);
+			if (entry != null) {
+				if (entry.getEtag() != null) connection.setRequestProperty("If-None-Match", entry.getEtag());
+				if (entry.getLastModified() != null) connection.setRequestProperty("If-Modified-Since", entry.getLastModified());
+			}
+			int responseCode = getResponseCode(connection, url);
+			InputStream in = connection.getInputStream();
+			try {
+				if (responseCode == HttpURLConnection.HTTP_NOT_MODIFIED && entry != null) {
+					body = null;
+					hash = entry.getHash();
+				}
+				else {
+					body = readFully(in, connection.getContentLength());
+					hash = ResponseCache.hash(body);
+					cache.put(url, connection.getHeaderField("ETag"), connection.getHeaderField("Last-Modified"), body, hash);
+				}
+			} finally {
+				finish(in);
+			}
+		} finally {
+			permit.release();
+		}
+		if (body == null) {
+			LOG.trace("{} not modified; using cached copy", url);
+			body = cache.getBody(url);
+			// If the cached copy has gone missing, forget about it and ask again properly
+			if (body == null) {
+				cache.remove(url);
+				return getResponse(cache, url);
+			}
+		}
+		return new Response(cache, url, body, hash, cache.isDelivered(url, hash));
+	}
+	
+	/**
+	 * Like getResponse, but logs failures and returns null instead of throwing.
+	 */
+	private static Response getResponseOrNull(ResponseCache cache, String url) {
+		try {
+			return getResponse(cache, url);
 		} catch (SocketException e) {
 			LOG.error("Got SocketException for {}; probably the server crapping out again", url);
 			return null;
 		} catch (IOException e) {
-			LOG.error("Got {} for {}", e.getMessage(), url);
-			e.printStackTrace();
+			LOG.error("Got {} for {}", e.getMessage(), url, e);
 			return null;
 		}
-		return new JSONObject(jsonString);
 	}
 	
-	public static JSONArray getSites() throws JSONException {
-		return getJSONArray(SITE_URL);
+	public static JSONArray getSites(ResponseCache cache) throws JSONException {
+		Response response = getSitesResponse(cache);
+		return (response != null) ? response.getJSONArray() : null;
 	}
 	
-	public static JSONObject getDevices() throws JSONException {
-		return getJSONObject(DEVICES_URL);
+	public static JSONObject getDevices(ResponseCache cache) throws JSONException {
+		Response response = getDevicesResponse(cache);
+		return (response != null) ? response.getJSONObject() : null;
 	}
 	
-	public static JSONObject getDevice(String deviceId) throws JSONException {
-		return getJSONObject(DEVICE_URL + deviceId);
+	public static JSONObject getDevice(ResponseCache cache, String deviceId) throws JSONException {
+		Response response = getDeviceResponse(cache, deviceId);
+		return (response != null) ? response.getJSONObject() : null;
 	}
 	
-	public static JSONObject getDeviceData(String deviceId, DataResolution resolution) throws JSONException {
+	private static String getDeviceDataUrl(String deviceId, DataResolution resolution) {
 		String resString;
 		switch (resolution) {
 		case EVERY_MINUTE: resString = "minute"; break;
@@ -108,6 +271,32 @@ public class InternetGetterThing {
 			resString = "minute";
 			break;
 		}
-		return getJSONObject(DEVICE_URL + deviceId + "/" + resString);
+		return DEVICE_URL + deviceId + "/" + resString;
+	}
+	
+	public static JSONObject getDeviceData(ResponseCache cache, String deviceId, DataResolution resolution) throws JSONException {
+		Response response = getDeviceDataResponse(cache, deviceId, resolution);
+		return (response != null) ? response.getJSONObject() : null;
+	}
+	
+	/*
+	 * These ones say whether anything's changed, so the caller can skip the work if it hasn't.
+	 * They all return null if the request failed.
+	 */
+	
+	public static Response getSitesResponse(ResponseCache cache) {
+		return getResponseOrNull(cache, SITE_URL);
+	}
+	
+	public static Response getDevicesResponse(ResponseCache cache) {
+		return getResponseOrNull(cache, DEVICES_URL);
+	}
+	
+	public static Response getDeviceResponse(ResponseCache cache, String deviceId) {
+		return getResponseOrNull(cache, DEVICE_URL + deviceId);
+	}
+	
+	public static Response getDeviceDataResponse(ResponseCache cache, String deviceId, DataResolution resolution) {
+		return getResponseOrNull(cache, getDeviceDataUrl(deviceId, resolution));
 	}
 }
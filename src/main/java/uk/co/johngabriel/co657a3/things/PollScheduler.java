@@ -0,0 +1,143 @@
+package uk.co.johngabriel.co657a3.things;
+
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import uk.co.johngabriel.co657a3.model.json.DataResolution;
+
+/**
+ * Decides when each (device, resolution) feed next needs fetching.
+ * 
+ * A feed can only change once per interval of its resolution, so after a poll it isn't due again
+ * until the next interval boundary, plus a little grace for the server to publish what's new. Devices
+ * that haven't connected for a while are backed off further, doubling each time they're found stale,
+ * until they come back; connected() puts them straight back to normal once they do.
+ * 
+ * All the times it's given are in UTC, like the server's, so the boundaries and last connections
+ * line up whatever the local time zone is.
+ * 
+ * @author John Gabriel
+ */
+public class PollScheduler {
+	private static final long STALE_AFTER = 5 * 60; // In seconds; matches what ProblemFinder considers late
+	private static final int MAX_BACKOFF = 16; // At most this many intervals between polls of a stale feed
+	private static final long PUBLISH_GRACE = 10; // In seconds; how long after a boundary the new readings might take to appear
+	
+	private static class Feed {
+		private volatile long nextPoll; // Epoch second; read without the lock by isDue
+		private int backoff = 1;
+	}
+	
+	private ConcurrentHashMap<String, Feed> feeds;
+	private AtomicLong requestsMade;
+	private AtomicLong requestsSaved;
+	// One slot per minute of the last hour, for the hourly figures
+	private long[] bucketMinute;
+	private long[] madeBuckets;
+	private long[] savedBuckets;
+	
+	public PollScheduler() {
+		feeds = new ConcurrentHashMap<>();
+		requestsMade = new AtomicLong();
+		requestsSaved = new AtomicLong();
+		bucketMinute = new long[60];
+		madeBuckets = new long[60];
+		savedBuckets = new long[60];
+	}
+	
+	private static String getKey(String deviceId, DataResolution resolution) {
+		return deviceId + "/" + resolution.name();
+	}
+	
+	private static long toEpochSecond(LocalDateTime time) {
+		return time.toEpochSecond(ZoneOffset.UTC);
+	}
+	
+	private synchronized void record(long now, boolean made) {
+		long minute = now / 60;
+		int slot = (int) (minute % 60);
+		if (bucketMinute[slot] != minute) {
+			bucketMinute[slot] = minute;
+			madeBuckets[slot] = 0;
+			savedBuckets[slot] = 0;
+		}
+		if (made) madeBuckets[slot]++;
+		else savedBuckets[slot]++;
+	}
+	
+	private synchronized long sumLastHour(long[] buckets, long now) {
+		long minute = now / 60;
+		long total = 0;
+		for (int i = 0; i < 60; i++)
+			if (minute - bucketMinute[i] < 60) total += buckets[i];
+		return total;
+	}
+	
+	/**
+	 * @return Whether the given feed needs fetching now (in UTC). Feeds we've never polled are always due.
+	 * If it isn't due, that's counted as a request saved.
+	 */
+	public boolean isDue(String deviceId, DataResolution resolution, LocalDateTime now) {
+		Feed feed = feeds.get(getKey(deviceId, resolution));
+		long nowSeconds = toEpochSecond(now);
+		if (feed == null || nowSeconds >= feed.nextPoll) return true;
+		requestsSaved.incrementAndGet();
+		record(nowSeconds, false);
+		return false;
+	}
+	
+	/**
+	 * Records that the given feed has just been fetched, now (in UTC), and works out when it's next due.
+	 */
+	public void polled(String deviceId, DataResolution resolution, LocalDateTime now, LocalDateTime lastConnection) {
+		long nowSeconds = toEpochSecond(now);
+		requestsMade.incrementAndGet();
+		record(nowSeconds, true);
+		Feed feed = feeds.computeIfAbsent(getKey(deviceId, resolution), i -> new Feed());
+		synchronized (feed) {
+			boolean stale = lastConnection == null || nowSeconds - toEpochSecond(lastConnection) > STALE_AFTER;
+			if (stale) feed.backoff = Math.min(feed.backoff * 2, MAX_BACKOFF);
+			else feed.backoff = 1;
+			// Line up with the interval boundaries, as that's when new readings can appear; if the last one was
+			// too recent for its readings to be out yet, it still counts as the next one
+			long interval = resolution.getInterval();
+			long published = Math.floorDiv(nowSeconds - PUBLISH_GRACE, interval) * interval;
+			feed.nextPoll = published + (interval * feed.backoff) + PUBLISH_GRACE;
+		}
+	}
+	
+	/**
+	 * Tells it the given device's last connection, as of now (both in UTC). If the device has connected recently,
+	 * any of its feeds that were backed off while it was stale are due again straight away, rather than once the
+	 * back-off runs out.
+	 */
+	public void connected(String deviceId, LocalDateTime now, LocalDateTime lastConnection) {
+		if (lastConnection == null || toEpochSecond(now) - toEpochSecond(lastConnection) > STALE_AFTER)
+			return;
+		for (DataResolution resolution: DataResolution.values()) {
+			Feed feed = feeds.get(getKey(deviceId, resolution));
+			if (feed == null) continue;
+			synchronized (feed) {
+				if (feed.backoff > 1) {
+					feed.backoff = 1;
+					feed.nextPoll = Long.MIN_VALUE;
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Forgets everything about the given device's feeds, so they're all due next time.
+	 */
+	public void forget(String deviceId) {
+		for (DataResolution resolution: DataResolution.values())
+			feeds.remove(getKey(deviceId, resolution));
+	}
+	
+	public long getRequestsMade() { return requestsMade.get(); }
+	public long getRequestsSaved() { return requestsSaved.get(); }
+	public long getRequestsMadeLastHour() { return sumLastHour(madeBuckets, toEpochSecond(LocalDateTime.now(ZoneOffset.UTC))); }
+	public long getRequestsSavedLastHour() { return sumLastHour(savedBuckets, toEpochSecond(LocalDateTime.now(ZoneOffset.UTC))); }
+}
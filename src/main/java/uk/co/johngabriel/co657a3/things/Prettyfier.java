@@ -6,10 +6,14 @@ import java.time.format.DateTimeFormatter;
 import java.time.temporal.ChronoUnit;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.TreeMap;
 import java.util.stream.Collector;
 import java.util.stream.Collectors;
 
@@ -26,9 +30,11 @@ import uk.co.johngabriel.co657a3.model.Table;
 import uk.co.johngabriel.co657a3.model.json.DataResolution;
 import uk.co.johngabriel.co657a3.model.json.DataType;
 import uk.co.johngabriel.co657a3.model.json.Device;
+import uk.co.johngabriel.co657a3.model.json.DeviceData;
 import uk.co.johngabriel.co657a3.model.json.DeviceType;
 import uk.co.johngabriel.co657a3.model.json.IdealStatus;
 import uk.co.johngabriel.co657a3.model.json.Reading;
+import uk.co.johngabriel.co657a3.model.json.Rollup;
 import uk.co.johngabriel.co657a3.model.json.Site;
 import uk.co.johngabriel.co657a3.model.json.Zone;
 import uk.co.johngabriel.co657a3.webbits.WebController;
@@ -42,6 +48,7 @@ public class Prettyfier {
 	
 	private static DateTimeFormatter formatter1 = DateTimeFormatter.ofPattern("yyyy/MM/dd");
 	private static DateTimeFormatter formatter2 = DateTimeFormatter.ofPattern("yyyy/MM/dd HH:mm:SS");
+	private static final int MAX_ROLLUP_POINTS = 500; // At most this many buckets for the rolled-up part of a chart
 
 	public static String timeSince(LocalDateTime ldt) {
 		long seconds = ldt.until(LocalDateTime.now(), ChronoUnit.SECONDS);
@@ -73,6 +80,18 @@ public class Prettyfier {
 			return timestamp.truncatedTo(ChronoUnit.MINUTES);
 	}
 	
+	/**
+	 * Same as above, but for epoch milliseconds.
+	 */
+	public static long toNearestMinute(long epochMilli) {
+		long minute = Math.floorDiv(epochMilli, 60000L) * 60000L;
+		long second = (epochMilli - minute) / 1000;
+		if (second > 30)
+			return minute + 60000L;
+		else
+			return minute;
+	}
+	
 	private static final byte TEMP_KELVIN = 0;
 	private static final byte TEMP_CELCIUS = 1;
 	private static final byte TEMP_FAHRENHEIT = 2;
@@ -112,6 +131,14 @@ public class Prettyfier {
 		}
 	}
 	
+	/**
+	 * @return A raw standard deviation around the given raw mean, adjusted for the currently selected scale for that data type.
+	 */
+	public static double getReadingDeviation(double mean, double sd, DataType type) {
+		// The scales are all linear, so the spread just gets stretched along with everything else
+		return Math.abs(getReadingValue(mean + sd, type) - getReadingValue(mean, type));
+	}
+	
 	public static String getReadingScale(DataType type) {
 		switch (type) {
 		case TEMPERATURE: return tempChar[tempType];
@@ -169,7 +196,7 @@ public class Prettyfier {
 		};
 	}
 
-	public static Table getProblemTable(ArrayList<Problem> problems) {
+	public static Table getProblemTable(List<Problem> problems) {
 		Cell[][] contents = problems.stream()
 				.map(i -> getProblemRow(i))
 				.toArray(Cell[][]::new);
@@ -194,7 +221,7 @@ public class Prettyfier {
 		};
 	}
 
-	public static Table getSiteTable(ArrayList<Site> sites) {
+	public static Table getSiteTable(List<Site> sites) {
 		Cell[][] contents = sites.stream()
 				.map(i -> getSiteRow(i))
 				.toArray(Cell[][]::new);
@@ -249,17 +276,26 @@ public class Prettyfier {
 	 * This one is for filling the chart.
 	 */
 	public static HashMap<String, Object> getSiteChartData(Site site, DataResolution resolution) {
+		return getSiteChartData(site, resolution, null);
+	}
+
+	/**
+	 * This one is for filling the chart, from the given time (in UTC) on; see getRollupRows.
+	 */
+	public static HashMap<String, Object> getSiteChartData(Site site, DataResolution resolution, LocalDateTime from) {
 		HashMap<String, Object> result = new HashMap<>();
 		List<DataType> types = site.getTypes();
 		String[] typeNames = types.stream().map(i -> i.getLabel()).toArray(String[]::new);
 		result.put("name", site.getName());
 		result.put("types", typeNames);
 		List<LocalDateTime> timestamps = site.getTimestamps();
-		Object[][] table = timestamps.parallelStream()
+		List<Object[]> rows = timestamps.parallelStream()
+				.filter(i -> from == null || !i.isBefore(from))
 				.map(i -> getSiteChartRow(site, resolution, types, i))
 				.filter(i -> i != null)
-				.toArray(Object[][]::new);
-		result.put("values", table);
+				.collect(Collectors.toList());
+		rows.addAll(getRollupRows(site.getDevices(), resolution, types, from));
+		result.put("values", rows.toArray(new Object[rows.size()][]));
 		return result;
 	}
 	
@@ -300,7 +336,7 @@ public class Prettyfier {
 		};
 	}
 
-	public static Table getZoneTable(ArrayList<Zone> zones) {
+	public static Table getZoneTable(List<Zone> zones) {
 		Cell[][] contents = zones.stream()
 				.map(i -> getZoneRow(i))
 				.toArray(Cell[][]::new);
@@ -358,17 +394,26 @@ public class Prettyfier {
 	 * This one is for filling the chart.
 	 */
 	public static HashMap<String, Object> getZoneChartData(Zone zone, DataResolution resolution) {
+		return getZoneChartData(zone, resolution, null);
+	}
+
+	/**
+	 * This one is for filling the chart, from the given time (in UTC) on; see getRollupRows.
+	 */
+	public static HashMap<String, Object> getZoneChartData(Zone zone, DataResolution resolution, LocalDateTime from) {
 		HashMap<String, Object> result = new HashMap<>();
 		List<DataType> types = zone.getTypes();
 		String[] typeNames = types.stream().map(i -> i.getLabel()).toArray(String[]::new);
 		result.put("name", zone.getName());
 		result.put("types", typeNames);
 		List<LocalDateTime> timestamps = zone.getTimestamps();
-		Object[][] table = timestamps.parallelStream()
+		List<Object[]> rows = timestamps.parallelStream()
+				.filter(i -> from == null || !i.isBefore(from))
 				.map(i -> getZoneChartRow(zone, resolution, types, i))
 				.filter(i -> i != null)
-				.toArray(Object[][]::new);
-		result.put("values", table);
+				.collect(Collectors.toList());
+		rows.addAll(getRollupRows(zone.getDevices(), resolution, types, from));
+		result.put("values", rows.toArray(new Object[rows.size()][]));
 		return result;
 	}
 	
@@ -415,7 +460,7 @@ public class Prettyfier {
 				.collect(Collectors.joining(", "));
 	}
 
-	public static Table getDeviceTable(ArrayList<Device> devices) {
+	public static Table getDeviceTable(List<Device> devices) {
 		Cell[][] contents = devices.stream()
 				.map(i -> getDeviceRow(i))
 				.toArray(Cell[][]::new);
@@ -477,19 +522,74 @@ public class Prettyfier {
 	 * This one is for filling the chart.
 	 */
 	public static HashMap<String, Object> getChartData(Device device, DataResolution resolution) {
+		return getChartData(device, resolution, null);
+	}
+
+	/**
+	 * This one is for filling the chart, from the given time (in UTC) on; see getRollupRows.
+	 */
+	public static HashMap<String, Object> getChartData(Device device, DataResolution resolution, LocalDateTime from) {
 		HashMap<String, Object> result = new HashMap<>();
 		List<DataType> types = device.getTypes();
 		String[] typeNames = types.stream().map(i -> i.getLabel()).toArray(String[]::new);
 		result.put("name", device.getName());
 		result.put("types", typeNames);
 		List<LocalDateTime> timestamps = device.getTimestamps(resolution);
-		Object[][] table = timestamps.parallelStream()
+		List<Object[]> rows = timestamps.parallelStream()
+				.filter(i -> from == null || !i.isBefore(from))
 				.map(i -> getChartRow(device, resolution, types, i))
-				.toArray(Object[][]::new);
-		result.put("values", table);
+				.collect(Collectors.toList());
+		rows.addAll(getRollupRows(Collections.singletonList(device), resolution, types, from));
+		result.put("values", rows.toArray(new Object[rows.size()][]));
 		return result;
 	}
 
+	/**
+	 * @return When the raw readings in the given data are kept from, as of now (in UTC); null if there isn't a store,
+	 * or they're kept for good, so nothing of it is only in the rollups.
+	 */
+	private static LocalDateTime getRawStart(DeviceData data, LocalDateTime now) {
+		SegmentStore store = (data == null) ? null : data.getStore();
+		if (store == null) return null;
+		long keep = store.getRetention().getRawKeep();
+		return (keep == RetentionPolicy.FOREVER) ? null : now.minus(keep, ChronoUnit.MILLIS);
+	}
+
+	/**
+	 * @return Chart rows for the part of the range from the given time (in UTC) that's older than raw readings are
+	 * kept for, out of the rollups: a row per bucket, newest first, with each type's mean across the devices that have
+	 * it then. Empty if from is null, or nothing's that old.
+	 */
+	private static List<Object[]> getRollupRows(Collection<Device> devices, DataResolution resolution, List<DataType> types, LocalDateTime from) {
+		List<Object[]> rows = new ArrayList<>();
+		if (from == null) return rows;
+		LocalDateTime now = LocalDateTime.now(ZoneOffset.UTC);
+		int n = types.size();
+		// For each bucket, the sum of each type's means, then how many devices had it
+		TreeMap<LocalDateTime, double[]> buckets = new TreeMap<>(Comparator.reverseOrder());
+		for (Device device: devices) {
+			for (int i = 0; i < n; i++) {
+				DeviceData data = device.getDeviceData(types.get(i), resolution);
+				LocalDateTime rawStart = getRawStart(data, now);
+				if (rawStart == null || !from.isBefore(rawStart)) continue;
+				for (Rollup rollup: data.getRollups(from, rawStart, MAX_ROLLUP_POINTS)) {
+					double[] bucket = buckets.computeIfAbsent(rollup.getStart(), t -> new double[n * 2]);
+					bucket[i] += rollup.getMean();
+					bucket[n + i]++;
+				}
+			}
+		}
+		for (Map.Entry<LocalDateTime, double[]> entry: buckets.entrySet()) {
+			double[] bucket = entry.getValue();
+			Object[] row = new Object[n + 1];
+			row[0] = dateToSillyDate(entry.getKey());
+			for (int i = 0; i < n; i++)
+				row[i + 1] = (bucket[n + i] == 0) ? null : bucket[i] / bucket[n + i];
+			rows.add(row);
+		}
+		return rows;
+	}
+
 	/**
 	 * @return A date that can be used by JavaScript
 	 */
@@ -653,7 +753,7 @@ public class Prettyfier {
 		}
 	}
 
-	public static List<HashMap<String, Object>> getDeviceMapMarkers(ArrayList<Device> devices) {
+	public static List<HashMap<String, Object>> getDeviceMapMarkers(List<Device> devices) {
 		List<HashMap<String, Object>> array = new ArrayList<>();
 		devices.stream()
 		.map(i -> {
@@ -2,6 +2,10 @@ package uk.co.johngabriel.co657a3.things;
 
 import java.time.LocalDateTime;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -15,21 +19,38 @@ import uk.co.johngabriel.co657a3.model.json.Zone;
 
 /**
  * Class responsible for registering problems across sites, zones and devices.
+ *
+ * Rather than checking everything every cycle, it's given what's changed, and only checks again the parts of
+ * each site (a type, or the devices' connections) that those changes could affect. Parts that could go late
+ * without anything changing are checked again once they might have. It keeps track of which problems each
+ * pass found that weren't there before, and which have gone away.
  * @author John Gabriel
  */
 public class ProblemFinder {
 	private static final Logger LOG = LoggerFactory.getLogger(ProblemFinder.class);
-	private ArrayList<Problem> problems;
+	private static final int LATE_MINUTES = 5; // How long since a reading or connection before it's a problem
+	
+	private volatile ArrayList<Problem> latest; // The last finished pass's problems; never modified once published
+	private volatile ArrayList<Problem> latestAdded; // The problems the last pass found that weren't there before
+	private volatile ArrayList<Problem> latestResolved; // The problems that the last pass found had gone away
+	private HashMap<String, SiteProblems> bySite; // The last pass's problems, by site
+	private ArrayList<Problem> added; // The pass in progress
+	private ArrayList<Problem> resolved; // The pass in progress
 	
 	public ProblemFinder() {
-		problems = new ArrayList<>();
+		latest = new ArrayList<>();
+		latestAdded = new ArrayList<>();
+		latestResolved = new ArrayList<>();
+		bySite = new HashMap<>();
 	}
 	
-	public ArrayList<Problem> getProblems() { return problems; }
+	public ArrayList<Problem> getProblems() { return latest; }
+	public ArrayList<Problem> getAdded() { return latestAdded; }
+	public ArrayList<Problem> getResolved() { return latestResolved; }
 	
-	private void checkDevice(Device device, Site site) {
-		if (device.getLastConnection().isBefore(LocalDateTime.now().minusMinutes(5)))
-			problems.add(new Problem(device, 
+	private void checkDevice(Device device, List<Problem> found) {
+		if (device.getLastConnection().isBefore(LocalDateTime.now().minusMinutes(LATE_MINUTES)))
+			found.add(new Problem(device, 
 							"The device hasn't connected for at least five minutes."
 							));
 	}
@@ -37,7 +58,7 @@ public class ProblemFinder {
 	/**
 	 * @return Whether the device, as a whole, is okay.
 	 */
-	private boolean checkDeviceAverage(Device device, DataType type) {
+	private boolean checkDeviceAverage(Device device, DataType type, List<Problem> found) {
 		Site site = device.getSite();
 		IdealStatus status = device.getStatus(type);
 		if (status == IdealStatus.OVER) {
@@ -50,7 +71,7 @@ public class ProblemFinder {
 			case HUMIDITY: message = "The %s is too humid."; break;
 			default: message = "The readings are above the specified limits."; break;
 			}
-			problems.add(new Problem(device, String.format(message, device.getZone().getName())));
+			found.add(new Problem(device, String.format(message, device.getZone().getName())));
 			return false;
 		}
 		else if (status == IdealStatus.UNDER) {
@@ -63,17 +84,17 @@ public class ProblemFinder {
 			case HUMIDITY: message = "The %s needs to be more humid."; break;
 			default: message = "The readings are below the specified limits."; break;
 			}
-			problems.add(new Problem(device, String.format(message, device.getName())));
+			found.add(new Problem(device, String.format(message, device.getName())));
 			return false;
 		}
 		else if (status == IdealStatus.EXTREME) {
-			problems.add(new Problem(site,
+			found.add(new Problem(site,
 					String.format("%s is reporting extreme %s data.", device.getName(), type.getLabel()))
 					);
 			return false;
 		}
 		else if (status == IdealStatus.LATE) {
-			problems.add(new Problem(site,
+			found.add(new Problem(site,
 					String.format("%s is not reporting valid %s data.", device.getName(), type.getLabel()))
 					);
 			return false;
@@ -84,7 +105,7 @@ public class ProblemFinder {
 	/**
 	 * @return Whether the zone, as a whole, is okay.
 	 */
-	private boolean checkZoneAverage(Zone zone, DataType type) {
+	private boolean checkZoneAverage(Zone zone, DataType type, List<Problem> found) {
 		Site site = zone.getSite();
 		IdealStatus status = zone.getStatus(type);
 		if (status == IdealStatus.OVER) {
@@ -97,7 +118,7 @@ public class ProblemFinder {
 			case HUMIDITY: message = "The %s in %s is too humid."; break;
 			default: message = "The readings are above the specified limits."; break;
 			}
-			problems.add(new Problem(zone, String.format(message, zone.getName(), zone.getSite().getName())));
+			found.add(new Problem(zone, String.format(message, zone.getName(), zone.getSite().getName())));
 			return false;
 		}
 		else if (status == IdealStatus.UNDER) {
@@ -110,17 +131,17 @@ public class ProblemFinder {
 			case HUMIDITY: message = "The %s in %s needs to be more humid."; break;
 			default: message = "The readings are below the specified limits."; break;
 			}
-			problems.add(new Problem(zone, String.format(message, zone.getName(), zone.getSite().getName())));
+			found.add(new Problem(zone, String.format(message, zone.getName(), zone.getSite().getName())));
 			return false;
 		}
 		else if (status == IdealStatus.EXTREME) {
-			problems.add(new Problem(site,
+			found.add(new Problem(site,
 					String.format("%s is reading extreme %s data.", site.getName(), type.getLabel()))
 					);
 			return false;
 		}
 		else if (status == IdealStatus.LATE) {
-			problems.add(new Problem(site,
+			found.add(new Problem(site,
 					String.format("%s is not receiving valid %s data.", site.getName(), type.getLabel()))
 					);
 			return false;
@@ -131,7 +152,7 @@ public class ProblemFinder {
 	/**
 	 * @return Whether the given site is okay
 	 */
-	private boolean checkSiteAverage(Site site, DataType type) {
+	private boolean checkSiteAverage(Site site, DataType type, List<Problem> found) {
 		LOG.debug("Checking site {} average for {}", type.name(), site.getId());
 		// If this site doesn't have any sensors for the given DataType, move on
 		if (!site.hasData(type)) return true;
@@ -146,7 +167,7 @@ public class ProblemFinder {
 			case HUMIDITY: message = "%s is too humid."; break;
 			default: message = "The readings in %s above the specified limits."; break;
 			}
-			problems.add(new Problem(site, String.format(message, site.getName())));
+			found.add(new Problem(site, String.format(message, site.getName())));
 			return false;
 		}
 		else if (status == IdealStatus.UNDER) {
@@ -159,17 +180,17 @@ public class ProblemFinder {
 			case HUMIDITY: message = "%s is not humid enough."; break;
 			default: message = "The readings in %s are below the specified limits."; break;
 			}
-			problems.add(new Problem(site, String.format(message, site.getName())));
+			found.add(new Problem(site, String.format(message, site.getName())));
 			return false;
 		}
 		else if (status == IdealStatus.EXTREME) {
-			problems.add(new Problem(site,
+			found.add(new Problem(site,
 					String.format("%s is reading extreme %s data.", site.getName(), type.getLabel()))
 					);
 			return false;
 		}
 		else if (status == IdealStatus.LATE) {
-			problems.add(new Problem(site,
+			found.add(new Problem(site,
 					String.format("%s is not receiving valid %s data.", site.getName(), type.getLabel()))
 					);
 			return false;
@@ -177,36 +198,172 @@ public class ProblemFinder {
 		else return true;
 	}
 	
-	private void checkZone(Zone zone, DataType type) {
-		boolean zoneIsOkay = checkZoneAverage(zone, type);
+	private void checkZone(Zone zone, DataType type, List<Problem> found) {
+		boolean zoneIsOkay = checkZoneAverage(zone, type, found);
 			// If the zone itself is okay, we can look for individual problems
 			if (zoneIsOkay) {
 				zone.getDevices().stream()
 				.filter(i -> i.hasData(type))
-				.forEach(i -> checkDeviceAverage(i, type));
+				.forEach(i -> checkDeviceAverage(i, type, found));
 			}
 	}
 	
-	private void checkSite(Site site) {
+	/**
+	 * Checks the site, its zones and its devices for problems with the given type.
+	 */
+	private void checkSite(Site site, DataType type, List<Problem> found) {
+		boolean siteIsOkay = checkSiteAverage(site, type, found);
+		// If the site itself is okay, we can look for individual problems
+		if (siteIsOkay) {
+			site.getZones().stream()
+			.filter(i -> i.hasData(type))
+			.forEach(i -> checkZone(i, type, found));
+		}
+	}
+	
+	/**
+	 * Checks whether any devices within the site are malfunctioning.
+	 */
+	private void checkConnections(Site site, List<Problem> found) {
+		for (Device device: site.getDevices())
+			checkDevice(device, found);
+	}
+	
+	/**
+	 * @return When the given time will be too long ago, if that's still to come; null otherwise.
+	 */
+	private static LocalDateTime getDeadline(LocalDateTime time, LocalDateTime now) {
+		if (time == null) return null;
+		LocalDateTime deadline = time.plusMinutes(LATE_MINUTES);
+		return deadline.isAfter(now) ? deadline : null;
+	}
+	
+	private static LocalDateTime earliest(LocalDateTime a, LocalDateTime b) {
+		if (a == null) return b;
+		if (b == null) return a;
+		return a.isBefore(b) ? a : b;
+	}
+	
+	/**
+	 * The problems found in one site, for one type or its connections, the last time it was checked.
+	 */
+	private static class Part {
+		private List<Problem> problems = new ArrayList<>();
+		private LocalDateTime due; // When something could go late without any new readings; null if nothing can
+		
+		private boolean isDue(LocalDateTime now) {
+			return due != null && !now.isBefore(due);
+		}
+	}
+	
+	/**
+	 * The problems found in a site, split up so that each part can be checked again on its own.
+	 */
+	private static class SiteProblems {
+		private EnumMap<DataType, Part> byType = new EnumMap<>(DataType.class);
+		private Part connections = new Part();
+		
+		private SiteProblems() {
+			for (DataType type: DataType.values())
+				byType.put(type, new Part());
+		}
+	}
+	
+	/**
+	 * Swaps the part's problems for the ones just found, noting which are new and which have gone.
+	 * Problems that are still there keep their old objects.
+	 */
+	private void replace(Part part, List<Problem> found, LocalDateTime due) {
+		HashMap<Problem, Problem> old = new HashMap<>();
+		for (Problem next: part.problems)
+			old.put(next, next);
+		ArrayList<Problem> kept = new ArrayList<>(found.size());
+		for (Problem next: found) {
+			Problem previous = old.remove(next);
+			if (previous == null) added.add(next);
+			kept.add(previous == null ? next : previous);
+		}
+		resolved.addAll(old.values());
+		part.problems = kept;
+		part.due = due;
+	}
+	
+	/**
+	 * Checks again whatever in the site the changes could have affected, or that could have gone late since.
+	 * @return How many parts were checked again.
+	 */
+	private int update(Site site, SiteProblems state, ChangeSet changes, LocalDateTime now) {
+		int checked = 0;
+		boolean all = changes.hasSite(site.getId());
 		for (DataType type: DataType.values()) {
-			boolean siteIsOkay = checkSiteAverage(site, type);
-			// If the site itself is okay, we can look for individual problems
-			if (siteIsOkay) {
-				site.getZones().stream()
-				.filter(i -> i.hasData(type))
-				.forEach(i -> checkZone(i, type));
+			Part part = state.byType.get(type);
+			boolean changed = all || part.isDue(now);
+			LocalDateTime due = null;
+			for (Device device: site.getDevices()) {
+				if (!device.hasData(type)) continue;
+				changed = changed || changes.hasReadings(device.getId(), type);
+				due = earliest(due, getDeadline(device.getTimeOfLastReading(type), now));
 			}
+			if (!changed) continue;
+			ArrayList<Problem> found = new ArrayList<>();
+			checkSite(site, type, found);
+			replace(part, found, due);
+			checked++;
 		}
-		// We also need to know if any devices within the site are malfunctioning
-		for (Device device: site.getDevices())
-			checkDevice(device, site);
+		boolean changed = all || state.connections.isDue(now);
+		LocalDateTime due = null;
+		for (Device device: site.getDevices()) {
+			changed = changed || changes.hasConnection(device.getId());
+			due = earliest(due, getDeadline(device.getLastConnection(), now));
+		}
+		if (changed) {
+			ArrayList<Problem> found = new ArrayList<>();
+			checkConnections(site, found);
+			replace(state.connections, found, due);
+			checked++;
+		}
+		return checked;
 	}
 	
-	public void update(ArrayList<Site> sites, ArrayList<Device> devices) {
-		LOG.info("Finding problems");
-		problems.clear();
-		for (Site next: sites)
-			checkSite(next);
-		LOG.info("Finished finding problems");
+	/**
+	 * Checks the given sites again, but only the parts of them that the given changes could have affected, or
+	 * that could have gone late since they were last checked. Sites that weren't there last time are checked in
+	 * full, and the problems of sites that have gone away are resolved.
+	 * @return A new list of the problems with the given sites.
+	 */
+	public ArrayList<Problem> update(Collection<Site> sites, ChangeSet changes) {
+		LOG.info("Finding problems; changed {}", changes);
+		LocalDateTime now = LocalDateTime.now();
+		added = new ArrayList<>();
+		resolved = new ArrayList<>();
+		HashMap<String, SiteProblems> next = new HashMap<>();
+		ArrayList<Problem> problems = new ArrayList<>();
+		int checked = 0;
+		for (Site site: sites) {
+			SiteProblems state = bySite.remove(site.getId());
+			if (state == null) {
+				state = new SiteProblems();
+				// Nothing's known about it, so check it all
+				checked += update(site, state, ChangeSet.everything(), now);
+			}
+			else checked += update(site, state, changes, now);
+			next.put(site.getId(), state);
+			for (DataType type: DataType.values())
+				problems.addAll(state.byType.get(type).problems);
+			problems.addAll(state.connections.problems);
+		}
+		// Anything left is from a site that's gone away
+		for (SiteProblems gone: bySite.values()) {
+			for (Part part: gone.byType.values())
+				resolved.addAll(part.problems);
+			resolved.addAll(gone.connections.problems);
+		}
+		bySite = next;
+		latest = problems;
+		latestAdded = added;
+		latestResolved = resolved;
+		LOG.info("Finished finding problems; checked {} of {} parts, {} problems, {} new and {} resolved",
+				checked, sites.size() * (DataType.values().length + 1), problems.size(), added.size(), resolved.size());
+		return problems;
 	}
 }
@@ -0,0 +1,179 @@
+package uk.co.johngabriel.co657a3.things;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * On-disk cache of upstream responses, along with the validators (ETag and Last-Modified)
+ * needed to make conditional requests for them.
+ * 
+ * Each URL gets a .body file holding the last body we got for it, and a .meta file holding
+ * its validators and the hash of that body. Both are written to a temporary file and moved
+ * into place, so a crash can't leave a half-written entry behind.
+ * 
+ * @author John Gabriel
+ */
+public class ResponseCache {
+	private static final Logger LOG = LoggerFactory.getLogger(ResponseCache.class);
+	
+	/**
+	 * What we know about the last response for a URL.
+	 */
+	public static class Entry {
+		private String etag;
+		private String lastModified;
+		private String hash;
+		
+		public Entry(String etag, String lastModified, String hash) {
+			this.etag = etag;
+			this.lastModified = lastModified;
+			this.hash = hash;
+		}
+		
+		public String getEtag() { return etag; }
+		public String getLastModified() { return lastModified; }
+		public String getHash() { return hash; }
+	}
+	
+	private File directory;
+	private ConcurrentHashMap<String, Entry> entries;
+	private ConcurrentHashMap<String, String> delivered; // The hash of the body last taken in by whoever asked for each URL
+	
+	public ResponseCache(File directory) {
+		this.directory = directory;
+		entries = new ConcurrentHashMap<>();
+		delivered = new ConcurrentHashMap<>();
+		if (!directory.isDirectory() && !directory.mkdirs())
+			LOG.error("Couldn't create response cache directory {}", directory);
+	}
+	
+	private static String toHex(byte[] bytes) {
+		StringBuilder sb = new StringBuilder(bytes.length * 2);
+		for (byte b: bytes)
+			sb.append(String.format("%02x", b));
+		return sb.toString();
+	}
+	
+	/**
+	 * @return A SHA-1 hash of the given bytes, as hex.
+	 */
+	public static String hash(byte[] bytes) {
+		try {
+			return toHex(MessageDigest.getInstance("SHA-1").digest(bytes));
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException("SHA-1 isn't available", e); // Every JRE has to provide it
+		}
+	}
+	
+	private File getFile(String url, String extension) {
+		return new File(directory, hash(url.getBytes(StandardCharsets.UTF_8)) + extension);
+	}
+	
+	private static void writeAtomically(File file, byte[] contents) throws IOException {
+		Path temp = Files.createTempFile(file.getParentFile().toPath(), file.getName(), ".tmp");
+		try {
+			Files.write(temp, contents);
+			Files.move(temp, file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} finally {
+			Files.deleteIfExists(temp);
+		}
+	}
+	
+	/**
+	 * @return What we know about the given URL, if anything; null otherwise.
+	 */
+	public Entry get(String url) {
+		Entry entry = entries.get(url);
+		if (entry != null) return entry;
+		// We might have it on disk from before a restart
+		File metaFile = getFile(url, ".meta");
+		if (!metaFile.isFile()) return null;
+		Properties meta = new Properties();
+		try (InputStream in = Files.newInputStream(metaFile.toPath())) {
+			meta.load(in);
+		} catch (IOException e) {
+			LOG.warn("Couldn't read cache entry for {}: {}", url, e.getMessage());
+			return null;
+		}
+		entry = new Entry(meta.getProperty("etag"), meta.getProperty("lastModified"), meta.getProperty("hash"));
+		if (entry.getHash() == null) return null;
+		entries.put(url, entry);
+		return entry;
+	}
+	
+	/**
+	 * @return The cached body for the given URL, if there is one; null otherwise.
+	 */
+	public byte[] getBody(String url) {
+		File bodyFile = getFile(url, ".body");
+		if (!bodyFile.isFile()) return null;
+		try {
+			return Files.readAllBytes(bodyFile.toPath());
+		} catch (IOException e) {
+			LOG.warn("Couldn't read cached body for {}: {}", url, e.getMessage());
+			return null;
+		}
+	}
+	
+	/**
+	 * Stores a fresh response for the given URL.
+	 */
+	public void put(String url, String etag, String lastModified, byte[] body, String hash) {
+		Entry old = entries.get(url);
+		Entry entry = new Entry(etag, lastModified, hash);
+		entries.put(url, entry);
+		try {
+			// No need to write the body again if it hasn't changed
+			if (old == null || !hash.equals(old.getHash()) || !getFile(url, ".body").isFile())
+				writeAtomically(getFile(url, ".body"), body);
+			Properties meta = new Properties();
+			if (etag != null) meta.setProperty("etag", etag);
+			if (lastModified != null) meta.setProperty("lastModified", lastModified);
+			meta.setProperty("hash", hash);
+			meta.setProperty("url", url);
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			meta.store(out, null);
+			writeAtomically(getFile(url, ".meta"), out.toByteArray());
+		} catch (IOException e) {
+			LOG.warn("Couldn't write cache entry for {}: {}", url, e.getMessage());
+		}
+	}
+	
+	/**
+	 * Forgets the given URL, e.g. because its cached body has gone missing.
+	 */
+	public void remove(String url) {
+		entries.remove(url);
+		delivered.remove(url);
+		getFile(url, ".meta").delete();
+		getFile(url, ".body").delete();
+	}
+	
+	/**
+	 * @return Whether a body with the given hash is the one last taken in for the given URL.
+	 */
+	public boolean isDelivered(String url, String hash) {
+		return hash.equals(delivered.get(url));
+	}
+	
+	/**
+	 * Records that a body with the given hash has been taken in for the given URL; only once it's been
+	 * dealt with, so one that wasn't is never counted as unchanged next time.
+	 */
+	public void deliver(String url, String hash) {
+		delivered.put(url, hash);
+	}
+}
@@ -0,0 +1,126 @@
+package uk.co.johngabriel.co657a3.things;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * How long readings are kept for, and in how much detail. Raw readings are kept for a while, and after that
+ * only as rollups (the count, min, max and mean) over ever wider buckets of time, each kept for longer than the last.
+ *
+ * It's written as a list of tiers, raw first, like "raw=7d,10m=30d,1h=365d,1d=forever". Each rollup is made
+ * from the one before it, so its width has to be a whole multiple of the one before's.
+ *
+ * @author John Gabriel
+ */
+public class RetentionPolicy {
+	public static final String DEFAULT = "raw=7d,10m=30d,1h=365d,1d=forever";
+	public static final long FOREVER = Long.MAX_VALUE;
+
+	/**
+	 * One width of rollup, and how long to keep it.
+	 */
+	public static class Tier {
+		private String name;
+		private long width;
+		private long keep;
+
+		public Tier(String name, long width, long keep) {
+			this.name = name;
+			this.width = width;
+			this.keep = keep;
+		}
+
+		public String getName() { return name; }
+		public long getWidth() { return width; } // In milliseconds
+		public long getKeep() { return keep; } // In milliseconds; FOREVER to keep them for good
+	}
+
+	private String spec;
+	private long rawKeep;
+	private List<Tier> rollups;
+
+	private RetentionPolicy(String spec, long rawKeep, List<Tier> rollups) {
+		this.spec = spec;
+		this.rawKeep = rawKeep;
+		this.rollups = Collections.unmodifiableList(rollups);
+	}
+
+	/**
+	 * @return How long a duration like "90s", "10m", "1h" or "7d" is, in milliseconds; FOREVER for "forever".
+	 */
+	private static long parseDuration(String text) {
+		if (text.equals("forever")) return FOREVER;
+		if (text.length() < 2)
+			throw new IllegalArgumentException("Not a duration: " + text);
+		long amount;
+		try {
+			amount = Long.parseLong(text.substring(0, text.length() - 1));
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException("Not a duration: " + text);
+		}
+		if (amount <= 0)
+			throw new IllegalArgumentException("Durations have to be positive: " + text);
+		switch (text.charAt(text.length() - 1)) {
+			case 's': return TimeUnit.SECONDS.toMillis(amount);
+			case 'm': return TimeUnit.MINUTES.toMillis(amount);
+			case 'h': return TimeUnit.HOURS.toMillis(amount);
+			case 'd': return TimeUnit.DAYS.toMillis(amount);
+			default: throw new IllegalArgumentException("Unknown unit in duration: " + text);
+		}
+	}
+
+	/**
+	 * @return The policy written in the given spec.
+	 * @throws IllegalArgumentException If it doesn't make sense.
+	 */
+	public static RetentionPolicy parse(String spec) {
+		long rawKeep = -1;
+		List<Tier> rollups = new ArrayList<>();
+		for (String part: spec.split(",")) {
+			String[] pair = part.trim().split("=");
+			if (pair.length != 2)
+				throw new IllegalArgumentException("Expected tier=duration, not " + part);
+			String name = pair[0].trim();
+			long keep = parseDuration(pair[1].trim());
+			if (name.equals("raw")) {
+				if (rawKeep != -1 || !rollups.isEmpty())
+					throw new IllegalArgumentException("raw has to come first, and only once");
+				rawKeep = keep;
+				continue;
+			}
+			if (rawKeep == -1)
+				throw new IllegalArgumentException("raw has to come first");
+			long width = parseDuration(name);
+			if (width == FOREVER || width % TimeUnit.SECONDS.toMillis(1) != 0)
+				throw new IllegalArgumentException("Not a rollup width: " + name);
+			if (!rollups.isEmpty()) {
+				long last = rollups.get(rollups.size() - 1).getWidth();
+				if (width <= last || width % last != 0)
+					throw new IllegalArgumentException(name + " isn't a whole multiple of the tier before it");
+			}
+			rollups.add(new Tier(name, width, keep));
+		}
+		if (rawKeep == -1)
+			throw new IllegalArgumentException("No raw tier in " + spec);
+		return new RetentionPolicy(spec, rawKeep, rollups);
+	}
+
+	public static RetentionPolicy getDefault() {
+		return parse(DEFAULT);
+	}
+
+	/**
+	 * @return How long raw readings are kept, in milliseconds; FOREVER to keep them for good.
+	 */
+	public long getRawKeep() { return rawKeep; }
+
+	/**
+	 * @return The rollup tiers, narrowest first.
+	 */
+	public List<Tier> getRollups() { return rollups; }
+
+	@Override
+	public String toString() { return spec; }
+}
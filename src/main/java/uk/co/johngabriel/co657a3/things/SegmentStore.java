@@ -0,0 +1,539 @@
+package uk.co.johngabriel.co657a3.things;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDate;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import uk.co.johngabriel.co657a3.model.json.DataResolution;
+import uk.co.johngabriel.co657a3.model.json.DataType;
+import uk.co.johngabriel.co657a3.model.json.ReadingSeries;
+import uk.co.johngabriel.co657a3.model.json.RollupCursor;
+import uk.co.johngabriel.co657a3.model.json.SegmentCursor;
+
+/**
+ * Keeps the history of every device's readings on disk, so we can hold on to far more of it than the
+ * feeds give us, without it all having to stay on the heap.
+ *
+ * Each device, type and resolution gets its own directory, with one file of raw readings per (UTC) day, named
+ * after it. Rollups go in a directory per tier inside that, with each file covering as many whole days as it
+ * takes to hold about a thousand of them, named after the first. A file is nothing but fixed-size records
+ * in time order, and is only ever appended to, until it's old enough to be deleted outright. Reads go through
+ * read-only memory maps of the files, which are made once and then reused until the file grows; a file
+ * whose time is over never grows again, so it's only ever mapped the once.
+ *
+ * Readings are only taken if they're newer than the newest one already stored; anything older is ignored.
+ * The rollups and deletions are done by rollUp() and dropExpired(), which the Compactor calls every so often.
+ *
+ * @author John Gabriel
+ */
+public class SegmentStore {
+	private static final Logger LOG = LoggerFactory.getLogger(SegmentStore.class);
+	private static final long DAY = TimeUnit.DAYS.toMillis(1);
+	private static final String SUFFIX = ".seg";
+	private static final int BUFFER_SIZE = 64 * 1024;
+	private static final int ROLLUPS_PER_FILE = 1024;
+
+	/**
+	 * One file's worth of records.
+	 */
+	private static class Segment {
+		private final File file;
+		private final int recordSize;
+		private volatile ByteBuffer mapped; // Everything in the file as of the last time we looked
+
+		Segment(File file, int recordSize) {
+			this.file = file;
+			this.recordSize = recordSize;
+		}
+
+		/**
+		 * @return The whole file, mapped; remapped first if it's grown since last time.
+		 */
+		ByteBuffer map() throws IOException {
+			ByteBuffer mapped = this.mapped;
+			// A record that's still being written won't be counted yet
+			long length = file.length() / recordSize * recordSize;
+			if (mapped != null && mapped.capacity() == length)
+				return mapped;
+			if (length == 0)
+				return ByteBuffer.allocate(0); // Not written to yet, or deleted
+			synchronized (this) {
+				try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+					mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, length);
+				}
+				this.mapped = mapped;
+				return mapped;
+			}
+		}
+	}
+
+	/**
+	 * One kind of record for one series (its raw readings, or one width of rollup), split into files that
+	 * each cover a fixed span of whole days.
+	 */
+	private static class Tier {
+		private final File directory;
+		private final int recordSize;
+		private final long span;
+		private final ConcurrentSkipListMap<Long, Segment> segments; // By how many spans from the epoch each covers
+		private volatile long lastTime; // Of the newest record; guarded by this for writing
+
+		Tier(File directory, int recordSize, long span) {
+			this.directory = directory;
+			this.recordSize = recordSize;
+			this.span = span;
+			segments = new ConcurrentSkipListMap<>();
+			lastTime = Long.MIN_VALUE;
+		}
+	}
+
+	/**
+	 * Everything stored for one device, type and resolution.
+	 */
+	private static class Partition {
+		private final DataType type;
+		private final DataResolution resolution;
+		private final Tier raw;
+		private final Map<RetentionPolicy.Tier, Tier> rollups; // Only those wider than the resolution, narrowest first
+
+		Partition(DataType type, DataResolution resolution, Tier raw, Map<RetentionPolicy.Tier, Tier> rollups) {
+			this.type = type;
+			this.resolution = resolution;
+			this.raw = raw;
+			this.rollups = rollups;
+		}
+	}
+
+	private File root;
+	private long heapWindow;
+	private RetentionPolicy retention;
+	private ConcurrentHashMap<String, Partition> partitions;
+	private Set<Segment> unsynced; // Files that have been written to since the last sync()
+
+	/**
+	 * @param heapWindow How far back from its newest reading a series should keep its readings on the heap, in milliseconds.
+	 * Anything older is only read back from here.
+	 */
+	public SegmentStore(File root, long heapWindow, RetentionPolicy retention) {
+		this.root = root;
+		this.heapWindow = heapWindow;
+		this.retention = retention;
+		partitions = new ConcurrentHashMap<>();
+		unsynced = ConcurrentHashMap.newKeySet();
+	}
+
+	public File getRoot() { return root; }
+	public long getHeapWindow() { return heapWindow; }
+	public RetentionPolicy getRetention() { return retention; }
+
+	private static String getKey(String deviceId, DataType type, DataResolution resolution) {
+		return deviceId + "/" + type.name() + "-" + resolution.name();
+	}
+
+	/**
+	 * @return The rollup tiers worth making for readings at the given resolution, narrowest first.
+	 */
+	public List<RetentionPolicy.Tier> getRollupTiers(DataResolution resolution) {
+		List<RetentionPolicy.Tier> results = new ArrayList<>();
+		for (RetentionPolicy.Tier tier: retention.getRollups())
+			if (tier.getWidth() > TimeUnit.SECONDS.toMillis(resolution.getInterval()))
+				results.add(tier);
+		return results;
+	}
+
+	/**
+	 * @return The partition for the given series, with whatever's already on disk for it found; made if need be.
+	 */
+	private Partition getPartition(String deviceId, DataType type, DataResolution resolution) {
+		return partitions.computeIfAbsent(getKey(deviceId, type, resolution), key -> open(new File(root, key), type, resolution));
+	}
+
+	private Partition open(File directory, DataType type, DataResolution resolution) {
+		Tier raw = openTier(directory, SegmentCursor.RECORD_SIZE, DAY);
+		Map<RetentionPolicy.Tier, Tier> rollups = new LinkedHashMap<>();
+		for (RetentionPolicy.Tier tier: getRollupTiers(resolution)) {
+			long span = Math.max(tier.getWidth() * ROLLUPS_PER_FILE / DAY, 1) * DAY;
+			rollups.put(tier, openTier(new File(directory, tier.getName()), RollupCursor.RECORD_SIZE, span));
+		}
+		return new Partition(type, resolution, raw, rollups);
+	}
+
+	private static Tier openTier(File directory, int recordSize, long span) {
+		Tier tier = new Tier(directory, recordSize, span);
+		File[] files = directory.listFiles((dir, name) -> name.endsWith(SUFFIX));
+		if (files == null) return tier;
+		for (File file: files) {
+			String name = file.getName();
+			try {
+				long start = LocalDate.parse(name.substring(0, name.length() - SUFFIX.length())).toEpochDay() * DAY;
+				tier.segments.put(Math.floorDiv(start, span), new Segment(file, recordSize));
+			} catch (DateTimeParseException e) {
+				LOG.warn("Ignoring {}, which isn't named after a day", file);
+			}
+		}
+		// Find where we left off, dropping any record that was only half-written
+		for (Segment last: tier.segments.descendingMap().values()) {
+			try (RandomAccessFile raf = new RandomAccessFile(last.file, "rw")) {
+				long records = raf.length() / recordSize;
+				raf.setLength(records * recordSize);
+				if (records == 0) continue;
+				raf.seek((records - 1) * recordSize);
+				tier.lastTime = raf.readLong();
+				break;
+			} catch (IOException e) {
+				LOG.error("Couldn't read the end of {}", last.file, e);
+				break;
+			}
+		}
+		return tier;
+	}
+
+	/**
+	 * @return The timestamp of the newest reading stored for the given series, in epoch milliseconds; Long.MIN_VALUE if there aren't any.
+	 */
+	public long getLastTime(String deviceId, DataType type, DataResolution resolution) {
+		return getPartition(deviceId, type, resolution).raw.lastTime;
+	}
+
+	private static void writeFile(File file, ByteBuffer records) throws IOException {
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+				StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+			while (records.hasRemaining())
+				channel.write(records);
+		}
+	}
+
+	/**
+	 * Appends the records in the buffer (which has been flipped, ready to read) to the tier, each to the file for its span.
+	 * They have to be in time order, and newer than anything in the tier already. Call it while holding the tier's lock.
+	 */
+	private void write(Tier tier, ByteBuffer records) throws IOException {
+		if (!tier.directory.isDirectory() && !tier.directory.mkdirs())
+			throw new IOException("Couldn't create " + tier.directory);
+		int size = tier.recordSize;
+		int count = records.remaining() / size;
+		int i = 0;
+		while (i < count) {
+			long index = Math.floorDiv(records.getLong(i * size), tier.span);
+			int j = i + 1;
+			while (j < count && Math.floorDiv(records.getLong(j * size), tier.span) == index)
+				j++;
+			ByteBuffer run = records.duplicate();
+			run.limit(j * size);
+			run.position(i * size);
+			Segment segment = tier.segments.computeIfAbsent(index, n -> new Segment(
+					new File(tier.directory, LocalDate.ofEpochDay(n * tier.span / DAY) + SUFFIX), size));
+			unsynced.add(segment);
+			writeFile(segment.file, run);
+			tier.lastTime = records.getLong((j - 1) * size);
+			i = j;
+		}
+		records.clear();
+	}
+
+	/**
+	 * Appends every reading in the given series newer than the newest already stored for it.
+	 * @return How many readings were stored.
+	 */
+	public int append(String deviceId, DataType type, DataResolution resolution, ReadingSeries series) {
+		Tier tier = getPartition(deviceId, type, resolution).raw;
+		synchronized (tier) {
+			int size = series.size();
+			int from = series.upperBound(tier.lastTime);
+			if (from == size) return 0;
+			ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+			int written = from;
+			try {
+				for (int i = from; i < size; i++) {
+					if (!buffer.hasRemaining()) {
+						buffer.flip();
+						write(tier, buffer);
+						written = i;
+					}
+					buffer.putLong(series.getTime(i));
+					buffer.putDouble(series.getValue(i));
+				}
+				buffer.flip();
+				write(tier, buffer);
+				written = size;
+			} catch (IOException e) {
+				LOG.error("Couldn't store {} readings for {}", type, deviceId, e);
+			}
+			return written - from;
+		}
+	}
+
+	/**
+	 * Makes sure everything written so far is really on disk, not just in the OS's cache.
+	 * @return Whether it all was.
+	 */
+	public boolean sync() {
+		boolean synced = true;
+		Iterator<Segment> files = unsynced.iterator();
+		while (files.hasNext()) {
+			Segment segment = files.next();
+			files.remove();
+			try (FileChannel channel = FileChannel.open(segment.file.toPath(), StandardOpenOption.WRITE)) {
+				channel.force(false);
+			} catch (NoSuchFileException e) {
+				// Deleted since; nothing to sync
+			} catch (IOException e) {
+				LOG.error("Couldn't sync {}", segment.file, e);
+				unsynced.add(segment);
+				synced = false;
+			}
+		}
+		return synced;
+	}
+
+	/**
+	 * @return The first record in the buffer at or after the given time; the number of records if there isn't one.
+	 */
+	private static int lowerBound(ByteBuffer buffer, int recordSize, long time) {
+		int low = 0;
+		int high = buffer.capacity() / recordSize;
+		while (low < high) {
+			int mid = (low + high) >>> 1;
+			if (buffer.getLong(mid * recordSize) < time) low = mid + 1;
+			else high = mid;
+		}
+		return low;
+	}
+
+	private interface CursorMaker<C> {
+		C make(ByteBuffer[] segments, int[] starts, int[] ends);
+	}
+
+	/**
+	 * @return A cursor over the tier's records from the given time (inclusive) to the other (exclusive), in epoch milliseconds.
+	 */
+	private static <C> C scan(Tier tier, long from, long to, CursorMaker<C> maker) {
+		if (from >= to) return maker.make(new ByteBuffer[0], new int[0], new int[0]);
+		Collection<Segment> files = tier.segments.subMap(Math.floorDiv(from, tier.span), true,
+				Math.floorDiv(to - 1, tier.span), true).values();
+		List<ByteBuffer> buffers = new ArrayList<>(files.size());
+		int[] starts = new int[files.size()];
+		int[] ends = new int[files.size()];
+		for (Segment segment: files) {
+			ByteBuffer buffer;
+			try {
+				buffer = segment.map();
+			} catch (IOException e) {
+				LOG.error("Couldn't read {}", segment.file, e);
+				continue;
+			}
+			int start = lowerBound(buffer, tier.recordSize, from);
+			int end = lowerBound(buffer, tier.recordSize, to);
+			if (start == end || buffers.size() == starts.length) continue;
+			starts[buffers.size()] = start;
+			ends[buffers.size()] = end;
+			buffers.add(buffer);
+		}
+		int count = buffers.size();
+		return maker.make(buffers.toArray(new ByteBuffer[count]), Arrays.copyOf(starts, count), Arrays.copyOf(ends, count));
+	}
+
+	/**
+	 * @return A cursor over the stored readings from the given time (inclusive) to the other (exclusive), in epoch milliseconds.
+	 */
+	public SegmentCursor scan(String deviceId, DataType type, DataResolution resolution, long from, long to) {
+		return scan(getPartition(deviceId, type, resolution).raw, from, to,
+				(segments, starts, ends) -> new SegmentCursor(type, segments, starts, ends));
+	}
+
+	/**
+	 * @return A cursor over the given tier's rollups with buckets starting from the given time (inclusive) to the other
+	 * (exclusive), in epoch milliseconds. Only buckets that are over, and have been compacted since, are there.
+	 */
+	public RollupCursor scanRollups(String deviceId, DataType type, DataResolution resolution, RetentionPolicy.Tier tier, long from, long to) {
+		Tier rollups = getPartition(deviceId, type, resolution).rollups.get(tier);
+		if (rollups == null)
+			return new RollupCursor(type, tier.getWidth(), new ByteBuffer[0], new int[0], new int[0]);
+		return scan(rollups, from, to, (segments, starts, ends) -> new RollupCursor(type, tier.getWidth(), segments, starts, ends));
+	}
+
+	/**
+	 * @return The keys of every series with anything stored for it, whether or not it's been touched since we started.
+	 */
+	public List<String> listSeries() {
+		List<String> results = new ArrayList<>(partitions.keySet());
+		File[] devices = root.listFiles(File::isDirectory);
+		if (devices == null) return results;
+		for (File device: devices) {
+			File[] series = device.listFiles(File::isDirectory);
+			if (series == null) continue;
+			for (File next: series) {
+				String key = device.getName() + "/" + next.getName();
+				if (!partitions.containsKey(key)) results.add(key);
+			}
+		}
+		return results;
+	}
+
+	/**
+	 * @return The partition for the given key, as from listSeries(); null if the key doesn't make sense.
+	 */
+	private Partition getPartition(String key) {
+		Partition partition = partitions.get(key);
+		if (partition != null) return partition;
+		int slash = key.lastIndexOf('/');
+		int dash = key.indexOf('-', slash);
+		if (slash == -1 || dash == -1) return null;
+		try {
+			DataType type = DataType.valueOf(key.substring(slash + 1, dash));
+			DataResolution resolution = DataResolution.valueOf(key.substring(dash + 1));
+			return getPartition(key.substring(0, slash), type, resolution);
+		} catch (IllegalArgumentException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Rolls the records in one tier up into buckets of the given width in another, from the given time
+	 * (inclusive) up to the other (exclusive), which has to be where a bucket starts.
+	 * @return How many rollups were made.
+	 */
+	private int rollUp(Tier source, boolean raw, Tier target, long width, long from, long to, DataType type) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE / RollupCursor.RECORD_SIZE * RollupCursor.RECORD_SIZE);
+		SegmentCursor readings = raw ? scan(source, from, to, (segments, starts, ends) -> new SegmentCursor(type, segments, starts, ends)) : null;
+		RollupCursor rollups = raw ? null : scan(source, from, to, (segments, starts, ends) -> new RollupCursor(type, width, segments, starts, ends));
+		int made = 0;
+		long bucket = Long.MIN_VALUE;
+		long count = 0;
+		double min = 0;
+		double max = 0;
+		double sum = 0;
+		while (true) {
+			boolean more = raw ? readings.next() : rollups.next();
+			long next = Long.MAX_VALUE;
+			if (more)
+				next = Math.floorDiv(raw ? readings.getTime() : rollups.getTime(), width) * width;
+			if (next != bucket && count > 0) {
+				if (!buffer.hasRemaining()) {
+					buffer.flip();
+					write(target, buffer);
+				}
+				buffer.putLong(bucket);
+				buffer.putLong(count);
+				buffer.putDouble(min);
+				buffer.putDouble(max);
+				buffer.putDouble(sum / count);
+				made++;
+				count = 0;
+			}
+			if (!more) break;
+			bucket = next;
+			long nextCount = raw ? 1 : rollups.getCount();
+			double nextMin = raw ? readings.getValue() : rollups.getMin();
+			double nextMax = raw ? readings.getValue() : rollups.getMax();
+			double nextSum = raw ? readings.getValue() : rollups.getMean() * nextCount;
+			min = (count == 0) ? nextMin : Math.min(min, nextMin);
+			max = (count == 0) ? nextMax : Math.max(max, nextMax);
+			sum = (count == 0) ? nextSum : sum + nextSum;
+			count += nextCount;
+		}
+		buffer.flip();
+		write(target, buffer);
+		return made;
+	}
+
+	/**
+	 * Makes any rollups the given series is due in each tier, each from the tier before it, out of the buckets that are over.
+	 * A bucket's over once there's a reading from after it, as nothing older than the newest ever gets stored.
+	 * @return How many rollups were made.
+	 */
+	public int rollUp(String key) {
+		Partition partition = getPartition(key);
+		if (partition == null) return 0;
+		Tier source = partition.raw;
+		// Everything in the source from before this is never going to change
+		long settled = (source.lastTime == Long.MIN_VALUE) ? Long.MIN_VALUE : source.lastTime + 1;
+		int made = 0;
+		for (Map.Entry<RetentionPolicy.Tier, Tier> entry: partition.rollups.entrySet()) {
+			if (settled == Long.MIN_VALUE) break;
+			long width = entry.getKey().getWidth();
+			Tier target = entry.getValue();
+			long upTo = Math.floorDiv(settled, width) * width;
+			synchronized (target) {
+				long from = (target.lastTime == Long.MIN_VALUE) ? Long.MIN_VALUE : target.lastTime + width;
+				if (from < upTo) {
+					try {
+						made += rollUp(source, source == partition.raw, target, width, from, upTo, partition.type);
+					} catch (IOException e) {
+						LOG.error("Couldn't roll {} up into {}", key, entry.getKey().getName(), e);
+						break;
+					}
+				}
+			}
+			source = target;
+			settled = upTo;
+		}
+		return made;
+	}
+
+	/**
+	 * Deletes the files for the given series that have outlived their tier as of the given time (in epoch milliseconds).
+	 * Nothing's deleted before it's been rolled up into the next tier.
+	 * @return How many files were deleted.
+	 */
+	public int dropExpired(String key, long now) {
+		Partition partition = getPartition(key);
+		if (partition == null) return 0;
+		List<Tier> tiers = new ArrayList<>();
+		List<Long> keeps = new ArrayList<>();
+		List<Long> widths = new ArrayList<>();
+		tiers.add(partition.raw);
+		keeps.add(retention.getRawKeep());
+		widths.add(TimeUnit.SECONDS.toMillis(partition.resolution.getInterval()));
+		for (Map.Entry<RetentionPolicy.Tier, Tier> entry: partition.rollups.entrySet()) {
+			tiers.add(entry.getValue());
+			keeps.add(entry.getKey().getKeep());
+			widths.add(entry.getKey().getWidth());
+		}
+		int dropped = 0;
+		for (int i = 0; i < tiers.size(); i++) {
+			if (keeps.get(i) == RetentionPolicy.FOREVER) continue;
+			long limit = now - keeps.get(i);
+			if (i + 1 < tiers.size()) {
+				// Only what the next tier's already covered can go
+				long next = tiers.get(i + 1).lastTime;
+				if (next == Long.MIN_VALUE) continue;
+				limit = Math.min(limit, next + widths.get(i + 1));
+			}
+			Tier tier = tiers.get(i);
+			synchronized (tier) {
+				// A file can go once the whole of its span is before the limit
+				Iterator<Segment> expired = tier.segments.headMap(Math.floorDiv(limit, tier.span)).values().iterator();
+				while (expired.hasNext()) {
+					Segment segment = expired.next();
+					if (segment.file.delete() || !segment.file.exists()) {
+						expired.remove();
+						dropped++;
+					}
+					else LOG.warn("Couldn't delete {}", segment.file);
+				}
+			}
+		}
+		return dropped;
+	}
+}
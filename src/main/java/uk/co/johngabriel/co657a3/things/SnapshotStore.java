@@ -0,0 +1,274 @@
+package uk.co.johngabriel.co657a3.things;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import uk.co.johngabriel.co657a3.model.Problem;
+import uk.co.johngabriel.co657a3.model.Snapshot;
+import uk.co.johngabriel.co657a3.model.json.CompressedSeries;
+import uk.co.johngabriel.co657a3.model.json.DataResolution;
+import uk.co.johngabriel.co657a3.model.json.DataType;
+import uk.co.johngabriel.co657a3.model.json.Device;
+import uk.co.johngabriel.co657a3.model.json.DeviceData;
+import uk.co.johngabriel.co657a3.model.json.DeviceType;
+import uk.co.johngabriel.co657a3.model.json.ExponentialStats;
+import uk.co.johngabriel.co657a3.model.json.ReadingSeries;
+import uk.co.johngabriel.co657a3.model.json.Site;
+import uk.co.johngabriel.co657a3.model.json.Zone;
+
+/**
+ * Keeps the last published Snapshot in a file, so that after a restart there's something to serve
+ * straight away, and the first update cycle only has to catch up on what's new.
+ *
+ * The file is a compact binary dump: the sites and their zones, then each device with its series,
+ * in the same compressed blocks as a CompressedSeries, then the expected devices.
+ * Problems aren't kept, as they're cheap to find again. It's written to a temporary file and moved
+ * into place, so a crash mid-write leaves the previous one intact.
+ *
+ * @author John Gabriel
+ */
+public class SnapshotStore {
+	private static final Logger LOG = LoggerFactory.getLogger(SnapshotStore.class);
+	private static final int MAGIC = 0x43363537; // "C657"
+	private static final int FORMAT = 2;
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	private File file;
+	private long baselineHalfLife; // For the baselines of the readings it loads, in milliseconds
+
+	public SnapshotStore(File file) {
+		this(file, ExponentialStats.DEFAULT_HALF_LIFE);
+	}
+
+	public SnapshotStore(File file, long baselineHalfLife) {
+		this.file = file;
+		this.baselineHalfLife = baselineHalfLife;
+	}
+
+	public File getFile() { return file; }
+
+	private static void writeString(DataOutputStream out, String value) throws IOException {
+		out.writeBoolean(value != null);
+		if (value != null) out.writeUTF(value);
+	}
+
+	private static String readString(DataInputStream in) throws IOException {
+		return in.readBoolean() ? in.readUTF() : null;
+	}
+
+	private static void writeTime(DataOutputStream out, LocalDateTime time) throws IOException {
+		out.writeLong((time == null) ? Long.MIN_VALUE : ReadingSeries.toEpochMilli(time));
+	}
+
+	private static LocalDateTime readTime(DataInputStream in) throws IOException {
+		long time = in.readLong();
+		return (time == Long.MIN_VALUE) ? null : ReadingSeries.fromEpochMilli(time);
+	}
+
+	private static <T extends Enum<T>> T readEnum(DataInputStream in, Class<T> type) throws IOException {
+		String name = in.readUTF();
+		try {
+			return Enum.valueOf(type, name);
+		} catch (IllegalArgumentException e) {
+			throw new IOException("Unknown " + type.getSimpleName() + " " + name + " in snapshot");
+		}
+	}
+
+	private static void writeSeries(DataOutputStream out, ReadingSeries series) throws IOException {
+		CompressedSeries compressed = CompressedSeries.encode(series);
+		int blocks = compressed.getBlockCount();
+		out.writeInt(blocks);
+		for (int i = 0; i < blocks; i++) {
+			long[] block = compressed.getBlock(i);
+			out.writeInt(compressed.getBlockSize(i));
+			out.writeInt(block.length);
+			for (long word: block)
+				out.writeLong(word);
+		}
+	}
+
+	private static ReadingSeries readSeries(DataInputStream in, DataType type) throws IOException {
+		int blocks = in.readInt();
+		long[][] words = new long[blocks][];
+		int[] counts = new int[blocks];
+		for (int i = 0; i < blocks; i++) {
+			counts[i] = in.readInt();
+			words[i] = new long[in.readInt()];
+			for (int j = 0; j < words[i].length; j++)
+				words[i][j] = in.readLong();
+		}
+		return new CompressedSeries(type, words, counts).decode();
+	}
+
+	private static void writeDevice(DataOutputStream out, Device device) throws IOException {
+		writeString(out, device.getId());
+		writeString(out, device.getName());
+		out.writeUTF(device.getType().name());
+		out.writeUTF(device.getSite().getId());
+		out.writeUTF(device.getZone().getId());
+		writeTime(out, device.getLastConnection());
+		writeString(out, device.getSoftwareVersion());
+		List<DeviceData> data = device.getData();
+		out.writeInt(data.size());
+		for (DeviceData next: data) {
+			out.writeUTF(next.getType().name());
+			out.writeUTF(next.getResolution().name());
+			writeString(out, next.getName());
+			writeString(out, next.getSoftwareVersion());
+			writeString(out, next.getScale());
+			writeSeries(out, next.getSeries());
+		}
+	}
+
+	private Device readDevice(DataInputStream in, GraphBuilder graph) throws IOException {
+		String id = readString(in);
+		String name = readString(in);
+		DeviceType type = readEnum(in, DeviceType.class);
+		String siteId = in.readUTF();
+		String zoneId = in.readUTF();
+		LocalDateTime lastConnection = readTime(in);
+		String softwareVersion = readString(in);
+		Site site = graph.getSite(siteId);
+		Zone zone = graph.getZone(siteId, zoneId);
+		if (site == null || zone == null)
+			throw new IOException("Device " + id + " is in a zone that isn't in the snapshot");
+		Device device = new Device(id, name, type, site, zone, lastConnection, softwareVersion);
+		int dataCount = in.readInt();
+		for (int i = 0; i < dataCount; i++) {
+			DataType dataType = readEnum(in, DataType.class);
+			DataResolution resolution = readEnum(in, DataResolution.class);
+			String dataName = readString(in);
+			String dataVersion = readString(in);
+			String scale = readString(in);
+			DeviceData data = new DeviceData(id, dataName, site, zone, dataVersion, dataType, resolution, scale, baselineHalfLife);
+			data.addReadings(readSeries(in, dataType));
+			device.addData(data);
+		}
+		return device;
+	}
+
+	/**
+	 * Writes the given snapshot out, replacing whatever was there, and syncs it to disk.
+	 * @return Whether it was saved.
+	 */
+	public boolean save(Snapshot snapshot) {
+		long start = System.currentTimeMillis();
+		Path temp = null;
+		try {
+			File directory = file.getAbsoluteFile().getParentFile();
+			if (!directory.isDirectory() && !directory.mkdirs())
+				throw new IOException("Couldn't create " + directory);
+			temp = Files.createTempFile(directory.toPath(), file.getName(), ".tmp");
+			try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE);
+					DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel), BUFFER_SIZE))) {
+				out.writeInt(MAGIC);
+				out.writeInt(FORMAT);
+				out.writeLong(snapshot.getVersion());
+				writeTime(out, snapshot.getTime());
+				out.writeInt(snapshot.getSites().size());
+				for (Site site: snapshot.getSites()) {
+					writeString(out, site.getId());
+					writeString(out, site.getName());
+					out.writeDouble(site.getLongitude());
+					out.writeDouble(site.getLatitude());
+					out.writeDouble(site.getAltitude());
+					writeString(out, site.getCountryCode());
+					writeString(out, site.getTimezone());
+					List<Zone> zones = site.getZones();
+					out.writeInt(zones.size());
+					for (Zone zone: zones) {
+						writeString(out, zone.getId());
+						writeString(out, zone.getName());
+					}
+				}
+				out.writeInt(snapshot.getDevices().size());
+				for (Device device: snapshot.getDevices())
+					writeDevice(out, device);
+				out.writeInt(snapshot.getExpectedDevices().size());
+				for (String id: snapshot.getExpectedDevices())
+					out.writeUTF(id);
+				out.flush();
+				// The write-ahead log gets cleared once this is saved, so it had better really be on disk
+				channel.force(true);
+			}
+			Files.move(temp, file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			LOG.info("Saved snapshot {} to {} ({} KB) in {}ms", snapshot.getVersion(), file,
+					file.length() / 1024, System.currentTimeMillis() - start);
+			return true;
+		} catch (IOException e) {
+			LOG.error("Couldn't save snapshot to {}", file, e);
+			return false;
+		} finally {
+			try {
+				if (temp != null) Files.deleteIfExists(temp);
+			} catch (IOException e) {
+				LOG.warn("Couldn't delete {}", temp);
+			}
+		}
+	}
+
+	/**
+	 * Reads the snapshot last saved, putting its sites, zones and devices into the given builder.
+	 * @return The snapshot, without any problems or ideals; null if there isn't one we can read.
+	 */
+	public Snapshot load(GraphBuilder graph) {
+		if (!file.isFile()) return null;
+		long start = System.currentTimeMillis();
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file.toPath()), BUFFER_SIZE))) {
+			if (in.readInt() != MAGIC || in.readInt() != FORMAT) {
+				LOG.warn("{} isn't a snapshot we know how to read; ignoring it", file);
+				return null;
+			}
+			long version = in.readLong();
+			LocalDateTime time = readTime(in);
+			int siteCount = in.readInt();
+			for (int i = 0; i < siteCount; i++) {
+				String id = readString(in);
+				String name = readString(in);
+				double longitude = in.readDouble();
+				double latitude = in.readDouble();
+				double altitude = in.readDouble();
+				String countryCode = readString(in);
+				String timezone = readString(in);
+				Site site = new Site(id, name, longitude, latitude, altitude, countryCode, timezone);
+				int zoneCount = in.readInt();
+				for (int j = 0; j < zoneCount; j++) {
+					Zone zone = new Zone(readString(in), readString(in));
+					zone.setSite(site);
+					site.addZone(zone.getId(), zone);
+					graph.addZone(id, zone);
+				}
+				graph.addSite(site);
+			}
+			int deviceCount = in.readInt();
+			for (int i = 0; i < deviceCount; i++)
+				graph.addDevice(readDevice(in, graph));
+			graph.link();
+			int expectedCount = in.readInt();
+			for (int i = 0; i < expectedCount; i++)
+				graph.expectDevice(in.readUTF());
+			LOG.info("Loaded snapshot {} from {} in {}ms", version, file, System.currentTimeMillis() - start);
+			return new Snapshot(version, graph.getDevices(), graph.getZones(), graph.getSites(),
+					graph.getExpectedDevices(), new ArrayList<Problem>(), time);
+		} catch (IOException e) {
+			LOG.warn("Couldn't load snapshot from {}; starting from scratch", file, e);
+			return null;
+		}
+	}
+}
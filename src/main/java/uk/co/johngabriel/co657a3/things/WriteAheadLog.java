@@ -0,0 +1,258 @@
+package uk.co.johngabriel.co657a3.things;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.CRC32;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import uk.co.johngabriel.co657a3.model.json.DataResolution;
+import uk.co.johngabriel.co657a3.model.json.DataType;
+import uk.co.johngabriel.co657a3.model.json.ReadingSeries;
+
+/**
+ * A log of every batch of readings we take in, written (and synced) before they're applied, so that if we
+ * crash partway through a cycle, whatever was taken in since the last checkpoint can be replayed at startup,
+ * rather than lost or fetched all over again.
+ *
+ * Syncing a file takes a while, so rather than each fetch thread syncing its own batch, they commit as a group:
+ * whichever thread gets there first writes out everything that's waiting, syncs once, and lets everyone whose
+ * batch went with it carry on. The others queue up behind it meanwhile, and the next one does the same for them.
+ *
+ * Each record is its length and a CRC32, then the device, type and resolution, then the readings. Replay stops
+ * at the first record in a file that doesn't check out, which can only be one that was being written when we
+ * crashed, or when a write failed; after a failure, logging carries on in a new file, so nothing after it is
+ * lost along with it. A checkpoint (once the cycle's snapshot and the segment store are safely on disk) deletes the lot.
+ *
+ * @author John Gabriel
+ */
+public class WriteAheadLog {
+	private static final Logger LOG = LoggerFactory.getLogger(WriteAheadLog.class);
+	private static final String PREFIX = "wal-";
+	private static final String SUFFIX = ".log";
+
+	/**
+	 * Something to apply replayed readings to.
+	 */
+	public interface Replayer {
+		void replay(String deviceId, DataType type, DataResolution resolution, ReadingSeries readings);
+	}
+
+	/**
+	 * A record waiting to be written, and how that went.
+	 */
+	private static class Record {
+		private final ByteBuffer buffer;
+		private boolean written; // Guarded by syncLock
+		private boolean failed; // Guarded by syncLock
+
+		private Record(ByteBuffer buffer) {
+			this.buffer = buffer;
+		}
+	}
+
+	private File directory;
+	private final Object lock = new Object(); // Guards pending
+	private final Object syncLock = new Object(); // Held by whichever thread's writing out a group
+	private List<Record> pending;
+	private volatile long durable; // How many records have been synced
+	private FileChannel channel; // Guarded by syncLock
+	private long fileNumber; // Guarded by syncLock
+	private volatile long syncs;
+
+	public WriteAheadLog(File directory) {
+		this.directory = directory;
+		pending = new ArrayList<>();
+		// New records always go in a new file, never on the end of one that might have been cut short
+		for (File file: listFiles())
+			fileNumber = Math.max(fileNumber, getFileNumber(file));
+	}
+
+	public File getDirectory() { return directory; }
+
+	/**
+	 * @return How many records have been logged since we started.
+	 */
+	public long getRecords() { return durable; }
+
+	/**
+	 * @return How many times the log's been synced since we started; with group commit, hopefully far fewer than getRecords().
+	 */
+	public long getSyncs() { return syncs; }
+
+	private static long getFileNumber(File file) {
+		String name = file.getName();
+		return Long.parseLong(name.substring(PREFIX.length(), name.length() - SUFFIX.length()));
+	}
+
+	/**
+	 * @return The log files there are, oldest first.
+	 */
+	private File[] listFiles() {
+		File[] files = directory.listFiles((dir, name) -> name.matches(PREFIX + "\\d+" + SUFFIX));
+		if (files == null) return new File[0];
+		Arrays.sort(files, (a, b) -> Long.compare(getFileNumber(a), getFileNumber(b)));
+		return files;
+	}
+
+	private static ByteBuffer encode(String deviceId, DataType type, DataResolution resolution, ReadingSeries readings) {
+		int size = readings.size();
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(64 + size * 16);
+		try (DataOutputStream out = new DataOutputStream(bytes)) {
+			out.writeUTF(deviceId);
+			out.writeUTF(type.name());
+			out.writeUTF(resolution.name());
+			out.writeInt(size);
+			for (int i = 0; i < size; i++) {
+				out.writeLong(readings.getTime(i));
+				out.writeDouble(readings.getValue(i));
+			}
+		} catch (IOException e) {
+			throw new IllegalStateException("Couldn't write to memory", e);
+		}
+		byte[] payload = bytes.toByteArray();
+		CRC32 crc = new CRC32();
+		crc.update(payload);
+		ByteBuffer record = ByteBuffer.allocate(8 + payload.length);
+		record.putInt(payload.length);
+		record.putInt((int) crc.getValue());
+		record.put(payload);
+		record.flip();
+		return record;
+	}
+
+	/**
+	 * Logs a batch of readings, returning once it's safely on disk. Call it before applying them.
+	 * @throws IOException If it couldn't be written. It's not in the log, so don't apply it; the next one goes in a new file.
+	 */
+	public void append(String deviceId, DataType type, DataResolution resolution, ReadingSeries readings) throws IOException {
+		if (readings.isEmpty()) return;
+		Record record = new Record(encode(deviceId, type, resolution, readings));
+		synchronized (lock) {
+			pending.add(record);
+		}
+		synchronized (syncLock) {
+			if (record.failed)
+				throw new IOException("The log couldn't be written");
+			if (record.written)
+				return; // Someone else wrote it out along with theirs
+			List<Record> group;
+			synchronized (lock) {
+				group = pending;
+				pending = new ArrayList<>();
+			}
+			try {
+				if (channel == null) {
+					if (!directory.isDirectory() && !directory.mkdirs())
+						throw new IOException("Couldn't create " + directory);
+					File file = new File(directory, String.format("%s%020d%s", PREFIX, ++fileNumber, SUFFIX));
+					channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+				}
+				for (Record next: group)
+					while (next.buffer.hasRemaining())
+						channel.write(next.buffer);
+				channel.force(false);
+			} catch (IOException e) {
+				for (Record next: group)
+					next.failed = true;
+				// Part of the group might have made it; whatever comes next goes after that, in a file of its own
+				closeChannel();
+				throw e;
+			}
+			for (Record next: group)
+				next.written = true;
+			durable += group.size();
+			syncs++;
+		}
+	}
+
+	/**
+	 * Closes the file being written, if there is one, so the next record starts a new one. Call it while holding syncLock.
+	 */
+	private void closeChannel() {
+		if (channel == null) return;
+		try {
+			channel.close();
+		} catch (IOException e) {
+			LOG.warn("Couldn't close the log", e);
+		}
+		channel = null;
+	}
+
+	/**
+	 * Replays every record in the log, oldest first. Call it before anything's appended.
+	 * @return How many records were replayed.
+	 */
+	public int replay(Replayer replayer) {
+		int replayed = 0;
+		for (File file: listFiles()) {
+			ByteBuffer buffer;
+			try {
+				buffer = ByteBuffer.wrap(Files.readAllBytes(file.toPath()));
+			} catch (IOException e) {
+				LOG.error("Couldn't read {}", file, e);
+				continue;
+			}
+			while (buffer.remaining() >= 8) {
+				int length = buffer.getInt();
+				int checksum = buffer.getInt();
+				if (length < 0 || length > buffer.remaining()) break;
+				byte[] payload = new byte[length];
+				buffer.get(payload);
+				CRC32 crc = new CRC32();
+				crc.update(payload);
+				if ((int) crc.getValue() != checksum) break;
+				try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload))) {
+					String deviceId = in.readUTF();
+					DataType type = DataType.valueOf(in.readUTF());
+					DataResolution resolution = DataResolution.valueOf(in.readUTF());
+					int size = in.readInt();
+					long[] times = new long[size];
+					double[] values = new double[size];
+					for (int i = 0; i < size; i++) {
+						times[i] = in.readLong();
+						values[i] = in.readDouble();
+					}
+					replayer.replay(deviceId, type, resolution, ReadingSeries.sort(type, times, values, size));
+					replayed++;
+				} catch (IOException | IllegalArgumentException e) {
+					LOG.warn("Skipping a record in {} that doesn't make sense", file, e);
+				}
+			}
+			if (buffer.hasRemaining())
+				LOG.warn("{} ends with {} bytes that weren't fully written; ignoring them", file, buffer.remaining());
+		}
+		return replayed;
+	}
+
+	/**
+	 * Marks everything logged so far as safely stored elsewhere, and deletes it. Call it between cycles, so that
+	 * nothing's being appended meanwhile.
+	 */
+	public void checkpoint() {
+		synchronized (syncLock) {
+			synchronized (lock) {
+				for (Record next: pending)
+					next.written = true;
+				durable += pending.size();
+				pending.clear();
+			}
+			closeChannel();
+			for (File file: listFiles())
+				if (!file.delete())
+					LOG.warn("Couldn't delete {}", file);
+		}
+	}
+}
@@ -3,13 +3,12 @@ package uk.co.johngabriel.co657a3.webbits;
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
 
-import uk.co.johngabriel.co657a3.things.DataManager;
-
 /**
  * WHERE IT ALL BEGINS
  * @author John Gabriel
  */
-@SpringBootApplication
+// DataManager lives in things, so look there too, not just in webbits
+@SpringBootApplication(scanBasePackages = "uk.co.johngabriel.co657a3")
 public class WebApplication {
 
 	public static void main(String[] args) throws Exception {
@@ -1,5 +1,7 @@
 package uk.co.johngabriel.co657a3.webbits;
 
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
 import java.util.HashMap;
 import java.util.List;
 
@@ -13,6 +15,7 @@ import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.ResponseBody;
 
+import uk.co.johngabriel.co657a3.model.Snapshot;
 import uk.co.johngabriel.co657a3.model.json.DataResolution;
 import uk.co.johngabriel.co657a3.model.json.Device;
 import uk.co.johngabriel.co657a3.model.json.Site;
@@ -26,56 +29,56 @@ public class WebController {
 	
     private DataManager dataManagerThing;
     
-    public WebController() {
-    	dataManagerThing = new DataManager();
+    public WebController(DataManager dataManagerThing) {
+    	this.dataManagerThing = dataManagerThing;
     }
 
 	@RequestMapping("/")
 	public String index(Model model) {
 		LOG.info("Responding to index request");
-		dataManagerThing.update();
-		model.addAttribute("sites", Prettyfier.getSiteTable(dataManagerThing.getSites()));
-		model.addAttribute("problems", Prettyfier.getProblemTable(dataManagerThing.getProblemFinder().getProblems()));
+		Snapshot snapshot = dataManagerThing.getSnapshot();
+		model.addAttribute("sites", Prettyfier.getSiteTable(snapshot.getSites()));
+		model.addAttribute("problems", Prettyfier.getProblemTable(snapshot.getProblems()));
 		return "index";
 	}
 
 	@RequestMapping("/sites")
 	public String sites(Model model) {
 		LOG.info("Responding to /sites request");
-		dataManagerThing.update();
-		model.addAttribute("sites", Prettyfier.getSiteTable(dataManagerThing.getSites()));
+		Snapshot snapshot = dataManagerThing.getSnapshot();
+		model.addAttribute("sites", Prettyfier.getSiteTable(snapshot.getSites()));
 		return "sites";
 	}
 
 	@RequestMapping("/zones")
 	public String zones(Model model) {
 		LOG.info("Responding to /zones request");
-		dataManagerThing.update();
-		model.addAttribute("zones", Prettyfier.getZoneTable(dataManagerThing.getZones()));
+		Snapshot snapshot = dataManagerThing.getSnapshot();
+		model.addAttribute("zones", Prettyfier.getZoneTable(snapshot.getZones()));
 		return "zones";
 	}
 
 	@RequestMapping("/devices")
 	public String devices(Model model) {
 		LOG.info("Responding to /devices request");
-		dataManagerThing.update();
-		model.addAttribute("devices", Prettyfier.getDeviceTable(dataManagerThing.getDevices()));
+		Snapshot snapshot = dataManagerThing.getSnapshot();
+		model.addAttribute("devices", Prettyfier.getDeviceTable(snapshot.getDevices()));
 		return "devices";
 	}
 
 	@RequestMapping("/problems")
 	public String problems(Model model) {
 		LOG.info("Responding to /problems request");
-		dataManagerThing.update();
-		model.addAttribute("problems", Prettyfier.getProblemTable(dataManagerThing.getProblemFinder().getProblems()));
+		Snapshot snapshot = dataManagerThing.getSnapshot();
+		model.addAttribute("problems", Prettyfier.getProblemTable(snapshot.getProblems()));
 		return "problems";
 	}
 
 	@RequestMapping("/site/{siteName}")
 	public String sitePage(@PathVariable String siteName, Model model) {
 		LOG.info("Responding to /site/{} request", siteName);
-		dataManagerThing.update();
-		Site siteObject = dataManagerThing.getSite(siteName);
+		Snapshot snapshot = dataManagerThing.getSnapshot();
+		Site siteObject = snapshot.getSite(siteName);
 		model.addAttribute("site", siteObject);
 		model.addAttribute("info", Prettyfier.getSiteInfo(siteObject));
 		model.addAttribute("averages", Prettyfier.getSiteAverages(siteObject));
@@ -87,8 +90,8 @@ public class WebController {
 	@RequestMapping("/zone")
 	public String zonePage(@RequestParam(value="site", required=true) String siteName, @RequestParam(value="zone", required=true) String zoneName, Model model) {
 		LOG.info("Responding to /zone?site={}&zone={} request", siteName, zoneName);
-		dataManagerThing.update();
-		Site siteObject = dataManagerThing.getSite(siteName);
+		Snapshot snapshot = dataManagerThing.getSnapshot();
+		Site siteObject = snapshot.getSite(siteName);
 		Zone zoneObject = siteObject.getZone(zoneName);
 		model.addAttribute("zone", zoneObject);
 		model.addAttribute("info", Prettyfier.getZoneInfo(zoneObject));
@@ -101,8 +104,8 @@ public class WebController {
 	@RequestMapping("/device/{deviceName}")
 	public String devicePage(@PathVariable String deviceName, Model model) {
 		LOG.info("Responding to /device/{} request", deviceName);
-		dataManagerThing.update();
-		Device deviceObject = dataManagerThing.getDevice(deviceName);
+		Snapshot snapshot = dataManagerThing.getSnapshot();
+		Device deviceObject = snapshot.getDevice(deviceName);
 		model.addAttribute("device", deviceObject);
 		model.addAttribute("info", Prettyfier.getDeviceInfo(deviceObject));
 		model.addAttribute("current", Prettyfier.getCurrentData(deviceObject));
@@ -114,40 +117,40 @@ public class WebController {
 	@RequestMapping("/api/sites")
 	public String sitesTable(Model model) {
 		LOG.info("Responding to /api/sites request");
-		dataManagerThing.update();
-		model.addAttribute("sites", Prettyfier.getSiteTable(dataManagerThing.getSites()));
+		Snapshot snapshot = dataManagerThing.getSnapshot();
+		model.addAttribute("sites", Prettyfier.getSiteTable(snapshot.getSites()));
 		return "api :: sites";
 	}
 
 	@RequestMapping("/api/zones")
 	public String zonesTable(Model model) {
 		LOG.info("Responding to /api/zones request");
-		dataManagerThing.update();
-		model.addAttribute("zones", Prettyfier.getZoneTable(dataManagerThing.getZones()));
+		Snapshot snapshot = dataManagerThing.getSnapshot();
+		model.addAttribute("zones", Prettyfier.getZoneTable(snapshot.getZones()));
 		return "api :: zones";
 	}
 
 	@RequestMapping("/api/devices")
 	public String deviceTable(Model model) {
 		LOG.info("Responding to /api/devices request");
-		dataManagerThing.update();
-		model.addAttribute("devices", Prettyfier.getDeviceTable(dataManagerThing.getDevices()));
+		Snapshot snapshot = dataManagerThing.getSnapshot();
+		model.addAttribute("devices", Prettyfier.getDeviceTable(snapshot.getDevices()));
 		return "api :: devices";
 	}
 
 	@RequestMapping("/api/problems")
 	public String problemTable(Model model) {
 		LOG.info("Responding to /api/problems request");
-		dataManagerThing.update();
-		model.addAttribute("problems", Prettyfier.getProblemTable(dataManagerThing.getProblemFinder().getProblems()));
+		Snapshot snapshot = dataManagerThing.getSnapshot();
+		model.addAttribute("problems", Prettyfier.getProblemTable(snapshot.getProblems()));
 		return "api :: problems";
 	}
 
 	@RequestMapping("/api/site/{siteName}")
 	public String siteAPI(@PathVariable String siteName, Model model) {
 		LOG.info("Responding to /api/site/{} request", siteName);
-		dataManagerThing.update();
-		Site siteObject = dataManagerThing.getSite(siteName);
+		Snapshot snapshot = dataManagerThing.getSnapshot();
+		Site siteObject = snapshot.getSite(siteName);
 		model.addAttribute("site", siteObject);
 		model.addAttribute("info", Prettyfier.getSiteInfo(siteObject));
 		model.addAttribute("averages", Prettyfier.getSiteAverages(siteObject));
@@ -159,8 +162,8 @@ public class WebController {
 	@RequestMapping("/api/zone")
 	public String zoneAPI(@RequestParam(value="site", required=true) String siteName, @RequestParam(value="zone", required=true) String zoneName, Model model) {
 		LOG.info("Responding to /api/zone?site={}&zone={} request", siteName, zoneName);
-		dataManagerThing.update();
-		Site siteObject = dataManagerThing.getSite(siteName);
+		Snapshot snapshot = dataManagerThing.getSnapshot();
+		Site siteObject = snapshot.getSite(siteName);
 		Zone zoneObject = siteObject.getZone(zoneName);
 		model.addAttribute("zone", zoneObject);
 		model.addAttribute("info", Prettyfier.getZoneInfo(zoneObject));
@@ -173,8 +176,8 @@ public class WebController {
 	@RequestMapping("/api/device/{deviceName}")
 	public String deviceAPI(@PathVariable String deviceName, Model model) {
 		LOG.info("Responding to /api/device/{} request", deviceName);
-		dataManagerThing.update();
-		Device deviceObject = dataManagerThing.getDevice(deviceName);
+		Snapshot snapshot = dataManagerThing.getSnapshot();
+		Device deviceObject = snapshot.getDevice(deviceName);
 		model.addAttribute("device", deviceObject);
 		model.addAttribute("info", Prettyfier.getDeviceInfo(deviceObject));
 		model.addAttribute("current", Prettyfier.getCurrentData(deviceObject));
@@ -186,9 +189,9 @@ public class WebController {
 	@RequestMapping("/api/updateIndicator")
 	public String updateIndicator(Model model) {
 		LOG.info("Responding to /api/updateIndicator request");
-		dataManagerThing.update();
+		Snapshot snapshot = dataManagerThing.getSnapshot();
 		model.addAttribute("isUpdating", dataManagerThing.getUpdater().isUpdating());
-		model.addAttribute("lastUpdate", dataManagerThing.getUpdater().getLastUpdateTime());
+		model.addAttribute("lastUpdate", snapshot.getTime());
 		return "fragments :: updateIndicator";
 	}
 
@@ -197,8 +200,8 @@ public class WebController {
 	@ResponseBody
 	public List<HashMap<String, Object>> mapMarkers() {
 		LOG.info("Responding to /json/markers request");
-		dataManagerThing.update();
-		return Prettyfier.getDeviceMapMarkers(dataManagerThing.getDevices());
+		Snapshot snapshot = dataManagerThing.getSnapshot();
+		return Prettyfier.getDeviceMapMarkers(snapshot.getDevices());
 	}
 	
 	@CrossOrigin(origins = "*")
@@ -206,57 +209,72 @@ public class WebController {
 	@ResponseBody
 	public HashMap<String, Object> deviceTypes(@RequestParam(value="id", required=true) String deviceName) {
 		LOG.info("Responding to /json/device/{} request", deviceName);
-		dataManagerThing.update();
-		Device deviceObject = dataManagerThing.getDevice(deviceName);
+		Snapshot snapshot = dataManagerThing.getSnapshot();
+		Device deviceObject = snapshot.getDevice(deviceName);
 		return Prettyfier.getDeviceData(deviceObject);
 	}
 	
 	@CrossOrigin(origins = "*")
 	@RequestMapping("/json/deviceData")
 	@ResponseBody
-	public HashMap<String, Object> deviceReadings(@RequestParam(value="id", required=true) String deviceName, @RequestParam(value="res", required=true) int res) {
+	public HashMap<String, Object> deviceReadings(@RequestParam(value="id", required=true) String deviceName, @RequestParam(value="res", required=true) int res, @RequestParam(value="days", defaultValue="0") int days) {
 		LOG.info("Responding to /json/deviceData/{}/{} request", deviceName, res);
-		dataManagerThing.update();
+		Snapshot snapshot = dataManagerThing.getSnapshot();
 		DataResolution resolution = DataResolution.EVERY_MINUTE;
 		switch (res) {
 		case 0: resolution = DataResolution.EVERY_MINUTE; break;
 		case 1: resolution = DataResolution.EVERY_10MINUTES; break;
 		case 2: resolution = DataResolution.EVERY_HOUR; break;
 		}
-		Device deviceObject = dataManagerThing.getDevice(deviceName);
-		return Prettyfier.getChartData(deviceObject, resolution);
+		Device deviceObject = snapshot.getDevice(deviceName);
+		return Prettyfier.getChartData(deviceObject, resolution, getFrom(days));
 	}
 	
 	@CrossOrigin(origins = "*")
 	@RequestMapping("/json/zoneData")
 	@ResponseBody
-	public HashMap<String, Object> zoneReadings(@RequestParam(value="site", required=true) String siteName, @RequestParam(value="zone", required=true) String zoneName, @RequestParam(value="res", required=true) int res) {
+	public HashMap<String, Object> zoneReadings(@RequestParam(value="site", required=true) String siteName, @RequestParam(value="zone", required=true) String zoneName, @RequestParam(value="res", required=true) int res, @RequestParam(value="days", defaultValue="0") int days) {
 		LOG.info("Responding to /json/zoneData/{}/{} request", zoneName, res);
-		dataManagerThing.update();
+		Snapshot snapshot = dataManagerThing.getSnapshot();
 		DataResolution resolution = DataResolution.EVERY_MINUTE;
 		switch (res) {
 		case 0: resolution = DataResolution.EVERY_MINUTE; break;
 		case 1: resolution = DataResolution.EVERY_10MINUTES; break;
 		case 2: resolution = DataResolution.EVERY_HOUR; break;
 		}
-		Zone zoneObject = dataManagerThing.getZone(siteName + "/" + zoneName);
-		return Prettyfier.getZoneChartData(zoneObject, resolution);
+		Zone zoneObject = snapshot.getZone(siteName + "/" + zoneName);
+		return Prettyfier.getZoneChartData(zoneObject, resolution, getFrom(days));
 	}
 	
 	@CrossOrigin(origins = "*")
 	@RequestMapping("/json/siteData")
 	@ResponseBody
-	public HashMap<String, Object> siteReadings(@RequestParam(value="site", required=true) String siteName, @RequestParam(value="res", required=true) int res) {
+	public HashMap<String, Object> siteReadings(@RequestParam(value="site", required=true) String siteName, @RequestParam(value="res", required=true) int res, @RequestParam(value="days", defaultValue="0") int days) {
 		LOG.info("Responding to /json/siteReadings/{} request", siteName, res);
-		dataManagerThing.update();
+		Snapshot snapshot = dataManagerThing.getSnapshot();
 		DataResolution resolution = DataResolution.EVERY_MINUTE;
 		switch (res) {
 		case 0: resolution = DataResolution.EVERY_MINUTE; break;
 		case 1: resolution = DataResolution.EVERY_10MINUTES; break;
 		case 2: resolution = DataResolution.EVERY_HOUR; break;
 		}
-		Site siteObject = dataManagerThing.getSite(siteName);
-		return Prettyfier.getSiteChartData(siteObject, resolution);
+		Site siteObject = snapshot.getSite(siteName);
+		return Prettyfier.getSiteChartData(siteObject, resolution, getFrom(days));
+	}
+	
+	/**
+	 * @return When a chart going back the given number of days starts, in UTC; null for however far the readings go.
+	 */
+	private static LocalDateTime getFrom(int days) {
+		return (days > 0) ? LocalDateTime.now(ZoneOffset.UTC).minusDays(days) : null;
+	}
+	
+	@CrossOrigin(origins = "*")
+	@RequestMapping("/json/stats")
+	@ResponseBody
+	public HashMap<String, Object> stats() {
+		LOG.info("Responding to /json/stats request");
+		return dataManagerThing.getStats();
 	}
 	
 	@CrossOrigin(origins = "*")
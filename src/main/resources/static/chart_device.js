@@ -36,9 +36,9 @@ function drawChart(chartDataStuff) {
 	chart.draw(data, options);
 }
 
-function getChartData(id, res) {
+function getChartData(id, res, days) {
 	var chartDataStuff = new Array();
-	$.getJSON("http://localhost:8080/json/deviceData?id=" + id + "\u0026res=" + res,
+	$.getJSON("http://localhost:8080/json/deviceData?id=" + id + "\u0026res=" + res + (days ? "\u0026days=" + days : ""),
 		function(result) {
 		$.each(result.values, function(i, next) {
 			var dateOfThisThing = new Date(next[0][0],
@@ -0,0 +1,100 @@
+package uk.co.johngabriel.co657a3.model;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import uk.co.johngabriel.co657a3.model.json.DataResolution;
+import uk.co.johngabriel.co657a3.model.json.DataType;
+import uk.co.johngabriel.co657a3.model.json.Device;
+import uk.co.johngabriel.co657a3.model.json.DeviceData;
+import uk.co.johngabriel.co657a3.model.json.DeviceType;
+import uk.co.johngabriel.co657a3.model.json.Site;
+import uk.co.johngabriel.co657a3.model.json.Zone;
+
+/**
+ * Checks that a Snapshot made with copyOf() is linked up like the things it was made from, and doesn't change
+ * when they do.
+ * @author John Gabriel
+ */
+public class SnapshotTest {
+	private static final LocalDateTime START = LocalDateTime.of(2017, 11, 1, 0, 0);
+
+	private Site site;
+	private Zone zone;
+	private Device device;
+	private Snapshot snapshot;
+
+	@Before
+	public void setUp() {
+		site = new Site("site", "The Farm", 0, 0, 0, "GB", "Europe/London");
+		zone = new Zone("zone", "Greenhouse");
+		zone.setSite(site);
+		site.addZone(zone.getId(), zone);
+		device = new Device("device", "Sensor", DeviceType.TEMPHUMID, site, zone, START, "1.0");
+		site.addDevice(device);
+		zone.addDevice(device);
+		DeviceData data = new DeviceData("device", "Sensor", site, zone, "1.0", DataType.HUMIDITY, DataResolution.EVERY_MINUTE, "RH");
+		for (int i = 0; i < 10; i++)
+			data.addReading(START.plusMinutes(i), i);
+		device.addData(data);
+		site.setIdeal(DataType.HUMIDITY, new Ideal(Ideal.TYPE_SITE, "site", DataType.HUMIDITY, 40, 60));
+
+		Map<String, Device> devices = new HashMap<>();
+		devices.put(device.getId(), device);
+		Map<String, Zone> zones = new HashMap<>();
+		zones.put("site/zone", zone);
+		Map<String, Site> sites = new HashMap<>();
+		sites.put(site.getId(), site);
+		List<Problem> problems = new ArrayList<>();
+		problems.add(new Problem(device, "Hasn't connected lately"));
+		snapshot = Snapshot.copyOf(1, devices, zones, sites, new HashSet<>(devices.keySet()), problems, START);
+	}
+
+	@Test
+	public void copiesAreLinkedToEachOther() {
+		Site siteCopy = snapshot.getSite("site");
+		Zone zoneCopy = snapshot.getZone("site/zone");
+		Device deviceCopy = snapshot.getDevice("device");
+		assertNotSame(site, siteCopy);
+		assertNotSame(device, deviceCopy);
+		assertSame(zoneCopy, siteCopy.getZone("zone"));
+		assertSame(siteCopy, zoneCopy.getSite());
+		assertSame(siteCopy, deviceCopy.getSite());
+		assertSame(zoneCopy, deviceCopy.getZone());
+		assertSame(deviceCopy, siteCopy.getDevices().get(0));
+		assertSame(deviceCopy, zoneCopy.getDevices().get(0));
+		assertSame(deviceCopy, snapshot.getProblems().get(0).getDevice());
+		assertSame(siteCopy, deviceCopy.getDeviceData(DataType.HUMIDITY, DataResolution.EVERY_MINUTE).getSite());
+	}
+
+	@Test
+	public void doesNotChangeWithTheOriginals() {
+		LocalDateTime later = START.plusMinutes(30);
+		device.setLastConnection(later);
+		device.getDeviceData(DataType.HUMIDITY, DataResolution.EVERY_MINUTE).addReading(later, 50);
+		site.setIdeal(DataType.HUMIDITY, null);
+		site.addDevice(new Device("other", "Sensor", DeviceType.TEMPHUMID, site, zone, later, "1.0"));
+
+		Device deviceCopy = snapshot.getDevice("device");
+		assertEquals(START, deviceCopy.getLastConnection());
+		DeviceData dataCopy = deviceCopy.getDeviceData(DataType.HUMIDITY, DataResolution.EVERY_MINUTE);
+		assertEquals(10, dataCopy.getSeries().size());
+		assertEquals(10, dataCopy.getStats().getCount());
+		assertEquals(START.plusMinutes(9), deviceCopy.getLatestReading(DataType.HUMIDITY).getTimestamp());
+		assertNull(dataCopy.getReadingAt(later));
+		assertEquals(60, snapshot.getSite("site").getIdeal(DataType.HUMIDITY).getMax(), 0);
+		assertEquals(1, snapshot.getSite("site").getDevices().size());
+	}
+}
@@ -0,0 +1,98 @@
+package uk.co.johngabriel.co657a3.model.json;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Checks that a CompressedSeries gives back exactly what went into it, bit for bit.
+ * @author John Gabriel
+ */
+public class CompressedSeriesTest {
+	private static final int BLOCK_SIZE = 1024; // Readings per block, as in CompressedSeries
+
+	private static ReadingSeries makeSeries(int readings) {
+		Random random = new Random(657);
+		ReadingSeries series = new ReadingSeries(DataType.TEMPERATURE);
+		long time = 1509494400000L; // 2017-11-01, UTC
+		for (int i = 0; i < readings; i++) {
+			// Mostly a minute apart, with the odd jump, and values that repeat, drift and occasionally leap
+			time += (i % 100 == 99) ? 3600000 + random.nextInt(5000) : 60000 + random.nextInt(3);
+			double value = (i % 7 == 0) ? random.nextGaussian() * 1e6 : Math.round(18 + Math.sin(i / 60d) * 4) / 100d;
+			series.add(time, value);
+		}
+		return series;
+	}
+
+	private static void assertSame(ReadingSeries expected, ReadingSeries actual) {
+		assertEquals(expected.size(), actual.size());
+		for (int i = 0; i < expected.size(); i++) {
+			assertEquals(expected.getTime(i), actual.getTime(i));
+			assertEquals(Double.doubleToRawLongBits(expected.getValue(i)), Double.doubleToRawLongBits(actual.getValue(i)));
+		}
+	}
+
+	@Test
+	public void roundTripsAcrossBlocks() {
+		ReadingSeries series = makeSeries(BLOCK_SIZE * 3 + 17);
+		CompressedSeries compressed = CompressedSeries.encode(series);
+		assertEquals(4, compressed.getBlockCount());
+		assertEquals(series.size(), compressed.size());
+		assertSame(series, compressed.decode());
+	}
+
+	@Test
+	public void roundTripsFromItsBlocks() {
+		ReadingSeries series = makeSeries(2000);
+		CompressedSeries compressed = CompressedSeries.encode(series);
+		long[][] blocks = new long[compressed.getBlockCount()][];
+		int[] counts = new int[blocks.length];
+		for (int i = 0; i < blocks.length; i++) {
+			blocks[i] = compressed.getBlock(i);
+			counts[i] = compressed.getBlockSize(i);
+		}
+		assertSame(series, new CompressedSeries(DataType.TEMPERATURE, blocks, counts).decode());
+	}
+
+	@Test
+	public void roundTripsOddValues() {
+		ReadingSeries series = new ReadingSeries(DataType.GAS);
+		double[] values = { 0, -0.0, -1.5, Double.NaN, Double.MAX_VALUE, Double.MIN_VALUE, Double.NEGATIVE_INFINITY, 42 };
+		for (int i = 0; i < values.length; i++)
+			series.add(-5000 + i * 1000L, values[i]);
+		assertSame(series, CompressedSeries.encode(series).decode());
+	}
+
+	@Test
+	public void roundTripsEmptyAndSingle() {
+		ReadingSeries empty = new ReadingSeries(DataType.GAS);
+		CompressedSeries compressed = CompressedSeries.encode(empty);
+		assertEquals(0, compressed.size());
+		assertFalse(compressed.cursor().next());
+		assertSame(empty, compressed.decode());
+
+		ReadingSeries single = new ReadingSeries(DataType.GAS);
+		single.add(1000, 3.25);
+		assertSame(single, CompressedSeries.encode(single).decode());
+	}
+
+	@Test
+	public void cursorCoversOnlyTheRange() {
+		ReadingSeries series = makeSeries(3000);
+		CompressedSeries compressed = CompressedSeries.encode(series);
+		long from = series.getTime(1500);
+		long to = series.getTime(2500);
+		CompressedSeries.Cursor cursor = compressed.cursor(from, to);
+		int i = series.lowerBound(from);
+		while (cursor.next()) {
+			assertEquals(series.getTime(i), cursor.getTime());
+			assertEquals(Double.doubleToRawLongBits(series.getValue(i)), Double.doubleToRawLongBits(cursor.getValue()));
+			i++;
+		}
+		assertEquals(2500, i);
+		assertFalse(compressed.cursor(to, from).next());
+	}
+}
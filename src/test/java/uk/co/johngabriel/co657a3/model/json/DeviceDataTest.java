@@ -0,0 +1,96 @@
+package uk.co.johngabriel.co657a3.model.json;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+import java.util.Comparator;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import uk.co.johngabriel.co657a3.things.RetentionPolicy;
+import uk.co.johngabriel.co657a3.things.SegmentStore;
+
+/**
+ * Checks that a DeviceData backed by a SegmentStore still finds readings that have gone from the heap,
+ * only goes to the store for them, and drops readings that come in too late to be stored.
+ * @author John Gabriel
+ */
+public class DeviceDataTest {
+	private static final LocalDateTime START = LocalDateTime.of(2017, 11, 1, 0, 0);
+
+	/**
+	 * Counts how often it's scanned.
+	 */
+	private static class CountingStore extends SegmentStore {
+		private int scans;
+
+		private CountingStore(File root) {
+			super(root, TimeUnit.DAYS.toMillis(1), RetentionPolicy.getDefault());
+		}
+
+		@Override
+		public SegmentCursor scan(String deviceId, DataType type, DataResolution resolution, long from, long to) {
+			scans++;
+			return super.scan(deviceId, type, resolution, from, to);
+		}
+	}
+
+	private File root;
+	private CountingStore store;
+	private DeviceData data;
+
+	@Before
+	public void setUp() throws IOException {
+		root = Files.createTempDirectory("devicedata").toFile();
+		store = new CountingStore(root);
+		data = new DeviceData("device", "Sensor", null, null, "1.0", DataType.TEMPERATURE, DataResolution.EVERY_MINUTE, "C");
+		data.setStore(store);
+		// Three days of readings, with a day's heap window, so the oldest go to the store alone
+		for (int i = 0; i < 3 * 1440; i++)
+			data.addReading(START.plusMinutes(i), i);
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		try (Stream<Path> files = Files.walk(root.toPath())) {
+			files.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+		}
+	}
+
+	@Test
+	public void findsReadingsThatHaveLeftTheHeap() {
+		assertTrue(data.getSeries().getTime(0) > ReadingSeries.toEpochMilli(START));
+		assertEquals(3 * 1440, data.getStats().getCount());
+		assertEquals(10, data.getReadingAt(START.plusMinutes(10)).getRawReading(), 0);
+		assertEquals(10, data.getReadingClosestTo(START.plusMinutes(10).plusSeconds(20), 30).getRawReading(), 0);
+		assertNull(data.getReadingAt(START.plusMinutes(10).plusSeconds(1)));
+		assertEquals(100, data.getReadings(START.plusMinutes(1400), START.plusMinutes(1500)).size());
+	}
+
+	@Test
+	public void leavesTheStoreAloneForRecentReadings() {
+		int scans = store.scans;
+		LocalDateTime recent = START.plusMinutes(3 * 1440 - 10);
+		assertEquals(3 * 1440 - 10, data.getReadingAt(recent).getRawReading(), 0);
+		assertEquals(3 * 1440 - 10, data.getReadingClosestTo(recent.plusSeconds(5), 30).getRawReading(), 0);
+		assertEquals(scans, store.scans);
+	}
+
+	@Test
+	public void dropsReadingsOlderThanWhatsStored() {
+		assertEquals(1, data.addReading(START.plusMinutes(5).plusSeconds(30), -1));
+		assertNull(data.getReadingAt(START.plusMinutes(5).plusSeconds(30)));
+		assertEquals(0, data.addReading(START.plusMinutes(3 * 1440), -1));
+		assertEquals(3 * 1440 + 1, data.getStats().getCount());
+	}
+}
@@ -0,0 +1,84 @@
+package uk.co.johngabriel.co657a3.model.json;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * Checks ExponentialStats' decay, and that merging baselines gives the same answer as one baseline of everything.
+ * @author John Gabriel
+ */
+public class ExponentialStatsTest {
+	private static final long HOUR = 60 * 60 * 1000;
+
+	@Test
+	public void olderValuesCountForLess() {
+		ExponentialStats stats = new ExponentialStats(HOUR);
+		stats.add(0, 10);
+		stats.add(HOUR, 20);
+		// The first value's half-weight by the time the second arrives
+		assertEquals(1.5, stats.getWeight(), 1e-9);
+		assertEquals((10 * 0.5 + 20) / 1.5, stats.getMean(), 1e-9);
+		assertEquals(HOUR, stats.getLastTime());
+	}
+
+	@Test
+	public void ignoresNaN() {
+		ExponentialStats stats = new ExponentialStats();
+		stats.add(0, Double.NaN);
+		assertTrue(stats.isEmpty());
+	}
+
+	@Test
+	public void mergeMatchesOneStream() {
+		ExponentialStats all = new ExponentialStats(HOUR);
+		ExponentialStats first = new ExponentialStats(HOUR);
+		ExponentialStats second = new ExponentialStats(HOUR);
+		for (int i = 0; i < 40; i++) {
+			long time = i * 5 * 60 * 1000L;
+			double value = 20 + Math.sin(i) * 3;
+			all.add(time, value);
+			(i < 25 ? first : second).add(time, value);
+		}
+		first.merge(second);
+		assertEquals(all.getWeight(), first.getWeight(), 1e-9);
+		assertEquals(all.getMean(), first.getMean(), 1e-9);
+		assertEquals(all.getVariance(), first.getVariance(), 1e-9);
+		assertEquals(all.getLastTime(), first.getLastTime());
+	}
+
+	@Test
+	public void mergeIntoEmptyTakesTheOthersHalfLife() {
+		ExponentialStats other = new ExponentialStats(HOUR);
+		other.add(0, 5);
+		ExponentialStats empty = new ExponentialStats();
+		empty.merge(other);
+		assertEquals(HOUR, empty.getHalfLife());
+		assertEquals(5, empty.getMean(), 0);
+
+		ExponentialStats copy = new ExponentialStats(other);
+		assertEquals(HOUR, copy.getHalfLife());
+		assertEquals(other.getWeight(), copy.getWeight(), 0);
+	}
+
+	@Test
+	public void extremeOnlyOnceReady() {
+		ExponentialStats stats = new ExponentialStats();
+		for (int i = 0; i < 5; i++)
+			stats.add(i * 1000L, (i % 2 == 0) ? 9 : 11);
+		assertFalse(stats.isReady());
+		assertFalse(stats.isExtreme(1000, 2));
+		for (int i = 5; i < 20; i++)
+			stats.add(i * 1000L, (i % 2 == 0) ? 9 : 11);
+		assertTrue(stats.isReady());
+		assertTrue(stats.isExtreme(1000, 2));
+		assertFalse(stats.isExtreme(10.5, 2));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void rejectsNonPositiveHalfLife() {
+		new ExponentialStats(0);
+	}
+}
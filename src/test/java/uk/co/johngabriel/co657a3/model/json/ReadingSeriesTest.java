@@ -0,0 +1,137 @@
+package uk.co.johngabriel.co657a3.model.json;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+
+/**
+ * Checks ReadingSeries' sorting and merging, which everything else relies on to keep readings in time order,
+ * and that a frozen one stays as it was.
+ * @author John Gabriel
+ */
+public class ReadingSeriesTest {
+
+	private static ReadingSeries makeSeries(long start, long step, int count, double firstValue) {
+		ReadingSeries series = new ReadingSeries(DataType.HUMIDITY);
+		for (int i = 0; i < count; i++)
+			series.add(start + i * step, firstValue + i);
+		return series;
+	}
+
+	private static void assertInOrder(ReadingSeries series) {
+		for (int i = 1; i < series.size(); i++)
+			if (series.getTime(i) < series.getTime(i - 1))
+				throw new AssertionError("Reading " + i + " is out of order");
+	}
+
+	@Test
+	public void mergeInterleaves() {
+		ReadingSeries a = makeSeries(0, 2, 5, 0); // 0, 2, 4, 6, 8
+		ReadingSeries b = makeSeries(1, 2, 5, 100); // 1, 3, 5, 7, 9
+		ReadingSeries merged = ReadingSeries.merge(a, b, false);
+		assertEquals(10, merged.size());
+		for (int i = 0; i < 10; i++)
+			assertEquals(i, merged.getTime(i));
+		assertEquals(0, merged.getValue(0), 0);
+		assertEquals(100, merged.getValue(1), 0);
+	}
+
+	@Test
+	public void mergeKeepsTiesFromAFirst() {
+		ReadingSeries a = makeSeries(0, 10, 3, 0);
+		ReadingSeries b = makeSeries(0, 10, 3, 100);
+		ReadingSeries all = ReadingSeries.merge(a, b, false);
+		assertEquals(6, all.size());
+		assertEquals(0, all.getValue(0), 0);
+		assertEquals(100, all.getValue(1), 0);
+
+		ReadingSeries distinct = ReadingSeries.merge(a, b, true);
+		assertEquals(3, distinct.size());
+		for (int i = 0; i < 3; i++)
+			assertEquals(i, distinct.getValue(i), 0);
+	}
+
+	@Test
+	public void mergeWithEmpty() {
+		ReadingSeries a = makeSeries(0, 1, 3, 0);
+		ReadingSeries empty = new ReadingSeries(DataType.HUMIDITY);
+		assertEquals(3, ReadingSeries.merge(a, empty, false).size());
+		assertEquals(3, ReadingSeries.merge(empty, a, true).size());
+		assertEquals(0, ReadingSeries.merge(empty, empty, false).size());
+	}
+
+	@Test
+	public void mergeDoesNotDisturbSharedChunks() {
+		// Enough of a comes before b that its first chunks get shared with the merge
+		ReadingSeries a = makeSeries(0, 1, 3000, 0);
+		ReadingSeries b = makeSeries(2500, 1, 1000, 10000);
+		ReadingSeries merged = ReadingSeries.merge(a, b, false);
+		assertEquals(4000, merged.size());
+		assertInOrder(merged);
+		a.add(5000, -1);
+		merged.add(6000, -2);
+		assertEquals(3001, a.size());
+		assertEquals(4001, merged.size());
+		assertEquals(2999, a.getValue(2999), 0);
+		assertEquals(-1, a.getValue(3000), 0);
+		assertEquals(10999, merged.getValue(3999), 0);
+		assertEquals(-2, merged.getValue(4000), 0);
+	}
+
+	@Test
+	public void sortHandlesAnyOrder() {
+		long[] ascending = { 1, 2, 2, 3 };
+		long[] descending = { 3, 2, 2, 1 };
+		long[] mixed = { 2, 3, 1, 2 };
+		double[] values = { 10, 20, 30, 40 };
+		ReadingSeries up = ReadingSeries.sort(DataType.GAS, ascending, values, 4);
+		ReadingSeries down = ReadingSeries.sort(DataType.GAS, descending, values, 4);
+		ReadingSeries neither = ReadingSeries.sort(DataType.GAS, mixed, values, 4);
+		for (ReadingSeries series: new ReadingSeries[] { up, down, neither }) {
+			assertEquals(4, series.size());
+			assertInOrder(series);
+		}
+		assertEquals(30, neither.getValue(0), 0);
+		// Readings at the same time keep the order they came in
+		assertEquals(10, neither.getValue(1), 0);
+		assertEquals(40, neither.getValue(2), 0);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void addRejectsOutOfOrder() {
+		ReadingSeries series = makeSeries(100, 1, 2, 0);
+		series.add(50, 0);
+	}
+
+	@Test
+	public void frozenSeriesKeepsWhatItHad() {
+		ReadingSeries series = makeSeries(0, 1, 1500, 0);
+		ReadingSeries frozen = series.freeze();
+		series.addAll(makeSeries(1500, 1, 1000, 1500));
+		assertEquals(1500, frozen.size());
+		assertEquals(1499, frozen.getLastTime());
+		assertEquals(1500, frozen.getStats().getCount());
+		assertEquals(2500, series.size());
+		try {
+			frozen.add(1500, -1);
+			fail("Added to a frozen series");
+		} catch (IllegalStateException e) {
+			// As expected; it'd have written over the original's reading
+		}
+		assertEquals(1500, series.getValue(1500), 0);
+	}
+
+	@Test
+	public void boundsAndNearest() {
+		ReadingSeries series = makeSeries(0, 10, 5, 0); // 0, 10, 20, 30, 40
+		assertEquals(2, series.lowerBound(20));
+		assertEquals(3, series.upperBound(20));
+		assertEquals(2, series.indexOf(20));
+		assertEquals(-1, series.indexOf(25));
+		assertEquals(3, series.indexNearest(28, 5));
+		assertEquals(-1, series.indexNearest(100, 5));
+		assertEquals(40, series.getLastTime());
+		assertEquals(Long.MIN_VALUE, new ReadingSeries(DataType.GAS).getLastTime());
+	}
+}
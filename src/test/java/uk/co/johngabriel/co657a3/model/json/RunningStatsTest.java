@@ -0,0 +1,60 @@
+package uk.co.johngabriel.co657a3.model.json;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * Checks that merging RunningStats gives the same answer as seeing every value in one go.
+ * @author John Gabriel
+ */
+public class RunningStatsTest {
+	private static final double[] VALUES = { 4, 8, 15, 16, 23, 42, -7.5, 0, 1e3, 3.25 };
+
+	private static RunningStats of(int from, int to) {
+		RunningStats stats = new RunningStats();
+		for (int i = from; i < to; i++)
+			stats.add(VALUES[i]);
+		return stats;
+	}
+
+	@Test
+	public void meanAndVariance() {
+		RunningStats stats = of(0, 6); // 4, 8, 15, 16, 23, 42
+		assertEquals(6, stats.getCount());
+		assertEquals(18, stats.getMean(), 1e-9);
+		// Population variance: (196 + 100 + 9 + 4 + 25 + 576) / 6
+		assertEquals(910 / 6d, stats.getVariance(), 1e-9);
+		assertEquals(Math.sqrt(910 / 6d), stats.getStandardDeviation(), 1e-9);
+	}
+
+	@Test
+	public void mergeMatchesOneStream() {
+		RunningStats all = of(0, VALUES.length);
+		for (int split = 0; split <= VALUES.length; split++) {
+			RunningStats merged = of(0, split);
+			merged.merge(of(split, VALUES.length));
+			assertEquals(all.getCount(), merged.getCount());
+			assertEquals(all.getMean(), merged.getMean(), 1e-9);
+			assertEquals(all.getVariance(), merged.getVariance(), 1e-6);
+		}
+	}
+
+	@Test
+	public void mergeWithEmpty() {
+		RunningStats empty = new RunningStats();
+		empty.merge(new RunningStats());
+		assertTrue(empty.isEmpty());
+		assertEquals(0, empty.getVariance(), 0);
+
+		RunningStats some = of(0, 4);
+		empty.merge(some);
+		assertEquals(some.getCount(), empty.getCount());
+		assertEquals(some.getMean(), empty.getMean(), 0);
+		assertEquals(some.getVariance(), empty.getVariance(), 0);
+		// Merging in nothing changes nothing
+		some.merge(new RunningStats());
+		assertEquals(4, some.getCount());
+	}
+}
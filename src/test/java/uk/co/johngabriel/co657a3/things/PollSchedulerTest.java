@@ -0,0 +1,103 @@
+package uk.co.johngabriel.co657a3.things;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.time.LocalDateTime;
+
+import org.junit.Test;
+
+import uk.co.johngabriel.co657a3.model.json.DataResolution;
+
+/**
+ * Checks that the PollScheduler only has feeds fetched once they could have something new, and backs off stale ones.
+ * @author John Gabriel
+ */
+public class PollSchedulerTest {
+	private static final LocalDateTime NOON = LocalDateTime.of(2017, 11, 1, 12, 0); // UTC, like everything the scheduler's given
+
+	@Test
+	public void newFeedsAreDue() {
+		PollScheduler scheduler = new PollScheduler();
+		assertTrue(scheduler.isDue("device", DataResolution.EVERY_MINUTE, NOON));
+		assertTrue(scheduler.isDue("device", DataResolution.EVERY_HOUR, NOON));
+		assertEquals(0, scheduler.getRequestsSaved());
+	}
+
+	@Test
+	public void dueAfterTheNextBoundaryAndGrace() {
+		PollScheduler scheduler = new PollScheduler();
+		LocalDateTime now = NOON.plusSeconds(30);
+		scheduler.polled("device", DataResolution.EVERY_MINUTE, now, now.minusSeconds(5));
+		assertFalse(scheduler.isDue("device", DataResolution.EVERY_MINUTE, NOON.plusSeconds(69)));
+		assertTrue(scheduler.isDue("device", DataResolution.EVERY_MINUTE, NOON.plusSeconds(70)));
+		// Each resolution's a feed of its own
+		assertTrue(scheduler.isDue("device", DataResolution.EVERY_HOUR, now));
+		assertEquals(1, scheduler.getRequestsMade());
+		assertEquals(1, scheduler.getRequestsSaved());
+	}
+
+	@Test
+	public void pollWithinTheGraceDoesNotCountForTheBoundary() {
+		PollScheduler scheduler = new PollScheduler();
+		// The new readings might not be out yet, so it's due again once they should be
+		LocalDateTime now = NOON.plusSeconds(5);
+		scheduler.polled("device", DataResolution.EVERY_10MINUTES, now, now);
+		assertFalse(scheduler.isDue("device", DataResolution.EVERY_10MINUTES, NOON.plusSeconds(9)));
+		assertTrue(scheduler.isDue("device", DataResolution.EVERY_10MINUTES, NOON.plusSeconds(10)));
+	}
+
+	@Test
+	public void backsOffStaleFeeds() {
+		PollScheduler scheduler = new PollScheduler();
+		LocalDateTime now = NOON.plusSeconds(30);
+		LocalDateTime stale = NOON.minusMinutes(10);
+		// Doubles each time, up to sixteen intervals
+		int[] backoffs = { 2, 4, 8, 16, 16 };
+		for (int backoff: backoffs) {
+			scheduler.polled("device", DataResolution.EVERY_MINUTE, now, stale);
+			assertFalse(scheduler.isDue("device", DataResolution.EVERY_MINUTE, NOON.plusSeconds(backoff * 60 + 9)));
+			assertTrue(scheduler.isDue("device", DataResolution.EVERY_MINUTE, NOON.plusSeconds(backoff * 60 + 10)));
+		}
+		// Back to every interval once it's connected again
+		scheduler.polled("device", DataResolution.EVERY_MINUTE, now, now);
+		assertTrue(scheduler.isDue("device", DataResolution.EVERY_MINUTE, NOON.plusSeconds(70)));
+		// A feed that's never connected counts as stale too
+		scheduler.polled("other", DataResolution.EVERY_MINUTE, now, null);
+		assertFalse(scheduler.isDue("other", DataResolution.EVERY_MINUTE, NOON.plusSeconds(70)));
+	}
+
+	@Test
+	public void reconnectingEndsTheBackOff() {
+		PollScheduler scheduler = new PollScheduler();
+		LocalDateTime now = NOON.plusSeconds(30);
+		for (int i = 0; i < 4; i++)
+			scheduler.polled("device", DataResolution.EVERY_HOUR, now, NOON.minusHours(1));
+		scheduler.polled("device", DataResolution.EVERY_MINUTE, now, now);
+		LocalDateTime later = NOON.plusMinutes(5);
+		assertFalse(scheduler.isDue("device", DataResolution.EVERY_HOUR, later));
+		// Still stale, so nothing changes
+		scheduler.connected("device", later, NOON.minusHours(1));
+		assertFalse(scheduler.isDue("device", DataResolution.EVERY_HOUR, later));
+		scheduler.connected("device", later, later.minusSeconds(20));
+		assertTrue(scheduler.isDue("device", DataResolution.EVERY_HOUR, later));
+		// Feeds that weren't backed off keep to their boundaries
+		assertFalse(scheduler.isDue("device", DataResolution.EVERY_MINUTE, NOON.plusSeconds(69)));
+		// And once it's polled again, it's back to once an interval
+		scheduler.polled("device", DataResolution.EVERY_HOUR, later, later.minusSeconds(20));
+		assertTrue(scheduler.isDue("device", DataResolution.EVERY_HOUR, NOON.plusHours(1).plusSeconds(10)));
+	}
+
+	@Test
+	public void forgottenFeedsAreDue() {
+		PollScheduler scheduler = new PollScheduler();
+		scheduler.polled("device", DataResolution.EVERY_MINUTE, NOON, NOON);
+		scheduler.polled("device", DataResolution.EVERY_HOUR, NOON, NOON);
+		scheduler.forget("device");
+		assertTrue(scheduler.isDue("device", DataResolution.EVERY_MINUTE, NOON));
+		assertTrue(scheduler.isDue("device", DataResolution.EVERY_HOUR, NOON));
+		assertEquals(2, scheduler.getRequestsMade());
+		assertEquals(0, scheduler.getRequestsSaved());
+	}
+}
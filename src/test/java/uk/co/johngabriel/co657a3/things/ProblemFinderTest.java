@@ -0,0 +1,93 @@
+package uk.co.johngabriel.co657a3.things;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import uk.co.johngabriel.co657a3.model.Problem;
+import uk.co.johngabriel.co657a3.model.json.Device;
+import uk.co.johngabriel.co657a3.model.json.DeviceType;
+import uk.co.johngabriel.co657a3.model.json.Site;
+import uk.co.johngabriel.co657a3.model.json.Zone;
+
+/**
+ * Checks that the ProblemFinder only looks again at what a ChangeSet says has changed, and keeps track of
+ * which problems are new and which have gone.
+ * @author John Gabriel
+ */
+public class ProblemFinderTest {
+	private ProblemFinder finder;
+	private Site site;
+	private Device device;
+	private List<Site> sites;
+
+	@Before
+	public void setUp() {
+		finder = new ProblemFinder();
+		site = new Site("site", "The Farm", 0, 0, 0, "GB", "Europe/London");
+		Zone zone = new Zone("zone", "Greenhouse");
+		zone.setSite(site);
+		site.addZone(zone.getId(), zone);
+		// Hasn't connected for long enough to be a problem
+		device = new Device("device", "Sensor", DeviceType.TEMPHUMID, site, zone, LocalDateTime.now().minusMinutes(10), "1.0");
+		site.addDevice(device);
+		zone.addDevice(device);
+		sites = new ArrayList<>();
+		sites.add(site);
+	}
+
+	@Test
+	public void findsEverythingFirstTime() {
+		List<Problem> problems = finder.update(sites, ChangeSet.everything());
+		assertEquals(1, problems.size());
+		assertSame(device, problems.get(0).getDevice());
+		assertEquals(problems, finder.getProblems());
+		assertEquals(problems, finder.getAdded());
+		assertEquals(0, finder.getResolved().size());
+	}
+
+	@Test
+	public void newSitesAreCheckedInFull() {
+		// Even though nothing's said to have changed, it's never been checked
+		assertEquals(1, finder.update(sites, new ChangeSet()).size());
+		assertEquals(1, finder.getAdded().size());
+	}
+
+	@Test
+	public void keepsProblemsWhenNothingChanged() {
+		Problem problem = finder.update(sites, ChangeSet.everything()).get(0);
+		List<Problem> problems = finder.update(sites, new ChangeSet());
+		assertEquals(1, problems.size());
+		assertSame(problem, problems.get(0));
+		assertEquals(0, finder.getAdded().size());
+		assertEquals(0, finder.getResolved().size());
+	}
+
+	@Test
+	public void resolvesOnlyOnceTheChangeIsSeen() {
+		Problem problem = finder.update(sites, ChangeSet.everything()).get(0);
+		device.setLastConnection(LocalDateTime.now());
+		// Without being told, it doesn't look again
+		assertEquals(1, finder.update(sites, new ChangeSet()).size());
+
+		ChangeSet changes = new ChangeSet();
+		changes.changedConnection(device.getId());
+		assertEquals(0, finder.update(sites, changes).size());
+		assertEquals(0, finder.getAdded().size());
+		assertEquals(Collections.singletonList(problem), finder.getResolved());
+	}
+
+	@Test
+	public void resolvesProblemsOfSitesThatHaveGone() {
+		Problem problem = finder.update(sites, ChangeSet.everything()).get(0);
+		assertEquals(0, finder.update(new ArrayList<Site>(), new ChangeSet()).size());
+		assertEquals(Collections.singletonList(problem), finder.getResolved());
+	}
+}
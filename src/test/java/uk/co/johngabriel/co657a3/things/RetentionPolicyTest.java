@@ -0,0 +1,68 @@
+package uk.co.johngabriel.co657a3.things;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+/**
+ * Checks that retention specs are read the way application.properties describes, and that ones that don't make sense aren't.
+ * @author John Gabriel
+ */
+public class RetentionPolicyTest {
+
+	@Test
+	public void parsesTheDefault() {
+		RetentionPolicy policy = RetentionPolicy.parse(RetentionPolicy.DEFAULT);
+		assertEquals(TimeUnit.DAYS.toMillis(7), policy.getRawKeep());
+		List<RetentionPolicy.Tier> tiers = policy.getRollups();
+		assertEquals(3, tiers.size());
+		assertEquals("10m", tiers.get(0).getName());
+		assertEquals(TimeUnit.MINUTES.toMillis(10), tiers.get(0).getWidth());
+		assertEquals(TimeUnit.DAYS.toMillis(30), tiers.get(0).getKeep());
+		assertEquals(TimeUnit.HOURS.toMillis(1), tiers.get(1).getWidth());
+		assertEquals(TimeUnit.DAYS.toMillis(365), tiers.get(1).getKeep());
+		assertEquals(TimeUnit.DAYS.toMillis(1), tiers.get(2).getWidth());
+		assertEquals(RetentionPolicy.FOREVER, tiers.get(2).getKeep());
+		assertEquals(RetentionPolicy.DEFAULT, policy.toString());
+	}
+
+	@Test
+	public void parsesRawOnlyWithSpaces() {
+		RetentionPolicy policy = RetentionPolicy.parse(" raw = forever ");
+		assertEquals(RetentionPolicy.FOREVER, policy.getRawKeep());
+		assertEquals(0, policy.getRollups().size());
+		assertEquals(90000, RetentionPolicy.parse("raw=90s").getRawKeep());
+	}
+
+	@Test
+	public void rejectsNonsense() {
+		String[] specs = {
+			"", // No raw tier
+			"10m=30d", // Likewise
+			"10m=30d,raw=7d", // Raw has to come first
+			"raw=7d,raw=8d", // Only once
+			"raw=7d,10m", // No duration
+			"raw=7d,10m=30d=1", // Too many
+			"raw=7x", // Unknown unit
+			"raw=0d", // Not positive
+			"raw=-1d",
+			"raw=d",
+			"raw=7d,forever=1d", // Not a width
+			"raw=7d,1h=1d,10m=1d", // Narrower than the one before
+			"raw=7d,10m=1d,15m=1d", // Not a multiple of the one before
+			"raw=7d,500=1d", // No unit
+		};
+		for (String spec: specs) {
+			try {
+				RetentionPolicy.parse(spec);
+				fail("Parsed \"" + spec + "\"");
+			} catch (IllegalArgumentException e) {
+				// As expected
+			}
+		}
+	}
+}
@@ -0,0 +1,146 @@
+package uk.co.johngabriel.co657a3.things;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import uk.co.johngabriel.co657a3.model.json.DataResolution;
+import uk.co.johngabriel.co657a3.model.json.DataType;
+import uk.co.johngabriel.co657a3.model.json.ReadingSeries;
+import uk.co.johngabriel.co657a3.model.json.RollupCursor;
+import uk.co.johngabriel.co657a3.model.json.SegmentCursor;
+
+/**
+ * Checks that the SegmentStore keeps what it's given across restarts, and rolls it up and drops it as the retention policy says.
+ * @author John Gabriel
+ */
+public class SegmentStoreTest {
+	private static final long MINUTE = TimeUnit.MINUTES.toMillis(1);
+	private static final long DAY = TimeUnit.DAYS.toMillis(1);
+	private static final long START = 1509494400000L; // 2017-11-01, UTC
+	private static final RetentionPolicy RETENTION = RetentionPolicy.parse("raw=2d,10m=3d,1h=forever");
+	private static final String KEY = "device/TEMPERATURE-EVERY_MINUTE";
+
+	private File root;
+
+	@Before
+	public void setUp() throws IOException {
+		root = Files.createTempDirectory("segments").toFile();
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		try (Stream<Path> files = Files.walk(root.toPath())) {
+			files.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+		}
+	}
+
+	private static ReadingSeries makeSeries(int from, int to) {
+		ReadingSeries series = new ReadingSeries(DataType.TEMPERATURE);
+		for (int i = from; i < to; i++)
+			series.add(START + i * MINUTE, i);
+		return series;
+	}
+
+	private SegmentStore open() {
+		return new SegmentStore(root, DAY, RETENTION);
+	}
+
+	private static int count(SegmentCursor cursor) {
+		int count = 0;
+		while (cursor.next()) count++;
+		return count;
+	}
+
+	@Test
+	public void appendThenScan() {
+		SegmentStore store = open();
+		assertEquals(Long.MIN_VALUE, store.getLastTime("device", DataType.TEMPERATURE, DataResolution.EVERY_MINUTE));
+		assertEquals(3000, store.append("device", DataType.TEMPERATURE, DataResolution.EVERY_MINUTE, makeSeries(0, 3000)));
+		SegmentCursor cursor = store.scan("device", DataType.TEMPERATURE, DataResolution.EVERY_MINUTE, START + 1000 * MINUTE, START + 2000 * MINUTE);
+		assertEquals(1000, cursor.size());
+		for (int i = 1000; i < 2000; i++) {
+			assertTrue(cursor.next());
+			assertEquals(START + i * MINUTE, cursor.getTime());
+			assertEquals(i, cursor.getValue(), 0);
+		}
+		assertFalse(cursor.next());
+		// Other series are kept apart
+		assertEquals(0, count(store.scan("device", DataType.HUMIDITY, DataResolution.EVERY_MINUTE, START, START + DAY)));
+	}
+
+	@Test
+	public void ignoresWhatItAlreadyHas() {
+		SegmentStore store = open();
+		store.append("device", DataType.TEMPERATURE, DataResolution.EVERY_MINUTE, makeSeries(0, 100));
+		assertEquals(0, store.append("device", DataType.TEMPERATURE, DataResolution.EVERY_MINUTE, makeSeries(0, 100)));
+		assertEquals(50, store.append("device", DataType.TEMPERATURE, DataResolution.EVERY_MINUTE, makeSeries(50, 150)));
+		assertEquals(150, count(store.scan("device", DataType.TEMPERATURE, DataResolution.EVERY_MINUTE, START, START + DAY)));
+	}
+
+	@Test
+	public void reopensWhereItLeftOff() {
+		SegmentStore store = open();
+		store.append("device", DataType.TEMPERATURE, DataResolution.EVERY_MINUTE, makeSeries(0, 2000));
+		assertTrue(store.sync());
+		SegmentStore reopened = open();
+		assertTrue(reopened.listSeries().contains(KEY));
+		assertEquals(START + 1999 * MINUTE, reopened.getLastTime("device", DataType.TEMPERATURE, DataResolution.EVERY_MINUTE));
+		assertEquals(2000, count(reopened.scan("device", DataType.TEMPERATURE, DataResolution.EVERY_MINUTE, START, START + 2 * DAY)));
+	}
+
+	@Test
+	public void rollsUpBucketsThatAreOver() {
+		SegmentStore store = open();
+		// Three days of minutes, less the very last one, so the last 10 minute bucket isn't over
+		store.append("device", DataType.TEMPERATURE, DataResolution.EVERY_MINUTE, makeSeries(0, 3 * 1440 - 1));
+		assertEquals(2, store.getRollupTiers(DataResolution.EVERY_MINUTE).size());
+		assertEquals(1, store.getRollupTiers(DataResolution.EVERY_10MINUTES).size());
+		// 431 buckets of 10 minutes, then 71 hours out of those
+		assertEquals(431 + 71, store.rollUp(KEY));
+		assertEquals(0, store.rollUp(KEY));
+
+		RetentionPolicy.Tier tenMinutes = RETENTION.getRollups().get(0);
+		RollupCursor rollups = store.scanRollups("device", DataType.TEMPERATURE, DataResolution.EVERY_MINUTE, tenMinutes, START, START + DAY);
+		assertEquals(144, rollups.size());
+		assertTrue(rollups.next());
+		assertEquals(START, rollups.getTime());
+		assertEquals(10, rollups.getCount());
+		assertEquals(0, rollups.getMin(), 0);
+		assertEquals(9, rollups.getMax(), 0);
+		assertEquals(4.5, rollups.getMean(), 1e-9);
+
+		RetentionPolicy.Tier hours = RETENTION.getRollups().get(1);
+		rollups = store.scanRollups("device", DataType.TEMPERATURE, DataResolution.EVERY_MINUTE, hours, START, START + DAY);
+		assertTrue(rollups.next());
+		assertEquals(60, rollups.getCount());
+		assertEquals(29.5, rollups.getMean(), 1e-9);
+	}
+
+	@Test
+	public void dropsOnlyWhatsExpiredAndRolledUp() {
+		SegmentStore store = open();
+		store.append("device", DataType.TEMPERATURE, DataResolution.EVERY_MINUTE, makeSeries(0, 3 * 1440));
+		long now = START + 3 * DAY;
+		// Nothing's been rolled up yet, so nothing can go
+		assertEquals(0, store.dropExpired(KEY, now));
+		store.rollUp(KEY);
+		// The first day's raw readings are older than two days, and the 10 minute tier has them
+		assertEquals(1, store.dropExpired(KEY, now));
+		assertEquals(0, count(store.scan("device", DataType.TEMPERATURE, DataResolution.EVERY_MINUTE, START, START + DAY)));
+		assertEquals(1440, count(store.scan("device", DataType.TEMPERATURE, DataResolution.EVERY_MINUTE, START + DAY, START + 2 * DAY)));
+		assertEquals(0, store.dropExpired(KEY, now));
+	}
+}
@@ -0,0 +1,128 @@
+package uk.co.johngabriel.co657a3.things;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Stream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import uk.co.johngabriel.co657a3.model.Problem;
+import uk.co.johngabriel.co657a3.model.Snapshot;
+import uk.co.johngabriel.co657a3.model.json.DataResolution;
+import uk.co.johngabriel.co657a3.model.json.DataType;
+import uk.co.johngabriel.co657a3.model.json.Device;
+import uk.co.johngabriel.co657a3.model.json.DeviceData;
+import uk.co.johngabriel.co657a3.model.json.DeviceType;
+import uk.co.johngabriel.co657a3.model.json.Site;
+import uk.co.johngabriel.co657a3.model.json.Zone;
+
+/**
+ * Checks that a snapshot saved by the SnapshotStore comes back the same, and that one that can't be read doesn't come back at all.
+ * @author John Gabriel
+ */
+public class SnapshotStoreTest {
+	private static final long HOUR = 60 * 60 * 1000;
+	private static final LocalDateTime TIME = LocalDateTime.of(2017, 11, 1, 12, 0);
+
+	private File root;
+	private File file;
+
+	@Before
+	public void setUp() throws IOException {
+		root = Files.createTempDirectory("snapshot").toFile();
+		file = new File(root, "snapshot.bin");
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		try (Stream<Path> files = Files.walk(root.toPath())) {
+			files.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+		}
+	}
+
+	private static Snapshot makeSnapshot() {
+		Site site = new Site("site", "The Farm", 1.5, 51.25, 30, "GB", "Europe/London");
+		Zone zone = new Zone("zone", "Greenhouse");
+		zone.setSite(site);
+		site.addZone(zone.getId(), zone);
+		Device device = new Device("device", "Sensor", DeviceType.TEMPHUMID, site, zone, TIME, "1.0");
+		DeviceData data = new DeviceData("device", "Temperature", site, zone, "1.0", DataType.TEMPERATURE,
+				DataResolution.EVERY_MINUTE, "C", HOUR);
+		for (int i = 0; i < 2000; i++)
+			data.addReading(TIME.minusMinutes(2000 - i), 15 + i % 10 * 0.25);
+		device.addData(data);
+		site.addDevice(device);
+		zone.addDevice(device);
+
+		Map<String, Device> devices = new HashMap<>();
+		devices.put(device.getId(), device);
+		Map<String, Zone> zones = new HashMap<>();
+		zones.put(site.getId() + "/" + zone.getId(), zone);
+		Map<String, Site> sites = new HashMap<>();
+		sites.put(site.getId(), site);
+		Set<String> expected = new HashSet<>();
+		expected.add(device.getId());
+		expected.add("missing");
+		return new Snapshot(42, devices, zones, sites, expected, new ArrayList<Problem>(), TIME);
+	}
+
+	@Test
+	public void loadsWhatWasSaved() {
+		Snapshot saved = makeSnapshot();
+		assertTrue(new SnapshotStore(file, HOUR).save(saved));
+		Snapshot loaded = new SnapshotStore(file, HOUR).load(new GraphBuilder());
+		assertNotNull(loaded);
+		assertEquals(42, loaded.getVersion());
+		assertEquals(TIME, loaded.getTime());
+		assertEquals(saved.getExpectedDevices(), loaded.getExpectedDevices());
+
+		Site site = loaded.getSite("site");
+		assertEquals("The Farm", site.getName());
+		assertEquals(51.25, site.getLatitude(), 0);
+		assertEquals("Europe/London", site.getTimezone());
+		Zone zone = site.getZone("zone");
+		assertEquals("Greenhouse", zone.getName());
+		assertSame(site, zone.getSite());
+
+		Device device = loaded.getDevice("device");
+		assertEquals(DeviceType.TEMPHUMID, device.getType());
+		assertEquals(TIME, device.getLastConnection());
+		assertSame(zone, device.getZone());
+		assertTrue(site.getDevices().contains(device));
+		assertTrue(zone.getDevices().contains(device));
+
+		DeviceData expected = saved.getDevice("device").getDeviceData(DataType.TEMPERATURE, DataResolution.EVERY_MINUTE);
+		DeviceData data = device.getDeviceData(DataType.TEMPERATURE, DataResolution.EVERY_MINUTE);
+		assertEquals("C", data.getScale());
+		assertEquals(HOUR, data.getBaseline().getHalfLife());
+		assertEquals(expected.getSeries().size(), data.getSeries().size());
+		for (int i = 0; i < expected.getSeries().size(); i++) {
+			assertEquals(expected.getSeries().getTime(i), data.getSeries().getTime(i));
+			assertEquals(expected.getSeries().getValue(i), data.getSeries().getValue(i), 0);
+		}
+	}
+
+	@Test
+	public void loadsNothingWithoutASnapshot() throws IOException {
+		assertNull(new SnapshotStore(file).load(new GraphBuilder()));
+		Files.write(file.toPath(), "not a snapshot".getBytes("UTF-8"));
+		assertNull(new SnapshotStore(file).load(new GraphBuilder()));
+	}
+}
@@ -0,0 +1,132 @@
+package uk.co.johngabriel.co657a3.things;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Stream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import uk.co.johngabriel.co657a3.model.json.DataResolution;
+import uk.co.johngabriel.co657a3.model.json.DataType;
+import uk.co.johngabriel.co657a3.model.json.ReadingSeries;
+
+/**
+ * Checks that the WriteAheadLog gives back what was logged, and nothing that wasn't fully written.
+ * @author John Gabriel
+ */
+public class WriteAheadLogTest {
+	private File root;
+	private File directory;
+
+	@Before
+	public void setUp() throws IOException {
+		root = Files.createTempDirectory("wal").toFile();
+		directory = new File(root, "wal");
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		try (Stream<Path> files = Files.walk(root.toPath())) {
+			files.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+		}
+	}
+
+	private static ReadingSeries makeSeries(long start, int count) {
+		ReadingSeries series = new ReadingSeries(DataType.GAS);
+		for (int i = 0; i < count; i++)
+			series.add(start + i * 60000L, i * 0.5);
+		return series;
+	}
+
+	/**
+	 * @return What replaying the log gives, one "device/type/resolution/size/last time" per record.
+	 */
+	private List<String> replay() {
+		List<String> records = new ArrayList<>();
+		int replayed = new WriteAheadLog(directory).replay((deviceId, type, resolution, readings) ->
+				records.add(deviceId + "/" + type + "/" + resolution + "/" + readings.size() + "/" + readings.getLastTime()));
+		assertEquals(records.size(), replayed);
+		return records;
+	}
+
+	private File[] listFiles() {
+		File[] files = directory.listFiles();
+		return (files == null) ? new File[0] : files;
+	}
+
+	@Test
+	public void replaysWhatWasLogged() throws IOException {
+		WriteAheadLog log = new WriteAheadLog(directory);
+		log.append("a", DataType.GAS, DataResolution.EVERY_MINUTE, makeSeries(0, 10));
+		log.append("b", DataType.HUMIDITY, DataResolution.EVERY_HOUR, makeSeries(1000, 3));
+		log.append("a", DataType.GAS, DataResolution.EVERY_MINUTE, new ReadingSeries(DataType.GAS)); // Not logged
+		assertEquals(2, log.getRecords());
+		List<String> records = replay();
+		assertEquals(2, records.size());
+		assertEquals("a/GAS/EVERY_MINUTE/10/540000", records.get(0));
+		assertEquals("b/HUMIDITY/EVERY_HOUR/3/121000", records.get(1));
+	}
+
+	@Test
+	public void replayStopsAtATornRecord() throws IOException {
+		WriteAheadLog log = new WriteAheadLog(directory);
+		for (int i = 0; i < 3; i++)
+			log.append("device" + i, DataType.GAS, DataResolution.EVERY_MINUTE, makeSeries(0, 5));
+		File[] files = listFiles();
+		assertEquals(1, files.length);
+		// As if we'd crashed partway through writing the last one
+		try (RandomAccessFile raf = new RandomAccessFile(files[0], "rw")) {
+			raf.setLength(raf.length() - 3);
+		}
+		assertEquals(2, replay().size());
+		// Whatever comes after that goes in a file of its own
+		new WriteAheadLog(directory).append("device3", DataType.GAS, DataResolution.EVERY_MINUTE, makeSeries(0, 5));
+		List<String> records = replay();
+		assertEquals(3, records.size());
+		assertTrue(records.get(2).startsWith("device3/"));
+	}
+
+	@Test
+	public void checkpointClearsTheLog() throws IOException {
+		WriteAheadLog log = new WriteAheadLog(directory);
+		log.append("a", DataType.GAS, DataResolution.EVERY_MINUTE, makeSeries(0, 10));
+		log.checkpoint();
+		assertEquals(0, listFiles().length);
+		assertEquals(0, replay().size());
+		log.append("a", DataType.GAS, DataResolution.EVERY_MINUTE, makeSeries(600000, 10));
+		assertEquals(1, replay().size());
+		assertEquals(2, log.getRecords());
+	}
+
+	@Test
+	public void carriesOnAfterAFailedWrite() throws IOException {
+		// A file where the directory should be, so the log can't be written
+		assertTrue(directory.createNewFile());
+		WriteAheadLog log = new WriteAheadLog(directory);
+		try {
+			log.append("a", DataType.GAS, DataResolution.EVERY_MINUTE, makeSeries(0, 10));
+			fail("Appended to a log that can't be written");
+		} catch (IOException e) {
+			// As expected
+		}
+		assertEquals(0, log.getRecords());
+		assertTrue(directory.delete());
+		log.append("b", DataType.GAS, DataResolution.EVERY_MINUTE, makeSeries(0, 10));
+		assertEquals(1, log.getRecords());
+		List<String> records = replay();
+		assertEquals(1, records.size());
+		assertTrue(records.get(0).startsWith("b/"));
+	}
+}